@@ -31,6 +31,8 @@ public class AppConfig extends AppConfigTemplate {
 
     private final Logger logger = LoggerFactory.getLogger(AppConfig.class);
 
+    private RepositoryFacade repositoryFacade;
+
     /**
      * Class constructor
      * @param selfDescriptionProvider SelfDescriptionProvider object from which information can be obtained which is required for providing self-descriptions
@@ -56,7 +58,7 @@ public class AppConfig extends AppConfigTemplate {
         }
 
         //Repository facade is our bridge to the triple store backend
-        RepositoryFacade repositoryFacade = new RepositoryFacade(sparqlEndpointUrl);
+        repositoryFacade = new RepositoryFacade(sparqlEndpointUrl, sparqlEndpointSettings);
 
         //Object taking care of storing connectors and their resources in a triple store with optional indexing
         SelfDescriptionPersistenceAndIndexing selfDescriptionPersistence = new SelfDescriptionPersistenceAndIndexing(
@@ -71,7 +73,6 @@ public class AppConfig extends AppConfigTemplate {
         //Strategy for fetching the context for JSON-LD objects
         if (contextDocumentUrl != null && !contextDocumentUrl.isEmpty()) {
             selfDescriptionPersistence.setContextDocumentUrl(contextDocumentUrl);
-            resourcePersistenceAndIndexing.setContextDocumentUrl(contextDocumentUrl);
             ConstructQueryResultHandler.contextDocumentUrl = contextDocumentUrl;
         }
         ConstructQueryResultHandler.catalogUri = (catalogUri == null) ? new ResourceCatalogBuilder().build().getId().toString() : catalogUri.toString();
@@ -106,4 +107,12 @@ public class AppConfig extends AppConfigTemplate {
         return new MultipartComponentInteractor(component, securityTokenProvider, responseSenderAgent, performShaclValidation);
     }
 
+    /**
+     * Accessor for the repository facade created by build, e.g. to close it when shutting down
+     * @return The repository facade, or null, if build has not been called yet
+     */
+    public RepositoryFacade getRepositoryFacade() {
+        return repositoryFacade;
+    }
+
 }
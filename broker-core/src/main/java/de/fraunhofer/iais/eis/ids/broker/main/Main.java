@@ -4,6 +4,8 @@ package de.fraunhofer.iais.eis.ids.broker.main;
 import de.fraunhofer.iais.eis.ids.component.core.InfomodelFormalException;
 import de.fraunhofer.iais.eis.ids.component.protocol.http.server.ComponentInteractorProvider;
 import de.fraunhofer.iais.eis.ids.index.common.main.MainTemplate;
+import de.fraunhofer.iais.eis.ids.index.common.persistence.RepositoryFacade;
+import de.fraunhofer.iais.eis.ids.index.common.util.SparqlEndpointSettings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -23,8 +25,10 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Objects;
+import java.util.stream.Collectors;
 
 /**
  * Entry point to the Broker
@@ -62,6 +66,9 @@ public class Main extends MainTemplate implements ComponentInteractorProvider {
     @Autowired
     private Environment env;
 
+    //Closed on shutdown, releasing connections, threads and an embedded dataset
+    private RepositoryFacade repositoryFacade;
+
 
 
     /**
@@ -94,9 +101,40 @@ public class Main extends MainTemplate implements ComponentInteractorProvider {
             logger.warn("Could not find a KeyStore at {}.", javaKeystorePath);
         }
 
+        SparqlEndpointSettings sparqlEndpointSettings = new SparqlEndpointSettings()
+                .maxPoolSize(Integer.parseInt(env.getProperty("sparql.maxPoolSize", "16")))
+                .acquireTimeoutMillis(Long.parseLong(env.getProperty("sparql.acquireTimeoutMillis", "30000")))
+                .healthCheckIntervalSeconds(Long.parseLong(env.getProperty("sparql.healthCheckIntervalSeconds", "30")))
+                .groupCommitWindowMillis(Long.parseLong(env.getProperty("sparql.groupCommitWindowMillis", "0")))
+                .groupCommitMaxOperations(Integer.parseInt(env.getProperty("sparql.groupCommitMaxOperations", "64")))
+                .binaryTransport(Boolean.parseBoolean(env.getProperty("sparql.binaryTransport", "true")))
+                .compressTransfer(Boolean.parseBoolean(env.getProperty("sparql.compressTransfer", "true")))
+                .internalQueryTimeoutMillis(Long.parseLong(env.getProperty("sparql.internalQueryTimeoutMillis", "10000")))
+                .userQueryTimeoutMillis(Long.parseLong(env.getProperty("sparql.userQueryTimeoutMillis", "20000")))
+                .asyncThreads(Integer.parseInt(env.getProperty("sparql.asyncThreads", "16")))
+                .asyncQueueCapacity(Integer.parseInt(env.getProperty("sparql.asyncQueueCapacity", "256")))
+                .readYourWritesMillis(Long.parseLong(env.getProperty("sparql.readYourWritesMillis", "5000")))
+                .defaultQueryLimit(Long.parseLong(env.getProperty("sparql.defaultQueryLimit", "0")))
+                .maxUnboundPatterns(Integer.parseInt(env.getProperty("sparql.maxUnboundPatterns", "0")))
+                .maxCartesianProducts(Integer.parseInt(env.getProperty("sparql.maxCartesianProducts", "0")))
+                .maxOptionalDepth(Integer.parseInt(env.getProperty("sparql.maxOptionalDepth", "0")))
+                .lowPriorityQuerySlots(Integer.parseInt(env.getProperty("sparql.lowPriorityQuerySlots", "0")))
+                .resourceGraphs(Boolean.parseBoolean(env.getProperty("sparql.resourceGraphs", "false")))
+                .connectorCacheMaxTriples(Long.parseLong(env.getProperty("sparql.connectorCacheMaxTriples", "500000")))
+                .descriptionCacheMaxBytes(Long.parseLong(env.getProperty("sparql.descriptionCacheMaxBytes", "67108864")))
+                .queryCacheMaxBytes(Long.parseLong(env.getProperty("sparql.queryCacheMaxBytes", "33554432")))
+                .graphLockStripes(Integer.parseInt(env.getProperty("sparql.graphLockStripes", "64")));
+        String readReplicaUrls = env.getProperty("sparql.readReplicaUrls", "");
+        if(!readReplicaUrls.isBlank())
+        {
+            sparqlEndpointSettings.readReplicaUrls(Arrays.stream(readReplicaUrls.split(",")).map(String::trim).collect(Collectors.toList()));
+        }
+
         try {
-            multipartComponentInteractor = new AppConfig(createSelfDescriptionProvider())
+            AppConfig appConfig = new AppConfig(createSelfDescriptionProvider());
+            multipartComponentInteractor = appConfig
                     .sparqlEndpointUrl(sparqlEndpointUrl)
+                    .sparqlEndpointSettings(sparqlEndpointSettings)
                     .contextDocumentUrl(contextDocumentUrl)
                     .catalogUri(new URI(componentCatalogUri))
                     .securityTokenProvider(createSecurityTokenProvider())
@@ -105,6 +143,7 @@ public class Main extends MainTemplate implements ComponentInteractorProvider {
                     .responseSenderAgent(new URI(responseSenderAgent))
                     .performShaclValidation(validateShacl)
                     .build();
+            repositoryFacade = appConfig.getRepositoryFacade();
         }
         catch (URISyntaxException e) {
             throw new InfomodelFormalException(e);
@@ -113,7 +152,10 @@ public class Main extends MainTemplate implements ComponentInteractorProvider {
 
     @Override @PreDestroy
     public void shutDown() throws IOException {
-
+        if(repositoryFacade != null)
+        {
+            repositoryFacade.close();
+        }
     }
 
 
@@ -0,0 +1,19 @@
+package de.fraunhofer.iais.eis.ids.broker.acceptancetest;
+
+import de.fraunhofer.iais.eis.ids.index.common.persistence.RepositoryFacade;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs the connector management tests against an embedded TDB2 dataset instead of an in-memory repository
+ */
+public class ConnectorManagementTdb2Test extends ConnectorManagementTest {
+
+    @Rule
+    public TemporaryFolder databaseFolder = new TemporaryFolder();
+
+    @Override
+    protected String getSparqlUrl() {
+        return RepositoryFacade.TDB2_PREFIX + databaseFolder.getRoot().getAbsolutePath();
+    }
+}
@@ -5,6 +5,7 @@ import de.fraunhofer.iais.eis.ids.broker.main.AppConfig;
 import de.fraunhofer.iais.eis.ids.broker.util.NullBrokerSelfDescription;
 import de.fraunhofer.iais.eis.ids.component.core.MessageAndPayload;
 import de.fraunhofer.iais.eis.ids.component.core.RequestType;
+import de.fraunhofer.iais.eis.ids.component.core.map.DescriptionRequestMAP;
 import de.fraunhofer.iais.eis.ids.component.core.util.CalendarUtil;
 import de.fraunhofer.iais.eis.ids.component.interaction.multipart.Multipart;
 import de.fraunhofer.iais.eis.ids.component.interaction.multipart.MultipartComponentInteractor;
@@ -13,6 +14,7 @@ import de.fraunhofer.iais.eis.ids.connector.commons.broker.map.InfrastructureCom
 import de.fraunhofer.iais.eis.util.TypedLiteral;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Ignore;
@@ -30,6 +32,7 @@ import static de.fraunhofer.iais.eis.util.Util.asList;
 public class ConnectorManagementTest {
 
     private MultipartComponentInteractor multipartComponentInteractor;
+    private AppConfig appConfig;
     private DynamicAttributeToken dummyToken = new DynamicAttributeTokenBuilder()._tokenFormat_(TokenFormat.JWT)._tokenValue_("test1234").build();
 
     private Message connectorAvailable;
@@ -42,9 +45,17 @@ public class ConnectorManagementTest {
 
     private QueryMessage brokerQuery;
 
+    /**
+     * @return SPARQL URL of the repository to run the tests against. Empty for an in-memory repository
+     */
+    protected String getSparqlUrl() {
+        return "";
+    }
+
     @Before
     public void setUp() throws URISyntaxException, MalformedURLException {
-        multipartComponentInteractor = new AppConfig(new NullBrokerSelfDescription()).catalogUri(URI.create("http://localhost:8080/connectors/")).responseSenderAgent(new URI("http://example.org/agent/")).build();
+        appConfig = new AppConfig(new NullBrokerSelfDescription());
+        multipartComponentInteractor = appConfig.sparqlEndpointUrl(getSparqlUrl()).catalogUri(URI.create("http://localhost:8080/connectors/")).responseSenderAgent(new URI("http://example.org/agent/")).build();
 
         connectorAvailable =  new ConnectorUpdateMessageBuilder()
                 ._issued_(CalendarUtil.now())
@@ -94,6 +105,11 @@ public class ConnectorManagementTest {
                 .build();
     }
 
+    @After
+    public void tearDown() {
+        appConfig.getRepositoryFacade().close();
+    }
+
     @Test
     public void register() throws JSONException, IOException {
         InfrastructureComponentMAP infrastructureComponentStatusMAP = new InfrastructureComponentMAP(
@@ -136,6 +152,51 @@ public class ConnectorManagementTest {
         Assert.assertEquals("ids:MessageProcessedNotificationMessage", new JSONObject(responseMessage).get("@type"));
     }
 
+    @Test
+    public void describeRegisteredConnectorAndResource() throws JSONException, IOException, URISyntaxException {
+        Connector connectorWithResource = new BaseConnectorBuilder(new URI("http://example.org/connector1"))
+                ._title_(new ArrayList<>(asList(new TypedLiteral("DWD Open Data Connector", "en"))))
+                ._curatorAsUri_(new URI("http://example.org/participant1"))
+                ._maintainerAsUri_(new URI("http://example.org/participant1"))
+                ._outboundModelVersion_("3.0.0")
+                ._inboundModelVersion_(asList("3.0.0"))
+                ._resourceCatalog_(asList(new ResourceCatalogBuilder()
+                        ._offeredResourceAsObject_(asList(new DataResourceBuilder(new URI("http://example.org/resource1"))
+                                ._sovereignAsUri_(new URI("http://example.org/participant1"))
+                                .build()))
+                        .build()))
+                ._securityProfile_(SecurityProfile.BASE_SECURITY_PROFILE)
+                ._hasDefaultEndpoint_(new ConnectorEndpointBuilder()._accessURL_(URI.create("https://example.org/endpoint")).build())
+                .build();
+        String responseMessage = getComponentResponse(new InfrastructureComponentMAP(connectorAvailable, connectorWithResource));
+        Assert.assertEquals("ids:MessageProcessedNotificationMessage", new JSONObject(responseMessage).get("@type"));
+
+        //The materialized supertypes ids:Connector and ids:Resource must neither make the type ambiguous nor show up in the description
+        Multipart response = describe(new URI("http://example.org/connector1"));
+        Assert.assertEquals("ids:DescriptionResponseMessage", new JSONObject(response.getHeader()).get("@type"));
+        Assert.assertEquals("https://w3id.org/idsa/core/BaseConnector", new JSONObject(response.getHeader()).get("elementType"));
+        Assert.assertFalse(new String(response.getSerializedPayload().getSerialization()).contains("ids:Connector\""));
+
+        response = describe(new URI("http://example.org/resource1"));
+        Assert.assertEquals("ids:DescriptionResponseMessage", new JSONObject(response.getHeader()).get("@type"));
+        Assert.assertEquals("https://w3id.org/idsa/core/DataResource", new JSONObject(response.getHeader()).get("elementType"));
+        Assert.assertFalse(new String(response.getSerializedPayload().getSerialization()).contains("ids:Resource\""));
+
+        unregister();
+    }
+
+    private Multipart describe(URI requestedElement) throws IOException, URISyntaxException {
+        DescriptionRequestMessage descriptionRequest = new DescriptionRequestMessageBuilder()
+                ._issued_(CalendarUtil.now())
+                ._modelVersion_("3.0.0-SNAPSHOT")
+                ._issuerConnector_(new URI("http://example.org/connector1"))
+                ._requestedElement_(requestedElement)
+                ._securityToken_(dummyToken)
+                ._senderAgent_(new URI("http://example.org/agent/"))
+                .build();
+        return multipartComponentInteractor.process(new Multipart(new DescriptionRequestMAP(descriptionRequest)), RequestType.INFRASTRUCTURE);
+    }
+
     @Test
     @Ignore // TODO: reactivate the test. If the FUSEKI is not available, a RejectionMessage comes back
     public void query() throws IOException, JSONException {
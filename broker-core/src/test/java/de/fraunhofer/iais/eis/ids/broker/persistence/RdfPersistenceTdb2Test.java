@@ -0,0 +1,19 @@
+package de.fraunhofer.iais.eis.ids.broker.persistence;
+
+import de.fraunhofer.iais.eis.ids.index.common.persistence.RepositoryFacade;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs the persistence tests against an embedded TDB2 dataset instead of an in-memory repository
+ */
+public class RdfPersistenceTdb2Test extends RdfPersistenceTest {
+
+    @Rule
+    public TemporaryFolder databaseFolder = new TemporaryFolder();
+
+    @Override
+    protected String getSparqlUrl() {
+        return RepositoryFacade.TDB2_PREFIX + databaseFolder.getRoot().getAbsolutePath();
+    }
+}
@@ -6,6 +6,7 @@ import de.fraunhofer.iais.eis.ids.component.core.RejectMessageException;
 import de.fraunhofer.iais.eis.ids.index.common.persistence.NullIndexing;
 import de.fraunhofer.iais.eis.ids.index.common.persistence.RepositoryFacade;
 import de.fraunhofer.iais.eis.util.TypedLiteral;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -24,9 +25,16 @@ public class RdfPersistenceTest {
     private SelfDescriptionPersistenceAndIndexing persistence;
     private RepositoryFacade repositoryFacade;
 
+    /**
+     * @return SPARQL URL of the repository to run the tests against. Empty for an in-memory repository
+     */
+    protected String getSparqlUrl() {
+        return "";
+    }
+
     @Before
     public void setUp() {
-        repositoryFacade = new RepositoryFacade();
+        repositoryFacade = new RepositoryFacade(getSparqlUrl());
         try {
             persistence = new SelfDescriptionPersistenceAndIndexing(repositoryFacade, new URI("http://localhost:8080/connectors/"), new NullIndexing<>(), 10);
         } catch (URISyntaxException e) {
@@ -34,6 +42,11 @@ public class RdfPersistenceTest {
         }
     }
 
+    @After
+    public void tearDown() {
+        repositoryFacade.close();
+    }
+
     @Test
     public void available() {
         long sizeBeforeIngest = repositoryFacade.getSize();
@@ -12,15 +12,14 @@ import org.apache.jena.vocabulary.RDF;
 public class ConnectorModelCreator extends ModelCreator {
 
     /**
-     * This function determines whether a statement defines a Connector
+     * This function determines whether a statement defines a Connector. Applied after the supertype ids:Connector was added to all subclasses
      * @param statement The statement to be tested
      * @return true, if it defines a connector, otherwise false
      */
     @Override
     public boolean subjectIsInstanceInnerModel(Statement statement) {
         return statement.getPredicate().equals(RDF.type) &&
-                (statement.getObject().equals(INFOMODEL.BASE_CONNECTOR) ||
-                        statement.getObject().equals(INFOMODEL.TRUSTED_CONNECTOR));
+                statement.getObject().equals(INFOMODEL.CONNECTOR);
     }
 
 }
@@ -25,16 +25,16 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
 
 /**
  * This class takes care of persisting and indexing any changes to resources that are announced to the broker
  */
 public class ResourcePersistenceAndIndexing extends ResourcePersistenceAdapter {
-    private final ResourceModelCreator resourceModelCreator = new ResourceModelCreator();
-
-    private static RepositoryFacade repositoryFacade;
+    private final RepositoryFacade repositoryFacade;
 
     //Note that adding a resource is done as follows:
     //1) Find the connector containing the resource
@@ -61,7 +61,7 @@ public class ResourcePersistenceAndIndexing extends ResourcePersistenceAdapter {
      */
     public ResourcePersistenceAndIndexing(RepositoryFacade repositoryFacade, URI componentCatalogUri,
                                           int maxNumberOfIndexedConnectorResources) {
-        ResourcePersistenceAndIndexing.repositoryFacade = repositoryFacade;
+        this.repositoryFacade = repositoryFacade;
         this.componentCatalogUri = componentCatalogUri;
         this.maxNumberOfIndexedConnectorResources = maxNumberOfIndexedConnectorResources;
         Serializer.addKnownNamespace("owl", "http://www.w3.org/2002/07/owl#");
@@ -75,14 +75,6 @@ public class ResourcePersistenceAndIndexing extends ResourcePersistenceAdapter {
         this.indexing = indexing;
     }
 
-    /**
-     * Setter for the context document URL. Typically extracted from the application.properties
-     * @param contextDocumentUrl the context document URL to be used
-     */
-    public void setContextDocumentUrl(String contextDocumentUrl) {
-        resourceModelCreator.setContextFetchStrategy(JsonLdContextFetchStrategy.FROM_URL, contextDocumentUrl);
-    }
-
     /**
      * Function to obtain the catalog URI of a given connector. This is required when the connector makes new resources available or modifies existing ones
      * @param connectorUri The URI of the connector
@@ -91,25 +83,22 @@ public class ResourcePersistenceAndIndexing extends ResourcePersistenceAdapter {
      * @throws URISyntaxException if the URI of the catalog is malformed
      */
     private URI getConnectorCatalog(URI connectorUri) throws RejectMessageException, URISyntaxException {
-
-        //Launch query
-        String queryString = "PREFIX ids: <https://w3id.org/idsa/core/> " +
-                //Grab URI of catalog containing the resource
-                "SELECT DISTINCT ?catalog " +
-                //Search is restricted to active graphs by default. This is done within the getResults function (calling SparqlQueryRewriter)
-//        repositoryFacade.getActiveGraphs().forEach(graphName -> queryString.append("FROM NAMED <").append(graphName).append("> "));
-                //Bind named graph to restrict search to single named graph, which must be, due to the FROM NAMED section above, active
-                "WHERE { BIND(<" + connectorUri.toString() + "> AS ?connector) . " +
-                //Only interested in the catalog part. The connector is contained in a named graph, which has the connector's ID as name
-                "GRAPH ?connector { ?connector ids:resourceCatalog ?catalog . } }";
-        String catalogString = getResults(queryString);
-        //Are the results equal to the binding name "?catalog" ? If so, no such catalog was found
-        if(catalogString.equals("?catalog\n"))
+        //Only active connectors may make resources available. This used to be ensured by rewriting the query like a user query
+        if(!repositoryFacade.getActiveGraphRegistry().isActive(connectorUri.toString()))
+        {
+            throw new RejectMessageException(RejectionReason.NOT_FOUND, new NullPointerException("Catalog of connector " + connectorUri + " not found. Did you send a ConnectorUpdateMessage yet?"));
+        }
+        //Grab URI of catalog containing the resource. The connector is contained in a named graph, which has the connector's ID as name
+        ParameterizedSparqlString queryString = new ParameterizedSparqlString("PREFIX ids: <https://w3id.org/idsa/core/> SELECT DISTINCT ?catalog WHERE { GRAPH ?connector { ?connector ids:resourceCatalog ?catalog . } }");
+        queryString.setIri("connector", connectorUri.toString());
+        //Internal lookup. Evaluated with the internal time budget, bypassing the cost limits and the result cache of user queries
+        ArrayList<QuerySolution> catalogs = repositoryFacade.selectQuery(queryString.toString());
+        if(catalogs.isEmpty())
         {
             throw new RejectMessageException(RejectionReason.NOT_FOUND, new NullPointerException("Catalog of connector " + connectorUri + " not found. Did you send a ConnectorUpdateMessage yet?"));
         }
         //TODO: What about multiple catalogs?
-        return new URI(catalogString.substring(catalogString.indexOf("<") + 1, catalogString.indexOf(">")));
+        return new URI(catalogs.get(0).getResource("catalog").getURI());
     }
 
     /**
@@ -120,51 +109,15 @@ public class ResourcePersistenceAndIndexing extends ResourcePersistenceAdapter {
      */
     @Override
     public boolean resourceExists(URI resourceUri) throws RejectMessageException {
-        try {
-            List<String> activeGraphs = repositoryFacade.getActiveGraphs();
-            if(activeGraphs.isEmpty()) return false;
-
-
-            StringBuilder queryString = new StringBuilder();
-            queryString.append("PREFIX ids: <https://w3id.org/idsa/core/> ");
-            queryString.append("ASK ");
-            activeGraphs.forEach(graphName -> queryString.append("FROM NAMED <").append(graphName).append("> "));
-            queryString.append("WHERE { GRAPH ?g { ")
-                    //Instead of binding the value here, use the more secure parameter binding of parameterized sparql strings
-                    //.append("BIND(<").append(resourceUri.toString()).append("> AS ?res) . ")
-                       .append("{ ?res a ids:Resource . }"
-                               + " UNION { ?res a ids:TextResource . }"
-                               + " UNION { ?res a ids:AppResource . }"
-                               + " UNION { ?res a ids:DataResource . } \n"
-                               + "  UNION { ?res a ids:AudioResource . } \n"
-                               + "  UNION { ?res a ids:ImageResource . } \n"
-                               + "  UNION { ?res a ids:VideoResource . } \n"
-                               + "  UNION { ?res a ids:SoftwareResource . }").append("?res ?p ?o . } }");
-
-
-            ParameterizedSparqlString parameterizedSparqlString = new ParameterizedSparqlString(queryString.toString());
-            //Replace variable securely
-            parameterizedSparqlString.setIri("res", resourceUri.toString());
-
-            return repositoryFacade.booleanQuery(parameterizedSparqlString.toString());
-        }
-        catch (Exception e)
-        {
-            //If an injection attack is detected, an ARQException will be thrown, see:
-            // https://jena.apache.org/documentation/query/parameterized-sparql-strings.html
-            if(e instanceof ARQException)
-            {
-                logger.warn("Possible injection attack detected", e);
-                //Do not provide any further information to the attacker
-                throw new RejectMessageException(RejectionReason.MALFORMED_MESSAGE);
-            }
-            throw new RejectMessageException(RejectionReason.INTERNAL_RECIPIENT_ERROR, e);
-        }
+        //Resolved in-process. The index holds the types and the owning connector graph of every stored resource
+        UriResolutionIndex.Entry entry = repositoryFacade.getUriResolutionIndex().get(resourceUri.toString());
+        return entry != null && entry.isResource() && repositoryFacade.getActiveGraphRegistry().isActive(entry.getGraph());
     }
 
 
     /**
-     * Function to persist and index modifications to an existing resource
+     * Function to persist and index modifications to an existing resource.
+     * Updates concerning the same connector are applied one after another, in the order in which they arrived. Updates of different connectors run in parallel
      * @param resource The updated resource which was announced to the broker
      * @param connectorUri The connector which is offering the resource
      * @throws IOException thrown, if the connection to the repository could not be established
@@ -172,27 +125,49 @@ public class ResourcePersistenceAndIndexing extends ResourcePersistenceAdapter {
      */
     @Override
     public URI updated(Resource resource, URI connectorUri) throws IOException, RejectMessageException {
-        URI catalogUri;
         logger.info("Update request received. Connector URI: " + connectorUri + " with resource " + resource.getId());
+        //Check if the connectorURI is rewritten already. If not, rewrite now
+        if(!connectorUri.toString().startsWith(componentCatalogUri.toString())) {
+            connectorUri = SelfDescriptionPersistenceAndIndexing.rewriteConnectorUri(connectorUri);
+            logger.info("Rewrote connectorUri to " + connectorUri);
+            logger.info("Connector URI did not start with our component catalog URI: " + componentCatalogUri);
+        }
+        Lock lock = repositoryFacade.getGraphLocks().get(connectorUri.toString());
+        lock.lock();
+        try {
+            return persistAndIndex(resource, connectorUri);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Internal function which should only be called from the updated function, while holding the lock of the connector
+     * @param resource The updated resource which was announced to the broker
+     * @param connectorUri The rewritten URI of the connector which is offering the resource
+     * @return The rewritten URI of the resource
+     * @throws IOException thrown, if the connection to the repository could not be established
+     * @throws RejectMessageException thrown, if the update is not permitted, or if an internal error occurs
+     */
+    private URI persistAndIndex(Resource resource, URI connectorUri) throws IOException, RejectMessageException {
+        URI catalogUri;
+        Model resourceModel;
         try {
-            //Check if the connectorURI is rewritten already. If not, rewrite now
-            if(!connectorUri.toString().startsWith(componentCatalogUri.toString())) {
-                connectorUri = SelfDescriptionPersistenceAndIndexing.rewriteConnectorUri(connectorUri);
-                logger.info("Rewrote connectorUri to " + connectorUri);
-                logger.info("Connector URI did not start with our component catalog URI: " + componentCatalogUri);
-            }
             logger.info("Fetching catalog of connector"); long start = System.currentTimeMillis();
             catalogUri = getConnectorCatalog(connectorUri);
             logger.info("Catalog found ("+(System.currentTimeMillis()-start)+" ms). URI: " + catalogUri);
 
             //Rewrite resource
-            logger.info("Serialize rewritten Resource"); start = System.currentTimeMillis();
-            SelfDescriptionPersistenceAndIndexing.replacedIds = new HashMap<>(); //Clear the map tracking all URIs that were replaced
-            resource = new Serializer().deserialize( //Parse to Java Class
-                    SelfDescriptionPersistenceAndIndexing.addSameAsStatements( //Add owl:sameAs statements for all URIs we are replacing
-                            SelfDescriptionPersistenceAndIndexing.rewriteResource(resource.toRdf(), resource, catalogUri)), //Replace URIs
-                    Resource.class); //Result of parsing should be a Resource
-            logger.info("Serialized Resource ("+(System.currentTimeMillis()-start)+" ms). URI: " + resource.getId());
+            logger.info("Rewriting Resource"); start = System.currentTimeMillis();
+            Map<URI, URI> replacedIds = new LinkedHashMap<>();
+            SelfDescriptionPersistenceAndIndexing.collectResourceIds(resource, catalogUri, replacedIds);
+            SelfDescriptionPersistenceAndIndexing.rejectCollisions(repositoryFacade, replacedIds);
+            //Replace URIs and add owl:sameAs statements for all URIs we are replacing in one pass. This model is stored as it is
+            resourceModel = SelfDescriptionPersistenceAndIndexing.rewriteIds(SelfDescriptionPersistenceAndIndexing.parseJsonLd(resource.toRdf()), replacedIds);
+            //The rewritten object is only required for the index
+            resource = new Serializer().deserialize(resourceModel, Resource.class);
+            logger.info("Rewrote Resource ("+(System.currentTimeMillis()-start)+" ms). URI: " + resource.getId());
         } catch (URISyntaxException e) {
             throw new RejectMessageException(RejectionReason.INTERNAL_RECIPIENT_ERROR, e);
         }
@@ -209,21 +184,18 @@ public class ResourcePersistenceAndIndexing extends ResourcePersistenceAdapter {
         logger.info("Rewrote resource. New URI: " + resource.getId().toString());
 
         //Try to remove the resource from Triple Store if it exists, so that it is updated properly.
-        if (resourceExists(resource.getId())) {
+        //A resource in a graph of its own does not need to be removed, as its graph is replaced as a whole
+        if (resourceExists(resource.getId()) && !repositoryFacade.getResourceGraphs(connectorUri.toString()).contains(resource.getId().toString())) {
             logger.info("Resource already exists. Removing"); long start = System.currentTimeMillis();
             removeFromTriplestore(resource.getId(), connectorUri);
             logger.info("Removed Resource ("+(System.currentTimeMillis()-start)+" ms). URI: " + resource.getId());
         }
 
-        try {
-            logger.info("Adding Resource to the TripleStore. URI: " + resource.getId()); long start = System.currentTimeMillis();
-            addToTriplestore(resource, connectorUri, catalogUri);
-            logger.info("Added to the TripleStore ("+(System.currentTimeMillis()-start)+" ms). URI: " + resource.getId());
-        } catch (URISyntaxException e) {
-            throw new RejectMessageException(RejectionReason.INTERNAL_RECIPIENT_ERROR, e);
-        }
+        logger.info("Adding Resource to the TripleStore. URI: " + resource.getId()); long start = System.currentTimeMillis();
+        addToTriplestore(resourceModel, resource.getId(), connectorUri, catalogUri);
+        logger.info("Added to the TripleStore ("+(System.currentTimeMillis()-start)+" ms). URI: " + resource.getId());
 
-        long start = System.currentTimeMillis();
+        start = System.currentTimeMillis();
         logger.info("Retrieving Reduced Connector. URI: " + connectorUri);
         Connector connector = repositoryFacade.getConnectorFromTripleStore(connectorUri);
         logger.info("Retrieved the Reduced Connector ("+(System.currentTimeMillis()-start)+" ms). URI: " + connectorUri);
@@ -237,14 +209,21 @@ public class ResourcePersistenceAndIndexing extends ResourcePersistenceAdapter {
         return resource.getId();
     }
 
-    static URI tryGetRewrittenResourceUri(URI connectorUri, URI resourceUri) throws RejectMessageException {
-        //Cannot do this as parameterised SPARQL query, as the connector URI is not  bound to a variable, but to the FROM clause instead
-        ParameterizedSparqlString pss = new ParameterizedSparqlString();
-        String queryString = "PREFIX ids: <https://w3id.org/idsa/core/> SELECT ?uri FROM NAMED <" + connectorUri.toString() + "> WHERE { GRAPH ?g { ?uri a ids:Resource . FILTER regex( str(?uri), \"" + resourceUri.hashCode() + "\" ) } } ";
-        ArrayList<QuerySolution> solution = repositoryFacade.selectQuery(queryString);
-        if(solution != null && !solution.isEmpty())
+    /**
+     * Function to look up the rewritten URI of a resource, as stored in the graph of a connector
+     * @param repositoryFacade repository (triple store) in which the resource is stored
+     * @param connectorUri The rewritten URI of the connector offering the resource
+     * @param resourceUri The original URI of the resource
+     * @return The rewritten URI of the resource
+     * @throws RejectMessageException if the resource could not be found
+     */
+    static URI tryGetRewrittenResourceUri(RepositoryFacade repositoryFacade, URI connectorUri, URI resourceUri) throws RejectMessageException {
+        //Original URIs are resolved within the graph of the connector, which also owns resources stored in graphs of their own
+        String rewrittenUri = repositoryFacade.getUriResolutionIndex().getRewrittenUri(connectorUri.toString(), resourceUri.toString());
+        UriResolutionIndex.Entry entry = rewrittenUri == null ? null : repositoryFacade.getUriResolutionIndex().get(rewrittenUri);
+        if(entry != null && entry.isResource())
         {
-            return URI.create(solution.get(0).get("uri").asResource().getURI());
+            return URI.create(rewrittenUri);
         }
         throw new RejectMessageException(RejectionReason.NOT_FOUND, new NullPointerException("The requested Resource could not be found"));
     }
@@ -270,8 +249,25 @@ public class ResourcePersistenceAndIndexing extends ResourcePersistenceAdapter {
         }
         logger.info("Check performed ("+(System.currentTimeMillis()-start)+" ms). Graph URI: " + connectorUri);
 
+        Lock lock = repositoryFacade.getGraphLocks().get(connectorUri.toString());
+        lock.lock();
+        try {
+            removeAndIndex(resourceUri, connectorUri);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
 
-        logger.info("Checking if Connector Graph is active."); start = System.currentTimeMillis();
+    /**
+     * Internal function which should only be called from the unavailable function, while holding the lock of the connector
+     * @param resourceUri A URI reference to the resource which is now unavailable
+     * @param connectorUri The connector which used to offer the resource
+     * @throws IOException if the connection to the triple store could not be established
+     * @throws RejectMessageException if the operation is not permitted, or if an internal error occurs
+     */
+    private void removeAndIndex(URI resourceUri, URI connectorUri) throws IOException, RejectMessageException {
+        logger.info("Checking if Connector Graph is active."); long start = System.currentTimeMillis();
         // Check if the overwritten ConnectorURI is in now an active graph. If this also fails, we cannot proceed the  request.
         if(!repositoryFacade.graphIsActive(connectorUri.toString()))
         {
@@ -282,7 +278,7 @@ public class ResourcePersistenceAndIndexing extends ResourcePersistenceAdapter {
         logger.info("Checking if Resource ({}) exists.", resourceUri); start = System.currentTimeMillis();
         URI originalResourceUri = resourceUri;
         if(!resourceExists(resourceUri)) {
-            resourceUri = tryGetRewrittenResourceUri(connectorUri, resourceUri);
+            resourceUri = tryGetRewrittenResourceUri(repositoryFacade, connectorUri, resourceUri);
         }
         logger.info("Finished the check for Resource ({}, originally {}) exists ("+(System.currentTimeMillis()-start)+" ms).", resourceUri, originalResourceUri);
 
@@ -315,21 +311,22 @@ public class ResourcePersistenceAndIndexing extends ResourcePersistenceAdapter {
 
     /**
      * Internal function which should only be called from the available function. It applies the changes to the triple store
-     * @param resource Resource to be added to triple store
+     * @param resourceModel Model of the resource to be added to triple store, with rewritten URIs
+     * @param resourceUri The rewritten URI of the resource
      * @param connectorUri Connector to which the resource should be added
      * @param catalogUri The URI of the catalog of the connector to which the resource should be added
-     * @throws IOException thrown, if the changes could not be applied to the triple store
      * @throws RejectMessageException thrown, if the changes are illegal, or if an internal error has occurred
      */
-    private void addToTriplestore(Resource resource, URI connectorUri, URI catalogUri) throws IOException, RejectMessageException, URISyntaxException {
+    private void addToTriplestore(Model resourceModel, URI resourceUri, URI connectorUri, URI catalogUri) throws RejectMessageException {
 
-        ResourceModelCreator.InnerModel result = resourceModelCreator.setConnectorUri(connectorUri).toModel(SelfDescriptionPersistenceAndIndexing.rewriteResource(resource.toRdf(), resource, catalogUri));
+        //The connector URI is specific to this update. As updates of different connectors run concurrently, the shared model creator must not hold it
+        ResourceModelCreator.InnerModel result = new ResourceModelCreator().setConnectorUri(connectorUri).toModel(resourceModel);
 
         //Add a statement that this Resource is part of some catalog
         //?catalog ids:offeredResource ?resource
         //subject, predicate and object of the triple
         Model m = result.getModel();
-        m.add(ResourceFactory.createResource(catalogUri.toString()), ResourceFactory.createProperty("https://w3id.org/idsa/core/offeredResource"), ResourceFactory.createResource(resource.getId().toString()));
+        m.add(ResourceFactory.createResource(catalogUri.toString()), ResourceFactory.createProperty("https://w3id.org/idsa/core/offeredResource"), ResourceFactory.createResource(resourceUri.toString()));
         repositoryFacade.addStatements(result.getModel(), result.getNamedGraph().toString());
     }
 
@@ -348,52 +345,22 @@ public class ResourcePersistenceAndIndexing extends ResourcePersistenceAdapter {
                 throw new RejectMessageException(RejectionReason.NOT_FOUND, new Exception("The resource you are trying to delete was not found, or the graph owning the resource is not active (i.e. unavailable)."));
             }
             //At this stage, we need to rewrite the URI of the resource to our REST-like scheme
-            resourceUri = tryGetRewrittenResourceUri(connectorUri, resourceUri);
+            resourceUri = tryGetRewrittenResourceUri(repositoryFacade, connectorUri, resourceUri);
+        }
+        //A resource in a graph of its own is removed by dropping that graph
+        if(repositoryFacade.removeResourceGraph(resourceUri.toString(), connectorUri.toString()))
+        {
+            return;
         }
-        //Grab "all" information about a Resource. This includes everything pointing at a resource as well as all child objects of a resource, up to a (rather arbitrary) depth of 7
-        ParameterizedSparqlString queryString = new ParameterizedSparqlString("CONSTRUCT { ?res ?p ?o . ?o ?p2 ?o2 . ?o2 ?p3 ?o3 . ?o3 ?p4 ?o4 . ?o4 ?p5 ?o5 . ?o5 ?p6 ?o6 . ?o6 ?p7 ?o7 . ?s ?p ?res . } " +
-                    "WHERE { " +
-                        //We already ensured that this graph is active
-                        //"BIND(<" + connectorUri.toString() + "> AS ?g) . " +
-                        //"BIND(<" + resourceUri.toString() + "> AS ?res) . " +
-                        "GRAPH ?g { " +
-                        "{ ?res ?p ?o . " +
-                            "OPTIONAL { ?o ?p2 ?o2 . " +
-                            "FILTER(?count = 1) "+ // more incoming triples means the respective entity ?o is used by other parts --> do not delete it as the other entity needs it.
-                            "{SELECT (COUNT(DISTINCT ?a) AS ?count) ?o WHERE {" +
-                                "?a ?p_other ?o ."+
-                            "} GROUP BY ?o"+
-                            "}"+
-                            "OPTIONAL { ?o2 ?p3 ?o3 ."+
-                                "FILTER(?count2 = 1)"+
-                                "{SELECT (COUNT(DISTINCT ?b) AS ?count2) ?o2 WHERE {"+
-                                    "?b ?p2_other ?o2 ."+
-                                "} GROUP BY ?o2"+
-                                "}"+
-                                "OPTIONAL { ?o3 ?p4 ?o4 ."+
-                                    "FILTER(?count3 = 1)"+
-                                    "{SELECT (COUNT(DISTINCT ?c) AS ?count3) ?o3 WHERE {"+
-                                        "?c ?p3_other ?o3 ."+
-                                    "} GROUP BY ?o3"+
-                                    "}"+
-                                    "OPTIONAL { ?o4 ?p5 ?o5 ."+
-                                        "FILTER(?count4 = 1)"+
-                                        "{SELECT (COUNT(DISTINCT ?d) AS ?count4) ?o4 WHERE {"+
-                                          "?d ?p4_other ?o4 ."+
-                                        "} GROUP BY ?o4"+
-                                        "}"+
-                                    "}"+
-                                "}"+
-                        "}"+
-                    "}"+
-                "}"+
-                "UNION { ?s ?p ?res . }" +
-                "}"+
-            "}");
+        //Grab "all" information about a Resource. This includes everything pointing at a resource as well as all child objects of a resource, up to a (rather arbitrary) depth of 5
+        //Child objects which are also used by other parts (more than one incoming subject) are not descended into, as the other entity needs them
+        //We already ensured that this graph is active
+        ParameterizedSparqlString queryString = new ParameterizedSparqlString("CONSTRUCT { ?s ?p ?res . } WHERE { GRAPH ?g { ?s ?p ?res . } }");
         queryString.setIri("g", connectorUri.toString());
         queryString.setIri("res", resourceUri.toString());
         try {
             Model graphQueryResult = repositoryFacade.constructQuery(queryString.toString());
+            graphQueryResult.add(repositoryFacade.getSubtrees(Collections.singletonMap(connectorUri.toString(), Collections.singleton(resourceUri.toString())), 5, true));
             if(graphQueryResult.isEmpty())
             {
                 throw new RejectMessageException(RejectionReason.NOT_FOUND, new NullPointerException("The resource you are trying to update or remove was not found. Try sending a ResourceAvailableMessage instead."));
@@ -6,11 +6,15 @@ import de.fraunhofer.iais.eis.ids.component.core.RejectMessageException;
 import de.fraunhofer.iais.eis.ids.index.common.persistence.*;
 import de.fraunhofer.iais.eis.ids.index.common.persistence.spi.Indexing;
 import de.fraunhofer.iais.eis.ids.jsonld.Serializer;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
-import org.apache.jena.rdf.model.ResourceFactory;
 import org.apache.jena.riot.RDFDataMgr;
 import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.vocabulary.OWL;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,6 +25,7 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
 
 /**
  * This class takes care of persisting and indexing any changes to connectors that are announced to the broker
@@ -38,11 +43,9 @@ public class SelfDescriptionPersistenceAndIndexing extends SelfDescriptionPersis
     private final RepositoryFacade repositoryFacade;
     private Indexing<InfrastructureComponent> indexing;
 
+    //Configuration of the URI scheme, shared with the message handlers. Per-request state must not be stored in static fields, as registrations are processed concurrently
     private static URI componentCatalogUri;
 
-    static Map<URI, URI> replacedIds;
-
-
     /**
      * Constructor
      *
@@ -171,6 +174,8 @@ public class SelfDescriptionPersistenceAndIndexing extends SelfDescriptionPersis
                     logger.error("Failed to re-index connector " + graph, e);
                 }
             }
+            //Unchanged connectors are served from the cache on periodic refreshes
+            logger.info("Refreshed indices. Connector cache hit rate: " + repositoryFacade.getConnectorCache().getHitRate() + ", query cache hit rate: " + repositoryFacade.getQueryResultCache().getHitRate());
         } catch (ConnectException ignored) {
             logger.warn("Could not connect to indexing. Ignoring recreation of index.");
         } //Prevent startup error in case no indexing was started
@@ -179,21 +184,6 @@ public class SelfDescriptionPersistenceAndIndexing extends SelfDescriptionPersis
         }
     }
 
-    /**
-     * Small utility function to replace URIs in a string
-     *
-     * @param input  String in which URI is to be replaced
-     * @param oldURI old URI
-     * @param newURI new URI
-     * @return updated string
-     */
-    static private String doReplace(String input, URI oldURI, URI newURI) {
-        //Store the original URI, so that we can add an owl:sameAs statement, indicating the original URI
-        replacedIds.put(oldURI, newURI);
-        //Make sure that we replace only "full URIs" and don't replace the URI if it is only part of a longer URI
-        return input.replace("\"" + oldURI + "\"", "\"" + newURI + "\"");
-    }
-
     /**
      * Minimal utility function to turn a connector into a URI matching the REST scheme
      *
@@ -205,19 +195,18 @@ public class SelfDescriptionPersistenceAndIndexing extends SelfDescriptionPersis
     }
 
     /**
-     * Main rewrite function, rewriting all URIs contained in a Resource object to match the REST scheme of this broker
+     * Main rewrite function, determining new URIs for all objects contained in a Resource object, matching the REST scheme of this broker
      *
-     * @param currentString Resource as String (possibly already partly translated)
-     * @param resource      Resource as Object
-     * @param catalogUri    URI of the catalog containing the Resource
-     * @return Resource in String representation with rewritten URIs
+     * @param resource    Resource as Object
+     * @param catalogUri  URI of the catalog containing the Resource
+     * @param replacedIds Map to which the original URIs and their replacements are added. URIs which are already contained are kept
      * @throws URISyntaxException, if malformed URIs are encountered
      */
-    static String rewriteResource(String currentString, Resource resource, URI catalogUri) throws URISyntaxException {
+    static void collectResourceIds(Resource resource, URI catalogUri, Map<URI, URI> replacedIds) throws URISyntaxException {
         //Was the resource rewritten already?
         if(resource.getId().toString().startsWith(componentCatalogUri.toString()))
         {
-            return currentString;
+            return;
         }
         URI resourceUri = new URI(catalogUri + "/" + resource.getId().hashCode());
 
@@ -227,7 +216,7 @@ public class SelfDescriptionPersistenceAndIndexing extends SelfDescriptionPersis
                 //Replace original URI of contract offer with a new one, which is in "our domain"
                 //This allows us to provide further details on this object if requested
                 URI contractOfferUri = new URI(resourceUri + "/" + contractOffer.getId().hashCode());
-                currentString = doReplace(currentString, contractOffer.getId(), contractOfferUri);
+                replacedIds.putIfAbsent(contractOffer.getId(), contractOfferUri);
 
                 //There can be a number of different Rules: Obligations/Duties, Prohibitions and Permissions
                 Map<Rule, URI> allRules = new HashMap<>();
@@ -258,67 +247,63 @@ public class SelfDescriptionPersistenceAndIndexing extends SelfDescriptionPersis
                 }
                 if (!allRules.isEmpty()) {
                     for (Map.Entry<Rule, URI> ruleEntry : allRules.entrySet()) {
-                        currentString = doReplace(currentString, ruleEntry.getKey().getId(), ruleEntry.getValue());
+                        replacedIds.putIfAbsent(ruleEntry.getKey().getId(), ruleEntry.getValue());
                         if (ruleEntry.getKey().getConstraint() != null && !ruleEntry.getKey().getConstraint().isEmpty()) {
                             for (AbstractConstraint abstractConstraint : ruleEntry.getKey().getConstraint()) {
-                                currentString = doReplace(currentString, abstractConstraint.getId(), new URI(ruleEntry.getValue() + "/" + abstractConstraint.getId().hashCode()));
+                                replacedIds.putIfAbsent(abstractConstraint.getId(), new URI(ruleEntry.getValue() + "/" + abstractConstraint.getId().hashCode()));
                             }
                         }
                     }
                 }
 
                 if (contractOffer.getContractDocument() != null) {
-                    currentString = doReplace(currentString, contractOffer.getContractDocument().getId(), new URI(contractOfferUri + "/" + contractOffer.getContractDocument().getId().hashCode()));
+                    replacedIds.putIfAbsent(contractOffer.getContractDocument().getId(), new URI(contractOfferUri + "/" + contractOffer.getContractDocument().getId().hashCode()));
                 }
 
             }
         }
 
         //Contract has been handled. Next, rewrite the URI of the Resource itself
-        currentString = doReplace(currentString, resource.getId(), resourceUri);
+        replacedIds.putIfAbsent(resource.getId(), resourceUri);
 
         //Iterate over endpoints. For each present, replace URI
         if (resource.getResourceEndpoint() != null && !resource.getResourceEndpoint().isEmpty()) {
             for (ConnectorEndpoint connectorEndpoint : resource.getResourceEndpoint()) {
                 URI endpointUri = new URI(resourceUri + "/" + connectorEndpoint.getId().hashCode());
                 if (connectorEndpoint.getEndpointArtifact() != null) {
-                    currentString = doReplace(currentString, connectorEndpoint.getEndpointArtifact().getId(), new URI(endpointUri + "/" + connectorEndpoint.getEndpointArtifact().getId().hashCode()));
+                    replacedIds.putIfAbsent(connectorEndpoint.getEndpointArtifact().getId(), new URI(endpointUri + "/" + connectorEndpoint.getEndpointArtifact().getId().hashCode()));
                 }
 
-                currentString = doReplace(currentString, connectorEndpoint.getId(), endpointUri);
+                replacedIds.putIfAbsent(connectorEndpoint.getId(), endpointUri);
             }
 
         }
 
-        //Iterate over Representations. If Representation present, adapt string of Representation and, if present, Artifact
+        //Iterate over Representations. If Representation present, replace URI of Representation and, if present, Artifact
         if (resource.getRepresentation() != null) {
             for (Representation representation : resource.getRepresentation()) {
                 URI representationURI = new URI(resourceUri + "/" + representation.getId().hashCode());
-                currentString = doReplace(currentString, representation.getId(), representationURI);
+                replacedIds.putIfAbsent(representation.getId(), representationURI);
                 if (representation.getInstance() != null) {
                     for (RepresentationInstance artifact : representation.getInstance()) {
-                        currentString = doReplace(currentString, artifact.getId(), new URI(representationURI + "/" + artifact.getId().hashCode()));
+                        replacedIds.putIfAbsent(artifact.getId(), new URI(representationURI + "/" + artifact.getId().hashCode()));
                     }
                 }
             }
         }
-
-        return currentString;
     }
 
     /**
-     * This function replaces URIs of an infrastructure component (component + catalog + resources + representations + artifacts)
+     * This function determines new URIs for an infrastructure component (component + catalog + resources + representations + artifacts)
      * The new URIs match a scheme suitable for a RESTful API
      *
      * @param infrastructureComponent original InfrastructureComponent
-     * @return new InfrastructureComponent with different IDs
-     * @throws IOException        if parsing of the updated component fails
+     * @return Map from the original URIs to their replacements
      * @throws URISyntaxException if an invalid URI is created during this process
      */
-    private InfrastructureComponent replaceIds(InfrastructureComponent infrastructureComponent) throws IOException, URISyntaxException, RejectMessageException {
-        //Collect all relevant IDs of IDS items (connector, catalogs, resources, representations, artifacts) replace them later
-        //New object is handled, reset the replaced IDs
-        replacedIds = new HashMap<>();
+    private Map<URI, URI> collectIds(InfrastructureComponent infrastructureComponent) throws URISyntaxException, RejectMessageException {
+        //Collect all relevant IDs of IDS items (connector, catalogs, resources, representations, artifacts), so that they can be replaced in one go
+        Map<URI, URI> replacedIds = new LinkedHashMap<>();
         //TODO: Ideally, use relative URIs: "./ + hashCode" instead, but Serializer (Jena) fails on that. We don't really want to store the full URI here, as that makes the broker un-portable
         if (infrastructureComponent.getId() == null) {
             throw new RejectMessageException(RejectionReason.MALFORMED_MESSAGE, new NullPointerException("Connector did not provide a URI"));
@@ -326,52 +311,86 @@ public class SelfDescriptionPersistenceAndIndexing extends SelfDescriptionPersis
 
         //Rewrite URI of the connector
         URI infrastructureComponentUri = rewriteConnectorUri(infrastructureComponent.getId());
-        String currentString = new Serializer().serialize(infrastructureComponent);
-        currentString = doReplace(currentString, infrastructureComponent.getId(), infrastructureComponentUri);
+        replacedIds.put(infrastructureComponent.getId(), infrastructureComponentUri);
 
         //If connector is holding catalogs, rewrite them and their contents
         if (((Connector) infrastructureComponent).getResourceCatalog() != null) {
             for (ResourceCatalog resourceCatalog : ((Connector) infrastructureComponent).getResourceCatalog()) {
                 URI catalogUri = new URI(infrastructureComponentUri + "/" + resourceCatalog.getId().hashCode());
-                currentString = doReplace(currentString, resourceCatalog.getId(), catalogUri);
+                replacedIds.putIfAbsent(resourceCatalog.getId(), catalogUri);
 
                 Set<Resource> resourcesToHandle = new HashSet<>();
-                if (resourceCatalog.getRequestedResourceAsObject() != null) {  //List<Resource> getRequestedResourceAsObject
+                if (resourceCatalog.getOfferedResourceAsObject() != null) {
                     resourcesToHandle.addAll(resourceCatalog.getOfferedResourceAsObject());
                 }
-                if (resourceCatalog.getRequestedResource() != null) {  //List<Resource> getRequestedResourceAsObject
+                if (resourceCatalog.getRequestedResourceAsObject() != null) {
                     resourcesToHandle.addAll(resourceCatalog.getRequestedResourceAsObject());
                 }
                 for (Resource currentResource : resourcesToHandle) {
-                    currentString = rewriteResource(currentString, currentResource, catalogUri);
+                    collectResourceIds(currentResource, catalogUri, replacedIds);
                 }
             }
         }
-        //Now that we replaced all the IDs, add owl:sameAs statements and then parse
-        return new Serializer().deserialize(addSameAsStatements(currentString), InfrastructureComponent.class);
+        return replacedIds;
     }
 
     /**
-     * This internal function adds the replaced URIs as owl:sameAs statements to preserve the original URIs
+     * Parses the JSON-LD representation of an object, as obtained via toRdf, into a model
      *
-     * @param jsonLd RDF string after replacements
-     * @return Apache Jena Model with additional sameAs statements
+     * @param jsonLd JSON-LD representation of the object
+     * @return Apache Jena Model of the object
      */
-    static Model addSameAsStatements(String jsonLd) {
+    static Model parseJsonLd(String jsonLd) {
         Model model = ModelFactory.createDefaultModel();
         RDFDataMgr.read(model, new ByteArrayInputStream(jsonLd.getBytes(StandardCharsets.UTF_8)), RDFLanguages.JSONLD);
-        for (Map.Entry<URI, URI> entry : replacedIds.entrySet()) {
-            model.add(ResourceFactory.createStatement( //Add a new triple to the model
-                    ResourceFactory.createResource(entry.getValue().toString()), //Subject: The new URI
-                    ResourceFactory.createProperty("http://www.w3.org/2002/07/owl#sameAs"), //Predicate: owl:sameAs
-                    ResourceFactory.createResource(entry.getKey().toString()))); //Object: The original URI
-        }
         return model;
     }
 
+    /**
+     * Replaces URIs in a single pass over all triples of a model, and adds owl:sameAs statements to preserve the original URIs.
+     * Only URIs of nodes are replaced, literals are never modified
+     *
+     * @param model       Model in which the URIs are to be replaced. It is not modified
+     * @param replacedIds Map from the original URIs to their replacements
+     * @return New model with replaced URIs and additional sameAs statements
+     */
+    static Model rewriteIds(Model model, Map<URI, URI> replacedIds) {
+        Map<Node, Node> replacements = new HashMap<>();
+        replacedIds.forEach((originalUri, newUri) -> replacements.put(NodeFactory.createURI(originalUri.toString()), NodeFactory.createURI(newUri.toString())));
+        Model rewrittenModel = ModelFactory.createDefaultModel();
+        rewrittenModel.setNsPrefixes(model.getNsPrefixMap());
+        Graph rewrittenGraph = rewrittenModel.getGraph();
+        model.getGraph().find().forEachRemaining(triple -> rewrittenGraph.add(Triple.create(
+                replacements.getOrDefault(triple.getSubject(), triple.getSubject()),
+                triple.getPredicate(),
+                replacements.getOrDefault(triple.getObject(), triple.getObject()))));
+        //Subject: The new URI, Object: The original URI
+        replacements.forEach((original, replacement) -> rewrittenGraph.add(Triple.create(replacement, OWL.sameAs.asNode(), original)));
+        return rewrittenModel;
+    }
+
+    /**
+     * Rejects an update, if one of the URIs it is rewritten to is already taken by an object with a different original URI.
+     * As rewritten URIs are derived from hash codes, two different objects could otherwise silently overwrite each other
+     *
+     * @param repositoryFacade Repository whose index of rewritten URIs is checked
+     * @param replacedIds      Map from the original URIs to their replacements
+     * @throws RejectMessageException if a rewritten URI is already taken
+     */
+    static void rejectCollisions(RepositoryFacade repositoryFacade, Map<URI, URI> replacedIds) throws RejectMessageException {
+        for (Map.Entry<URI, URI> replacedId : replacedIds.entrySet()) {
+            UriResolutionIndex.Entry collision = repositoryFacade.getUriResolutionIndex().findCollision(replacedId.getKey().toString(), replacedId.getValue().toString());
+            if (collision != null) {
+                LoggerFactory.getLogger(SelfDescriptionPersistenceAndIndexing.class).error("Cannot rewrite " + replacedId.getKey() + " to " + replacedId.getValue() + ", as this URI is already taken by " + collision.getOriginalUri());
+                throw new RejectMessageException(RejectionReason.INTERNAL_RECIPIENT_ERROR, new IllegalStateException("URI collision while rewriting " + replacedId.getKey()));
+            }
+        }
+    }
+
 
     /**
-     * Function to persist and index modifications to an existing connector
+     * Function to persist and index modifications to an existing connector.
+     * Updates of the same connector are applied one after another, in the order in which they arrived. Updates of different connectors run in parallel
      *
      * @param infrastructureComponent The updated connector which was announced to the broker
      * @throws IOException            thrown, if the connection to the repository could not be established
@@ -380,22 +399,47 @@ public class SelfDescriptionPersistenceAndIndexing extends SelfDescriptionPersis
     @Override
     public URI updated(InfrastructureComponent infrastructureComponent) throws IOException, RejectMessageException {
         URI connectorUri = rewriteConnectorUri(infrastructureComponent.getId());
+        Lock lock = repositoryFacade.getGraphLocks().get(connectorUri.toString());
+        lock.lock();
+        try {
+            return persistAndIndex(infrastructureComponent, connectorUri);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Internal function which should only be called from the updated function, while holding the lock of the connector
+     *
+     * @param infrastructureComponent The updated connector which was announced to the broker
+     * @param connectorUri            The rewritten URI of the connector
+     * @return The rewritten URI of the connector
+     * @throws IOException            thrown, if the connection to the repository could not be established
+     * @throws RejectMessageException thrown, if the update is not permitted, or if an internal error occurs
+     */
+    private URI persistAndIndex(InfrastructureComponent infrastructureComponent, URI connectorUri) throws IOException, RejectMessageException {
         boolean wasActive = repositoryFacade.graphIsActive(connectorUri.toString());
         boolean existed = repositoryFacade.graphExists(connectorUri.toString());
 
         //Replace URIs in this infrastructureComponent with URIs matching our scheme. This is required for a RESTful API
         //TODO: Do the same for resources (or at ParIS, for participants)
+        Model rewrittenModel;
         try {
-            infrastructureComponent = replaceIds(infrastructureComponent);
+            Map<URI, URI> replacedIds = collectIds(infrastructureComponent);
+            rejectCollisions(repositoryFacade, replacedIds);
+            rewrittenModel = rewriteIds(parseJsonLd(infrastructureComponent.toRdf()), replacedIds);
         } catch (URISyntaxException e) {
             throw new IOException(e);
         }
+        //The rewritten model is stored as it is. The rewritten object is only required for the index
+        infrastructureComponent = new Serializer().deserialize(rewrittenModel, InfrastructureComponent.class);
         if (!existed) {
             logger.info("New connector registered: " + infrastructureComponent.getId().toString());
-            addToTriplestore(infrastructureComponent.toRdf());
+            addToTriplestore(rewrittenModel);
         } else {
             logger.info("Updating a connector which is already known to the broker: " + infrastructureComponent.getId().toString());
-            updateTriplestore(infrastructureComponent.toRdf());
+            updateTriplestore(rewrittenModel);
         }
         //We need to reflect the changes in the index.
         //If the connector was passive before, the document was deleted from the index, so we need to recreate it
@@ -426,23 +470,22 @@ public class SelfDescriptionPersistenceAndIndexing extends SelfDescriptionPersis
     /**
      * Internal function which should only be called from the available function. It applies the changes to the triple store
      *
-     * @param selfDescriptionJsonLD String representation of the connector to be added to triple store
-     * @throws IOException            thrown, if the changes could not be applied to the triple store
+     * @param selfDescription Model of the connector to be added to triple store
      * @throws RejectMessageException thrown, if the changes are illegal, or if an internal error has occurred
      */
-    private void addToTriplestore(String selfDescriptionJsonLD) throws IOException, RejectMessageException {
-        ConnectorModelCreator.InnerModel result = connectorModelCreator.toModel(selfDescriptionJsonLD);
+    private void addToTriplestore(Model selfDescription) throws RejectMessageException {
+        ConnectorModelCreator.InnerModel result = connectorModelCreator.toModel(selfDescription);
         repositoryFacade.addStatements(result.getModel(), result.getNamedGraph().toString());
     }
 
     /**
      * Internal function which should only be called from the updated function. It applies the changes to the triple store
      *
-     * @param selfDescriptionJsonLD String representation of the connector which needs to be updated
-     * @throws IOException thrown, if the changes could not be applied to the triple store
+     * @param selfDescription Model of the connector which needs to be updated
+     * @throws RejectMessageException thrown, if the changes are illegal, or if an internal error has occurred
      */
-    private void updateTriplestore(String selfDescriptionJsonLD) throws IOException, RejectMessageException {
-        ConnectorModelCreator.InnerModel result = connectorModelCreator.toModel(selfDescriptionJsonLD);
+    private void updateTriplestore(Model selfDescription) throws RejectMessageException {
+        ConnectorModelCreator.InnerModel result = connectorModelCreator.toModel(selfDescription);
         repositoryFacade.replaceStatements(result.getModel(), result.getNamedGraph().toString());
     }
 
@@ -457,14 +500,21 @@ public class SelfDescriptionPersistenceAndIndexing extends SelfDescriptionPersis
     public void unavailable(URI issuerConnector) throws IOException, RejectMessageException {
         //Turn graph into a passive one
         URI rewrittenConnectorUri = rewriteConnectorUri(issuerConnector);
-        if (repositoryFacade.graphIsActive(rewrittenConnectorUri.toString())) {
-            repositoryFacade.changePassivationOfGraph(rewrittenConnectorUri.toString(), false);
-        } else {
-            throw new RejectMessageException(RejectionReason.NOT_FOUND, new NullPointerException("The connector you are trying to remove was not found"));
-        }
+        Lock lock = repositoryFacade.getGraphLocks().get(rewrittenConnectorUri.toString());
+        lock.lock();
+        try {
+            if (repositoryFacade.graphIsActive(rewrittenConnectorUri.toString())) {
+                repositoryFacade.changePassivationOfGraph(rewrittenConnectorUri.toString(), false);
+            } else {
+                throw new RejectMessageException(RejectionReason.NOT_FOUND, new NullPointerException("The connector you are trying to remove was not found"));
+            }
 
-        //Remove the passivated graph from indexing. Upon re-activating, this will be undone
-        indexing.delete(rewrittenConnectorUri);
+            //Remove the passivated graph from indexing. Upon re-activating, this will be undone
+            indexing.delete(rewrittenConnectorUri);
+        }
+        finally {
+            lock.unlock();
+        }
     }
 
 
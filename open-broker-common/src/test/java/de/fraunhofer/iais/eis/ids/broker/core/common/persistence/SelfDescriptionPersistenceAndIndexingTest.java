@@ -0,0 +1,100 @@
+package de.fraunhofer.iais.eis.ids.broker.core.common.persistence;
+
+import de.fraunhofer.iais.eis.*;
+import de.fraunhofer.iais.eis.ids.component.core.RejectMessageException;
+import de.fraunhofer.iais.eis.ids.index.common.persistence.NullIndexing;
+import de.fraunhofer.iais.eis.ids.index.common.persistence.RepositoryFacade;
+import de.fraunhofer.iais.eis.util.Util;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Property;
+import org.apache.jena.rdf.model.ResourceFactory;
+import org.apache.jena.vocabulary.OWL;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class SelfDescriptionPersistenceAndIndexingTest {
+
+    private RepositoryFacade repositoryFacade;
+    private SelfDescriptionPersistenceAndIndexing selfDescriptionPersistence;
+
+    @BeforeEach
+    public void prepare() throws URISyntaxException {
+        repositoryFacade = new RepositoryFacade();
+        selfDescriptionPersistence = new SelfDescriptionPersistenceAndIndexing(repositoryFacade,
+                new URI("http://example.org/broker/catalog/"), new NullIndexing<>(), 100);
+    }
+
+    @Test
+    public void rewriteIdsRemapsNodesButNotLiterals() {
+        Model model = ModelFactory.createDefaultModel();
+        Property p = model.createProperty("http://example.org/p");
+        org.apache.jena.rdf.model.Resource original = model.createResource("http://example.org/original");
+        org.apache.jena.rdf.model.Resource child = model.createResource("http://example.org/child");
+        original.addProperty(p, child);
+        child.addProperty(p, "http://example.org/original");
+
+        Map<URI, URI> replacedIds = new LinkedHashMap<>();
+        replacedIds.put(URI.create("http://example.org/original"), URI.create("http://example.org/broker/catalog/1"));
+        replacedIds.put(URI.create("http://example.org/child"), URI.create("http://example.org/broker/catalog/1/2"));
+        Model rewrittenModel = SelfDescriptionPersistenceAndIndexing.rewriteIds(model, replacedIds);
+
+        org.apache.jena.rdf.model.Resource rewritten = rewrittenModel.createResource("http://example.org/broker/catalog/1");
+        org.apache.jena.rdf.model.Resource rewrittenChild = rewrittenModel.createResource("http://example.org/broker/catalog/1/2");
+        Assertions.assertTrue(rewrittenModel.contains(rewritten, p, rewrittenChild));
+        //Strings which happen to equal a replaced URI are kept
+        Assertions.assertTrue(rewrittenModel.contains(rewrittenChild, p, "http://example.org/original"));
+        //The original URIs are preserved via owl:sameAs only
+        Assertions.assertTrue(rewrittenModel.contains(rewritten, OWL.sameAs, ResourceFactory.createResource("http://example.org/original")));
+        Assertions.assertTrue(rewrittenModel.contains(rewrittenChild, OWL.sameAs, ResourceFactory.createResource("http://example.org/child")));
+        Assertions.assertFalse(rewrittenModel.contains(ResourceFactory.createResource("http://example.org/original"), null, (org.apache.jena.rdf.model.RDFNode) null));
+        Assertions.assertEquals(4, rewrittenModel.size());
+    }
+
+    @Test
+    public void firstReplacementWins() throws URISyntaxException {
+        Resource resource = new DataResourceBuilder(new URI("http://example.org/resource1")).build();
+        Map<URI, URI> replacedIds = new LinkedHashMap<>();
+        //The same resource offered in two catalogs
+        SelfDescriptionPersistenceAndIndexing.collectResourceIds(resource, new URI("http://example.org/broker/catalog/1/10"), replacedIds);
+        SelfDescriptionPersistenceAndIndexing.collectResourceIds(resource, new URI("http://example.org/broker/catalog/1/20"), replacedIds);
+
+        Assertions.assertEquals(new URI("http://example.org/broker/catalog/1/10/" + resource.getId().hashCode()), replacedIds.get(resource.getId()));
+    }
+
+    @Test
+    public void offeredAndRequestedResourcesAreRewritten() throws URISyntaxException, IOException, RejectMessageException {
+        //Catalogs with only offered or only requested resources. Each kind used to be collected only if the other kind was present
+        Connector connector = new BaseConnectorBuilder(new URI("http://example.org/connector1"))
+                ._maintainerAsUri_(new URI("http://example.org/participant1"))
+                ._curatorAsUri_(new URI("http://example.org/participant1"))
+                ._outboundModelVersion_("4.0.0")
+                ._inboundModelVersion_(Util.asList("4.0.0"))
+                ._resourceCatalog_(Util.asList(
+                        new ResourceCatalogBuilder()
+                                ._offeredResourceAsObject_(Util.asList(new DataResourceBuilder(new URI("http://example.org/offered")).build()))
+                                .build(),
+                        new ResourceCatalogBuilder()
+                                ._requestedResourceAsObject_(Util.asList(new DataResourceBuilder(new URI("http://example.org/requested")).build()))
+                                .build()))
+                ._securityProfile_(SecurityProfile.BASE_SECURITY_PROFILE)
+                ._hasDefaultEndpoint_(new ConnectorEndpointBuilder()._accessURL_(new URI("https://example.org/endpoint")).build())
+                .build();
+        selfDescriptionPersistence.updated(connector);
+
+        for(String resource : Util.asList("http://example.org/offered", "http://example.org/requested"))
+        {
+            Assertions.assertTrue(repositoryFacade.booleanQuery("ASK WHERE { GRAPH ?g { ?rewritten <" + OWL.sameAs.getURI() + "> <" + resource + "> . " +
+                    "FILTER(STRSTARTS(STR(?rewritten), \"http://example.org/broker/catalog/\")) } }"), resource);
+            Assertions.assertFalse(repositoryFacade.booleanQuery("ASK WHERE { GRAPH ?g { <" + resource + "> ?p ?o . } }"), resource);
+        }
+    }
+
+}
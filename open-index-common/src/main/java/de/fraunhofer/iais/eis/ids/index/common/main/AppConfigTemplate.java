@@ -5,6 +5,7 @@ import de.fraunhofer.iais.eis.ids.component.core.SelfDescriptionProvider;
 import de.fraunhofer.iais.eis.ids.component.interaction.multipart.MultipartComponentInteractor;
 import de.fraunhofer.iais.eis.ids.index.common.persistence.NullIndexing;
 import de.fraunhofer.iais.eis.ids.index.common.persistence.spi.Indexing;
+import de.fraunhofer.iais.eis.ids.index.common.util.SparqlEndpointSettings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,6 +22,7 @@ public abstract class AppConfigTemplate {
     final private Logger logger = LoggerFactory.getLogger(AppConfigTemplate.class);
 
     public String sparqlEndpointUrl = "";
+    public SparqlEndpointSettings sparqlEndpointSettings = new SparqlEndpointSettings();
     public String contextDocumentUrl;
     public URI catalogUri;
     public SelfDescriptionProvider selfDescriptionProvider;
@@ -101,6 +103,17 @@ public abstract class AppConfigTemplate {
         return this;
     }
 
+    /**
+     * Call this function to tune the connections to the SPARQL endpoint, such as the size of the connection pool. If none are set, defaults are used
+     * @param sparqlEndpointSettings Settings for the connections to the SPARQL endpoint
+     * @return AppConfig as Builder Object
+     */
+    public AppConfigTemplate sparqlEndpointSettings(SparqlEndpointSettings sparqlEndpointSettings) {
+        this.sparqlEndpointSettings = sparqlEndpointSettings;
+        logger.info("SPARQL connection pool size set to " + sparqlEndpointSettings.getMaxPoolSize());
+        return this;
+    }
+
 
     /**
      * URL of the context document to be used for JSON-LD context
@@ -0,0 +1,121 @@
+package de.fraunhofer.iais.eis.ids.index.common.persistence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-process registry of the states of all named graphs (i.e. connectors / participants) held by the triple store.
+ * The registry is loaded from the admin graph once at startup and then kept up to date by the RepositoryFacade whenever the state of a graph changes.
+ * This way, questions like "is this connector active?" can be answered without a round trip to the triple store
+ */
+public class ActiveGraphRegistry {
+
+    /**
+     * Possible states of a named graph
+     */
+    public enum GraphState {
+        /** The graph exists and is neither passivated nor deleted */
+        ACTIVE,
+        /** The graph exists, but was passivated (e.g. via a ConnectorUnavailableMessage) */
+        PASSIVE,
+        /** No such graph is known */
+        UNKNOWN
+    }
+
+    private final Map<String, GraphState> graphStates = new ConcurrentHashMap<>();
+
+    //Immutable snapshot of all active graphs, rebuilt on every change. Reads are far more frequent than state changes
+    private volatile List<String> activeGraphs = Collections.emptyList();
+
+    //Incremented on every change, allowing others to detect that the set of active graphs has changed
+    private volatile long version = 0;
+
+    /**
+     * Replaces the content of the registry entirely, e.g. when loading the states from the admin graph at startup
+     * @param states Map from graph URI to state. Graphs not contained in the map are considered UNKNOWN
+     */
+    public synchronized void load(Map<String, GraphState> states) {
+        graphStates.clear();
+        states.forEach((graph, state) -> {
+            if(state != GraphState.UNKNOWN)
+            {
+                graphStates.put(graph, state);
+            }
+        });
+        refreshSnapshot();
+    }
+
+    /**
+     * Sets the state of a single graph. Must only be called once the change was successfully persisted
+     * @param graphUri URI of the named graph
+     * @param active true, if the graph is now active, false if it is now passive
+     */
+    public synchronized void setState(String graphUri, boolean active) {
+        GraphState newState = active ? GraphState.ACTIVE : GraphState.PASSIVE;
+        if(graphStates.put(graphUri, newState) != newState)
+        {
+            refreshSnapshot();
+        }
+    }
+
+    /**
+     * Retrieves the state of a graph
+     * @param graphUri URI of the named graph
+     * @return State of the graph. UNKNOWN, if the graph is not known
+     */
+    public GraphState getState(String graphUri) {
+        return graphStates.getOrDefault(graphUri, GraphState.UNKNOWN);
+    }
+
+    /**
+     * @param graphUri URI of the named graph
+     * @return true, if the graph exists and is active
+     */
+    public boolean isActive(String graphUri) {
+        return getState(graphUri) == GraphState.ACTIVE;
+    }
+
+    /**
+     * @param graphUri URI of the named graph
+     * @return true, if the graph exists (active or passive)
+     */
+    public boolean exists(String graphUri) {
+        return getState(graphUri) != GraphState.UNKNOWN;
+    }
+
+    /**
+     * @return Unmodifiable list of the URIs of all active graphs
+     */
+    public List<String> getActiveGraphs() {
+        return activeGraphs;
+    }
+
+    /**
+     * @return Number of active graphs
+     */
+    public int getActiveGraphCount() {
+        return activeGraphs.size();
+    }
+
+    /**
+     * @return Counter which is increased whenever the state of any graph changes
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    private void refreshSnapshot() {
+        List<String> newActiveGraphs = new ArrayList<>();
+        graphStates.forEach((graph, state) -> {
+            if(state == GraphState.ACTIVE)
+            {
+                newActiveGraphs.add(graph);
+            }
+        });
+        activeGraphs = Collections.unmodifiableList(newActiveGraphs);
+        version++;
+    }
+}
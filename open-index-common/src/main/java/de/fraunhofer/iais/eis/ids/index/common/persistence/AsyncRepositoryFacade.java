@@ -0,0 +1,204 @@
+package de.fraunhofer.iais.eis.ids.index.common.persistence;
+
+import de.fraunhofer.iais.eis.RejectionReason;
+import de.fraunhofer.iais.eis.ids.component.core.RejectMessageException;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.rdf.model.Model;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class provides non-blocking access to the triple store. Operations of the RepositoryFacade are executed on a dedicated, bounded executor
+ * and their results are returned as CompletableFuture. This allows to evaluate independent lookups in parallel, instead of waiting for one round trip after the other
+ */
+public class AsyncRepositoryFacade implements AutoCloseable {
+    final private Logger logger = LoggerFactory.getLogger(AsyncRepositoryFacade.class);
+
+    private final RepositoryFacade repositoryFacade;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Operation on the RepositoryFacade which is to be executed asynchronously
+     * @param <T> Type of the result
+     */
+    @FunctionalInterface
+    public interface RepositoryOperation<T> {
+        T apply(RepositoryFacade repositoryFacade) throws RejectMessageException;
+    }
+
+    /**
+     * Operation on the RepositoryFacade without a result
+     */
+    @FunctionalInterface
+    public interface RepositoryUpdate {
+        void apply(RepositoryFacade repositoryFacade) throws RejectMessageException;
+    }
+
+    /**
+     * Constructor
+     * @param repositoryFacade RepositoryFacade through which the operations are executed
+     * @param threads Maximum number of operations executed concurrently. Should not exceed the size of the connection pool, as further operations would only wait for a connection
+     * @param queueCapacity Maximum number of operations waiting for execution. Further operations are rejected, so that an overloaded triple store does not cause an unbounded backlog
+     */
+    public AsyncRepositoryFacade(RepositoryFacade repositoryFacade, int threads, int queueCapacity) {
+        if(threads <= 0)
+        {
+            throw new IllegalArgumentException("Argument threads should be >0!");
+        }
+        this.repositoryFacade = repositoryFacade;
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "repository-async-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity), threadFactory);
+        //Threads are only kept while there is work to do
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Executes an arbitrary operation on the RepositoryFacade asynchronously
+     * @param operation The operation to be executed
+     * @param <T> Type of the result
+     * @return Future which is completed with the result of the operation, or completed exceptionally with the exception thrown by the operation.
+     * If too many operations are pending, the future is completed exceptionally with a RejectMessageException
+     */
+    public <T> CompletableFuture<T> supply(RepositoryOperation<T> operation) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(operation.apply(repositoryFacade));
+                }
+                catch (Throwable e)
+                {
+                    //Never leave the caller waiting forever
+                    future.completeExceptionally(e);
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            logger.warn("Too many pending operations on the triple store. Rejecting operation.");
+            future.completeExceptionally(new RejectMessageException(RejectionReason.TEMPORARILY_NOT_AVAILABLE, new Exception("The broker is currently overloaded. Please try again later.")));
+        }
+        return future;
+    }
+
+    /**
+     * Executes an arbitrary operation without a result on the RepositoryFacade asynchronously
+     * @param operation The operation to be executed
+     * @return Future which is completed once the operation has finished
+     */
+    public CompletableFuture<Void> run(RepositoryUpdate operation) {
+        return supply(facade -> {
+            operation.apply(facade);
+            return null;
+        });
+    }
+
+    /**
+     * Evaluates an ASK SPARQL query asynchronously
+     * @param query ASK query as String
+     * @return Future providing the result of the query
+     */
+    public CompletableFuture<Boolean> ask(String query) {
+        return supply(facade -> facade.booleanQuery(query));
+    }
+
+    /**
+     * Evaluates a SELECT SPARQL query asynchronously
+     * @param query SELECT query as String
+     * @return Future providing the result of the query (List of bindings, tabular form)
+     */
+    public CompletableFuture<ArrayList<QuerySolution>> select(String query) {
+        return supply(facade -> facade.selectQuery(query));
+    }
+
+    /**
+     * Evaluates a CONSTRUCT SPARQL query asynchronously
+     * @param query CONSTRUCT query as String
+     * @return Future providing the resulting graph
+     */
+    public CompletableFuture<Model> construct(String query) {
+        return supply(facade -> facade.constructQuery(query));
+    }
+
+    /**
+     * Replaces the content of a named graph asynchronously
+     * @param newStatements The statements which should be stored in the named graph
+     * @param namedGraphUri The named graph to be updated
+     * @return Future which is completed once the update has been applied
+     */
+    public CompletableFuture<Void> update(Model newStatements, String namedGraphUri) {
+        return run(facade -> facade.replaceStatements(newStatements, namedGraphUri));
+    }
+
+    /**
+     * Waits for the result of an asynchronous operation. Exceptions of the operation are rethrown as they were thrown by the operation
+     * @param future Future of the operation
+     * @param <T> Type of the result
+     * @return Result of the operation
+     * @throws RejectMessageException if the operation threw a RejectMessageException, or if the wait was interrupted
+     */
+    public static <T> T join(CompletableFuture<T> future) throws RejectMessageException {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RejectMessageException(RejectionReason.INTERNAL_RECIPIENT_ERROR, e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if(cause instanceof RejectMessageException)
+            {
+                throw (RejectMessageException) cause;
+            }
+            if(cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            if(cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            throw new RejectMessageException(RejectionReason.INTERNAL_RECIPIENT_ERROR, (Exception) cause);
+        }
+    }
+
+    /**
+     * @return Number of operations waiting for execution
+     */
+    public int getQueuedOperations() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stops accepting new operations. Operations which are already queued are still executed. Waits for them for up to 10 seconds
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -6,11 +6,16 @@ import de.fraunhofer.iais.eis.ResourceCatalogBuilder;
 import de.fraunhofer.iais.eis.ids.component.core.RejectMessageException;
 import de.fraunhofer.iais.eis.ids.jsonld.Serializer;
 import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.Property;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.vocabulary.RDF;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.List;
-
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Class which provides functionality to generate an ids:Catalog object directly from the triplestore.
@@ -41,32 +46,26 @@ public class CatalogProvider {
     public ResourceCatalog generateCatalogFromTripleStore() throws RejectMessageException {
         //TODO: only offer so far, not request
         try {
-            List<String> activeGraphs = repositoryFacade.getActiveGraphs();
-            if(activeGraphs.isEmpty())
+            if(repositoryFacade.getSize() == 0)
             {
                 //Make sure that nothing is returned in case of all graphs being inactive
                 return new ResourceCatalogBuilder().build();
             }
-            //Iteratively build up this monstrous query string
-            StringBuilder queryString = new StringBuilder();
-            queryString.append("PREFIX ids: <https://w3id.org/idsa/core/> ");
-
-            //We need a CONSTRUCT query to get a graph as result
-            //The many optionals are required to achieve "get all nodes up to X hops away"
-            //TODO: Instead of using optionals, this can also be done by using unions, see: http://www.snee.com/bobdc.blog/2014/10/dropping-optional-blocks-from.html
-            queryString.append("CONSTRUCT { <").append(catalogUri).append("> a ids:ResourceCatalog . <").append(catalogUri).append("> ids:offeredResource ?resource . ?resource ?p ?o . ?o ?p2 ?o2 . ?o2 ?p3 ?o3 . ?o3 ?p4 ?o4 . ?o4 ?p5 ?o5 . ?o5 ?p6 ?o6 . ?o6 ?p7 ?o7 . ?o7 ?p8 ?o8 . ?o8 ?p9 ?o9 . ?o9 ?p10 ?o10 . ?o10 ?p11 ?o11 . ?o11 ?p12 ?o12 . } ");
-
-            //Only include active graphs. Passivated graphs (or deleted graphs) need to be excluded from catalog
-            activeGraphs.forEach(graphName -> queryString.append("FROM NAMED <").append(graphName).append("> "));
-
-            //The WHERE part corresponding to the CONSTRUCT section
-            //Note that even the resource is optional. This prevents an error in case no resource is known yet
-            queryString.append("WHERE { GRAPH ?g { OPTIONAL { ?catalog ids:offeredResource ?resource . ?resource ?p ?o . OPTIONAL { ?o ?p2 ?o2 . OPTIONAL { ?o2 ?p3 ?o3 . OPTIONAL { ?o3 ?p4 ?o4 . OPTIONAL { ?o4 ?p5 ?o5 . OPTIONAL { ?o5 ?p6 ?o6 . OPTIONAL { ?o6 ?p7 ?o7 . OPTIONAL { ?o7 ?p8 ?o8 . OPTIONAL { ?o8 ?p9 ?o9 . OPTIONAL { ?o9 ?p10 ?o10 . OPTIONAL { ?o10 ?p11 ?o11 . OPTIONAL { ?o11 ?p12 ?o12 . } } } } } } } } } } } } } } ");
+            //Find the resources offered in active graphs. Passivated graphs (or deleted graphs) need to be excluded from catalog
+            Map<String, Set<String>> resourcesByGraph = new HashMap<>();
+            repositoryFacade.selectQuery("PREFIX ids: <https://w3id.org/idsa/core/> SELECT ?g ?resource WHERE { " + repositoryFacade.getActiveGraphPattern("?g") +
+                    "GRAPH ?g { ?catalog ids:offeredResource ?resource . FILTER(isIRI(?resource)) } }",
+                    solution -> resourcesByGraph.computeIfAbsent(solution.getResource("g").getURI(), graph -> new HashSet<>()).add(solution.getResource("resource").getURI()));
 
-            //Fire query
-            Model result = repositoryFacade.constructQuery(queryString.toString());
+            //Get all nodes up to 12 hops away from each resource in a single traversal, rather than via 12 nested OPTIONAL blocks
+            Model result = repositoryFacade.getSubtrees(resourcesByGraph, 12, false);
+            Resource catalog = result.createResource(catalogUri);
+            catalog.addProperty(RDF.type, result.createResource("https://w3id.org/idsa/core/ResourceCatalog"));
+            Property offeredResource = result.createProperty("https://w3id.org/idsa/core/offeredResource");
+            resourcesByGraph.values().forEach(resources -> resources.forEach(resource -> catalog.addProperty(offeredResource, result.createResource(resource))));
 
             //Transform the result to a collection, then turn it into JSON-LD and give it to the serializer for parsing
+            ConstructQueryResultHandler.removeMaterializedSupertypes(result);
             return new Serializer().deserialize(ConstructQueryResultHandler.graphToString(result), ResourceCatalog.class);
         }
         catch (Exception e)
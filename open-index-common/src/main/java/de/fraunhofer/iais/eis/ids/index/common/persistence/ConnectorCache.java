@@ -0,0 +1,174 @@
+package de.fraunhofer.iais.eis.ids.index.common.persistence;
+
+import de.fraunhofer.iais.eis.Connector;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-through cache of Connector objects, as obtained from the triple store, so that they are not re-read and re-parsed on every access.
+ * Each graph has a version which is increased whenever the graph is written. Entries are only valid for the version they were read at,
+ * so that a result read concurrently with a write can never be served after the write.
+ * The size of the cache is bounded by the number of triples of the cached connectors, evicting the least recently used ones first.
+ * Cached objects are shared between callers and must not be modified
+ */
+public class ConnectorCache {
+
+    private final long maxTriples;
+    //Increased with every write. The version of a graph is the generation at which it was last written
+    private final AtomicLong generation = new AtomicLong();
+    //Only kept for a bounded number of graphs. Graphs which are no longer tracked were last written at or before prunedGeneration
+    private final Map<String, Long> versions = new ConcurrentHashMap<>();
+    private volatile long prunedGeneration = 0;
+    private static final int MAX_TRACKED_GRAPHS = 10000;
+    //Access ordered, i.e. iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedTriples = 0;
+
+    //Metrics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static class Entry {
+        private final long version;
+        private final Connector connector;
+        private final long triples;
+
+        private Entry(long version, Connector connector, long triples) {
+            this.version = version;
+            this.connector = connector;
+            this.triples = triples;
+        }
+    }
+
+    /**
+     * Constructor
+     * @param maxTriples Maximum number of triples of all cached connectors together. 0 disables the cache
+     */
+    public ConnectorCache(long maxTriples) {
+        this.maxTriples = maxTriples;
+    }
+
+    /**
+     * Retrieves the current version of a graph. Must be obtained before reading the graph, and passed to put afterwards
+     * @param graphUri URI of the named graph
+     * @return Current version of the graph
+     */
+    public long getVersion(String graphUri) {
+        //Versions of graphs which are no longer tracked only ever grow, so that versions obtained before can never match again by accident
+        return versions.getOrDefault(graphUri, prunedGeneration);
+    }
+
+    /**
+     * Retrieves a cached connector
+     * @param graphUri URI of the named graph of the connector
+     * @return The connector, or null, if it is not cached at the current version of its graph
+     */
+    public Connector get(String graphUri) {
+        long version = getVersion(graphUri);
+        synchronized (this)
+        {
+            Entry entry = entries.get(graphUri);
+            if(entry != null && entry.version == version)
+            {
+                hits.incrementAndGet();
+                return entry.connector;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Adds a connector to the cache. Ignored, if the graph has been written since the version was obtained
+     * @param graphUri URI of the named graph of the connector
+     * @param version Version of the graph, obtained via getVersion before the graph was read
+     * @param connector The connector
+     * @param triples Number of triples the connector was read from, used as its size
+     */
+    public void put(String graphUri, long version, Connector connector, long triples) {
+        if(triples > maxTriples)
+        {
+            return;
+        }
+        synchronized (this)
+        {
+            if(version != getVersion(graphUri))
+            {
+                return;
+            }
+            Entry previous = entries.put(graphUri, new Entry(version, connector, triples));
+            cachedTriples += triples - (previous == null ? 0 : previous.triples);
+            Iterator<Entry> leastRecentlyUsed = entries.values().iterator();
+            while(cachedTriples > maxTriples && leastRecentlyUsed.hasNext())
+            {
+                cachedTriples -= leastRecentlyUsed.next().triples;
+                leastRecentlyUsed.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Invalidates the cached connector of a graph. To be called whenever the graph is written
+     * @param graphUri URI of the named graph
+     */
+    public void invalidate(String graphUri) {
+        synchronized (this)
+        {
+            versions.put(graphUri, generation.incrementAndGet());
+            if(versions.size() > MAX_TRACKED_GRAPHS)
+            {
+                //Otherwise, every graph ever written would be tracked forever
+                prunedGeneration = generation.get();
+                versions.clear();
+            }
+            Entry previous = entries.remove(graphUri);
+            if(previous != null)
+            {
+                cachedTriples -= previous.triples;
+            }
+        }
+    }
+
+    /**
+     * @return Number of connectors served from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Number of connectors which had to be read from the triple store
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Share of the accesses served from the cache, between 0 and 1
+     */
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * @return Number of connectors removed from the cache to stay within the size limit
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return Number of triples of all currently cached connectors
+     */
+    public synchronized long getCachedTriples() {
+        return cachedTriples;
+    }
+}
@@ -6,14 +6,20 @@ import de.fraunhofer.iais.eis.RejectionReason;
 import de.fraunhofer.iais.eis.ids.component.core.RejectMessageException;
 import de.fraunhofer.iais.eis.ids.jsonld.Serializer;
 import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.rdf.model.Statement;
 import org.apache.jena.riot.Lang;
 import org.apache.jena.riot.RDFFormat;
 import org.apache.jena.riot.RDFWriter;
+import org.apache.jena.vocabulary.RDF;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Class which provides some utility for handling SPARQL construct query results, such as parsing the result to a Connector, Participant or Catalog
@@ -55,6 +61,7 @@ public class ConstructQueryResultHandler {
         logger.info("Starting deserialization");
 
         try {
+            removeMaterializedSupertypes(result);
             Connector connector = s.deserialize(graphToString(result), Connector.class);
             logger.info("Deserialization complete");
             return connector;
@@ -66,6 +73,24 @@ public class ConstructQueryResultHandler {
         }
     }
 
+    /**
+     * Removes the supertypes added by ModelCreator.materializeSupertypes from the instances of their subclasses, e.g. ids:Resource from an ids:DataResource.
+     * Objects are deserialized by their types, which must therefore be the most specific ones only
+     * @param model Model from which the statements are removed
+     */
+    public static void removeMaterializedSupertypes(Model model)
+    {
+        List<Statement> supertypeStatements = new ArrayList<>();
+        model.listStatements(null, RDF.type, (RDFNode) null).forEachRemaining(statement -> {
+            Resource supertype = statement.getObject().isURIResource() ? INFOMODEL.SUPERTYPES.get(statement.getObject().asResource()) : null;
+            if(supertype != null)
+            {
+                supertypeStatements.add(model.createStatement(statement.getSubject(), RDF.type, supertype));
+            }
+        });
+        model.remove(supertypeStatements);
+    }
+
     /**
      * Utility function for turning an Apache Jena Model into a JSON-LD String
      * @param model Input model
@@ -0,0 +1,227 @@
+package de.fraunhofer.iais.eis.ids.index.common.persistence;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of serialized descriptions, as returned by the DescriptionProvider.
+ * The serialized bytes are held outside of the Java heap in direct buffers, so that large catalogs do not add to the garbage collection load.
+ * Each entry depends on the graphs it was read from and is invalidated as soon as one of them is written. Entries depending on all graphs
+ * (such as the catalog listing all connectors) are invalidated by any write. The size is bounded by the bytes of all entries together,
+ * evicting the least recently used ones first
+ */
+public class DescriptionCache {
+
+    private final long maxBytes;
+    //Increased with every write. Used to detect writes which happened while a description was being generated
+    private final AtomicLong generation = new AtomicLong();
+    //Generation of the last write per graph. Only kept for a bounded number of graphs. Writes which are no longer tracked happened at or before prunedGeneration
+    private final Map<String, Long> lastWritten = new ConcurrentHashMap<>();
+    private volatile long prunedGeneration = 0;
+    private static final int MAX_TRACKED_GRAPHS = 10000;
+    //Access ordered, i.e. iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Set<String>> keysByGraph = new HashMap<>();
+    private final Set<String> keysDependingOnAllGraphs = new HashSet<>();
+    private long cachedBytes = 0;
+
+    //Metrics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static class Entry {
+        private final ByteBuffer content;
+        private final Set<String> graphs;
+
+        private Entry(ByteBuffer content, Set<String> graphs) {
+            this.content = content;
+            this.graphs = graphs;
+        }
+    }
+
+    /**
+     * Constructor
+     * @param maxBytes Maximum size of all cached descriptions together, in bytes. 0 disables the cache
+     */
+    public DescriptionCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Creates the key of a description
+     * @param requestedElement URI of the described element
+     * @param depth Depth to which child elements are included
+     * @param language Name of the serialization
+     * @return Key for get and put
+     */
+    public static String key(String requestedElement, int depth, String language) {
+        return depth + " " + language + " " + requestedElement;
+    }
+
+    /**
+     * Marks the start of generating a description. Must be obtained before reading from the triple store, and passed to put afterwards
+     * @return Token identifying the state of the triple store at which generation started
+     */
+    public long begin() {
+        return generation.get();
+    }
+
+    /**
+     * Retrieves a cached description
+     * @param key Key of the description
+     * @return The serialized description, or null, if it is not cached
+     */
+    public String get(String key) {
+        ByteBuffer content;
+        synchronized (this)
+        {
+            Entry entry = entries.get(key);
+            content = entry == null ? null : entry.content.duplicate();
+        }
+        if(content == null)
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        byte[] bytes = new byte[content.remaining()];
+        content.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Adds a description to the cache. Ignored, if one of the graphs it depends on has been written since generation started
+     * @param key Key of the description
+     * @param start Token obtained via begin before the description was generated
+     * @param description The serialized description
+     * @param graphs The graphs the description was read from, or null, if it depends on all graphs
+     */
+    public void put(String key, long start, String description, Collection<String> graphs) {
+        byte[] bytes = description.getBytes(StandardCharsets.UTF_8);
+        if(bytes.length > maxBytes)
+        {
+            return;
+        }
+        ByteBuffer content = ByteBuffer.allocateDirect(bytes.length);
+        content.put(bytes).flip();
+        synchronized (this)
+        {
+            //If writes before the start are no longer tracked, any of them might have concerned the graphs of the description
+            if(graphs == null || start < prunedGeneration ? generation.get() != start : graphs.stream().anyMatch(graph -> lastWritten.getOrDefault(graph, 0L) > start))
+            {
+                return;
+            }
+            remove(key);
+            Set<String> dependencies = graphs == null ? null : new HashSet<>(graphs);
+            entries.put(key, new Entry(content.asReadOnlyBuffer(), dependencies));
+            cachedBytes += bytes.length;
+            if(dependencies == null)
+            {
+                keysDependingOnAllGraphs.add(key);
+            }
+            else
+            {
+                dependencies.forEach(graph -> keysByGraph.computeIfAbsent(graph, g -> new HashSet<>()).add(key));
+            }
+            Iterator<Map.Entry<String, Entry>> leastRecentlyUsed = entries.entrySet().iterator();
+            while(cachedBytes > maxBytes && leastRecentlyUsed.hasNext())
+            {
+                Map.Entry<String, Entry> evicted = leastRecentlyUsed.next();
+                leastRecentlyUsed.remove();
+                forget(evicted.getKey(), evicted.getValue());
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Invalidates all descriptions depending on a graph. To be called whenever the graph is written
+     * @param graphUri URI of the named graph
+     */
+    public void invalidate(String graphUri) {
+        synchronized (this)
+        {
+            lastWritten.put(graphUri, generation.incrementAndGet());
+            if(lastWritten.size() > MAX_TRACKED_GRAPHS)
+            {
+                //Otherwise, every graph ever written would be tracked forever
+                prunedGeneration = generation.get();
+                lastWritten.clear();
+            }
+            Set<String> keys = new HashSet<>(keysDependingOnAllGraphs);
+            keys.addAll(keysByGraph.getOrDefault(graphUri, Collections.emptySet()));
+            keys.forEach(this::remove);
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if(entry != null)
+        {
+            forget(key, entry);
+        }
+    }
+
+    /**
+     * Removes the bookkeeping of an entry which has already been removed from the entries
+     * @param key Key of the removed entry
+     * @param entry The removed entry
+     */
+    private void forget(String key, Entry entry) {
+        //The memory of a direct buffer is freed once the buffer is garbage collected
+        cachedBytes -= entry.content.capacity();
+        if(entry.graphs == null)
+        {
+            keysDependingOnAllGraphs.remove(key);
+        }
+        else
+        {
+            entry.graphs.forEach(graph -> {
+                Set<String> keys = keysByGraph.get(graph);
+                if(keys != null && keys.remove(key) && keys.isEmpty())
+                {
+                    keysByGraph.remove(graph);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return Number of descriptions served from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Number of descriptions which had to be generated
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Number of descriptions removed from the cache to stay within the size limit
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return Size of all currently cached descriptions, in bytes
+     */
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+}
@@ -8,14 +8,22 @@ import de.fraunhofer.iais.eis.ids.component.core.RejectMessageException;
 import org.apache.jena.query.ParameterizedSparqlString;
 import org.apache.jena.query.QuerySolution;
 import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.Property;
+import org.apache.jena.rdf.model.Resource;
 import org.apache.jena.riot.Lang;
 import org.apache.jena.sparql.ARQException;
+import org.apache.jena.vocabulary.RDF;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.URI;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * Class to provide IDS descriptions of known object, such as registered connectors, participants, a self description of the broker/ParIS itself or its catalog
@@ -75,100 +83,70 @@ public class DescriptionProvider {
             logger.info("Self-description has been requested");
             return selfDescription.toRdf();
         }
-        StringBuilder queryString = new StringBuilder();
-        queryString.append("PREFIX ids: <https://w3id.org/idsa/core/> \n");
-        queryString.append("PREFIX owl: <http://www.w3.org/2002/07/owl#> \n"); //sameAs statements
+        //Descriptions are served from the cache until one of the graphs they were read from is written
+        DescriptionCache descriptionCache = repositoryFacade.getDescriptionCache();
+        String cacheKey = DescriptionCache.key(requestedElement.toString(), depth, desiredLanguage.getName());
+        String cachedDescription = descriptionCache.get(cacheKey);
+        if(cachedDescription != null)
+        {
+            return cachedDescription;
+        }
+        long cacheStart = descriptionCache.begin();
+
+        //Nodes from which the description is collected, grouped by the (active) graph in which they occur
+        Map<String, Set<String>> rootsByGraph = new HashMap<>();
+        Consumer<QuerySolution> addRoot = solution -> {
+            if(solution.get("s0").isURIResource())
+            {
+                rootsByGraph.computeIfAbsent(solution.getResource("g").getURI(), graph -> new HashSet<>()).add(solution.getResource("s0").getURI());
+            }
+        };
+        //Only active graphs may be bound to ?g. If there is none, this results in an empty result set
+        String activeGraphPattern = repositoryFacade.getActiveGraphPattern("?g");
 
         //Check if we are at the root. This top path, which is the catalog URI to the outside, is not persisted as such in the triple store, but generated upon request
-        //If the root URI has been requested, we need to create specific SPARQL CONSTRUCT queries to serve a connector catalog
-        boolean atRoot = false;
+        //If the root URI has been requested, we need to generate a connector catalog
+        boolean atRoot = requestedElement.equals(catalogUri) || (requestedElement.toString() + "/").equals(catalogUri.toString());
+        String catalogType;
+        String catalogMemberProperty;
 
-        if(requestedElement.equals(catalogUri) || (requestedElement.toString() + "/").equals(catalogUri.toString()))
+        if(atRoot)
         {
             logger.info("Catalog has been requested (with depth: " + depth + "): " + requestedElement);
-            atRoot = true;
+            //Supertypes such as ids:Connector are materialized when storing an object, so that a single type matches all subclasses
+            String memberType;
             if(selfDescription instanceof ParIS)
             {
-                queryString.append("CONSTRUCT { <").append(catalogUri).append("> a ids:ParticipantCatalog ; ids:member ?s0 . ?s0 ?p0 ?o0 .");
+                catalogType = "https://w3id.org/idsa/core/ParticipantCatalog";
+                catalogMemberProperty = "https://w3id.org/idsa/core/member";
+                memberType = "ids:Participant";
             }
             else if(selfDescription instanceof Broker)
             {
-                queryString.append("CONSTRUCT { <").append(catalogUri).append("> a ids:ConnectorCatalog ; ids:listedConnector ?s0 . ?s0 ?p0 ?o0 .");
+                catalogType = "https://w3id.org/idsa/core/ConnectorCatalog";
+                catalogMemberProperty = "https://w3id.org/idsa/core/listedConnector";
+                memberType = "ids:Connector";
             }
             else
             {
                 throw new RuntimeException("Could not determine which catalog type should be returned.");
             }
+            repositoryFacade.selectQuery("PREFIX ids: <https://w3id.org/idsa/core/> SELECT DISTINCT ?g ?s0 WHERE { " + activeGraphPattern +
+                    "GRAPH ?g { ?s0 a " + memberType + " . } }", addRoot);
         }
-        else
+        else //Specific element was requested, which we can retrieve "as-is" (unlike the catalog, which we need to generate on the fly)
         {
             logger.info("Custom element has been requested (with depth  " + depth + "): " + requestedElement);
-            queryString.append("CONSTRUCT { ?s0 ?p0 ?o0 . ");
-        }
-
-        for(int i = 0; i < depth; i++)
-        {
-            queryString.append("?o").append(i).append(" ?p").append(i + 1).append(" ?o").append(i + 1).append(" . ");
-        }
-
-        //Close CONSTRUCT brackets
-        queryString.append(" } ");
-        List<String> activeGraphs = repositoryFacade.getActiveGraphs();
-        activeGraphs.forEach(graphName -> queryString.append("FROM NAMED <").append(graphName).append("> "));
-        if(activeGraphs.isEmpty())
-        {
-            //Make sure that there is a FROM statement. If there is no FROM statement, it is assumed that ALL graphs should be used
-            //This will result in an empty result set, except for the few triples we have constructed above
-            queryString.append("FROM NAMED <http://dummy.org/non-existing-graph> ");
-        }
-        queryString.append("WHERE { ");
-
-        if(!atRoot) //Specific element was requested, which we can retrieve "as-is" (unlike the catalog, which we need to generate on the fly)
-        {
-            //first ?s0 ?p0 ?o0 NOT in optional block. If unknown resource is requested, error should be thrown
-
+            catalogType = null;
+            catalogMemberProperty = null;
+            //Also include owl:sameAs equivalent objects. Make sure that the rewritten URI is used as ?s0
             //Do not explicitly bind the requestedElement. Instead, do this via Parameterised Sparql String for security
-            //queryString.append("BIND(<").append(requestedElement.toString())
-            //        //Also include owl:sameAs equivalent objects
-            //        .append("> AS ?requestedElement) .");
-            queryString.append(" GRAPH ?g {  { ?requestedElement ?p0 ?o0 . } UNION { ?s owl:sameAs ?requestedElement ; ?p0 ?o0 . } ")
-                    .append(" BIND ( IF (BOUND(?s), ?s, ?requestedElement) AS ?s0) ."); //Make sure that the rewritten URI is used as s0
-        }
-
-
-        else //Need to construct a catalog, so we query for all active connectors / participants we know
-        {
-            if(selfDescription instanceof Broker)
-                //First ?s0 ?p0 ?o0 IS in optional block. If catalog is empty, no error should be thrown
-                //At this stage, the ontology class hierarchy is not respected in queries. Therefore, we will list all Connector types
-                queryString.append("GRAPH ?g { OPTIONAL { ?s0 ?p0 ?o0 . ?s0 a ?s0type . FILTER( ?s0type IN ( ids:BaseConnector, ids:TrustedConnector, ids:Connector ) ) . ");
-            else
-                //We're a ParIS
-                queryString.append("GRAPH ?g { OPTIONAL { ?s0 ?p0 ?o0 . ?s0 a ?s0type . FILTER( ?s0type = ids:Participant ) . ");
-        }
-
-        for(int i = 0; i < depth; i++)
-        {
-            queryString.append("OPTIONAL { ?o").append(i).append(" ?p").append(i + 1).append(" ?o").append(i + 1).append(" ");
-        }
-        queryString.append("} ".repeat(Math.max(0, depth)));
-
-        queryString.append("} }"); //Brackets from graph and where
-
-        if(atRoot)
-        {
-            //At root, there is one more OPTIONAL
-            queryString.append(" }");
-        }
-
-        //Fire construct query against triple store
-        Model result;
-        if(!atRoot)
-        {
+            ParameterizedSparqlString parameterizedSparqlString = new ParameterizedSparqlString("PREFIX owl: <http://www.w3.org/2002/07/owl#> " +
+                    "SELECT DISTINCT ?g ?s0 WHERE { " + activeGraphPattern +
+                    "GRAPH ?g { { ?requestedElement ?p0 ?o0 . } UNION { ?s owl:sameAs ?requestedElement ; ?p0 ?o0 . } BIND ( IF (BOUND(?s), ?s, ?requestedElement) AS ?s0) . } }");
             try {
-                ParameterizedSparqlString parameterizedSparqlString = new ParameterizedSparqlString(queryString.toString());
                 parameterizedSparqlString.setIri("requestedElement", requestedElement.toString());
-                result = repositoryFacade.constructQuery(parameterizedSparqlString.toString());
+                repositoryFacade.selectQuery(parameterizedSparqlString.toString(), addRoot);
             }
             catch (ARQException e)
             {
@@ -176,9 +154,17 @@ public class DescriptionProvider {
                 throw new RejectMessageException(RejectionReason.MALFORMED_MESSAGE);
             }
         }
-        else
+
+        //The element itself is one hop, each level of child elements one more. Collected in a single traversal instead of nested OPTIONAL blocks
+        Model result = repositoryFacade.getSubtrees(rootsByGraph, depth + 1, false);
+
+        if(atRoot)
         {
-            result = repositoryFacade.constructQuery(queryString.toString());
+            //The catalog itself is generated, even if it is empty
+            Resource catalog = result.createResource(catalogUri.toString());
+            catalog.addProperty(RDF.type, result.createResource(catalogType));
+            Property member = result.createProperty(catalogMemberProperty);
+            rootsByGraph.values().forEach(members -> members.forEach(s0 -> catalog.addProperty(member, result.createResource(s0))));
         }
 
         //Check if requested element exists in our persistence
@@ -188,8 +174,14 @@ public class DescriptionProvider {
             throw new RejectMessageException(RejectionReason.NOT_FOUND, new NullPointerException("The requested resource was not found"));
         }
 
+        //Supertypes are only materialized for querying. Clients receive the types which were announced
+        ConstructQueryResultHandler.removeMaterializedSupertypes(result);
+
         //Turn the result into a string and return
-        return ConstructQueryResultHandler.graphToString(result, desiredLanguage);
+        String description = ConstructQueryResultHandler.graphToString(result, desiredLanguage);
+        //The catalog lists all active graphs, and thus depends on all of them
+        descriptionCache.put(cacheKey, cacheStart, description, atRoot ? null : rootsByGraph.keySet());
+        return description;
 
     }
 
@@ -207,16 +199,12 @@ public class DescriptionProvider {
         StringBuilder queryString = new StringBuilder();
         queryString.append("PREFIX owl: <http://www.w3.org/2002/07/owl#> \n"); //sameAs statements
         queryString.append("SELECT ?type ");
-        List<String> activeGraphs = repositoryFacade.getActiveGraphs();
-        if(activeGraphs.isEmpty())
+        if(repositoryFacade.getSize() == 0)
         {
             throw new RejectMessageException(RejectionReason.NOT_FOUND, new NullPointerException("Could not retrieve type of " + requestedElement));
         }
-        for(String activeGraph : activeGraphs)
-        {
-            queryString.append("FROM NAMED <").append(activeGraph).append("> ");
-        }
-        queryString.append(" WHERE { GRAPH ?g { { ?s a ?type . } UNION { ?s0 owl:sameAs ?s . ?s0 a ?type . } } } ");
+        queryString.append(" WHERE { ").append(repositoryFacade.getActiveGraphPattern("?g"));
+        queryString.append("GRAPH ?g { { ?s a ?type . } UNION { ?s0 owl:sameAs ?s . ?s0 a ?type . } } } ");
         ParameterizedSparqlString parameterizedSparqlString = new ParameterizedSparqlString(queryString.toString());
         parameterizedSparqlString.setIri("s", requestedElement.toString());
         try {
@@ -225,12 +213,23 @@ public class DescriptionProvider {
                 throw new RejectMessageException(RejectionReason.NOT_FOUND, new NullPointerException("Could not retrieve type of " + requestedElement));
             }
 
-            if (result.size() > 1) {
+            Set<String> types = new LinkedHashSet<>();
+            result.forEach(solution -> types.add(solution.get("type").toString()));
+            //Supertypes materialized when storing an object (e.g. ids:Resource for an ids:DataResource) are dropped in favour of the most specific type
+            result.forEach(solution -> {
+                Resource supertype = solution.get("type").isURIResource() ? INFOMODEL.SUPERTYPES.get(solution.getResource("type")) : null;
+                if(supertype != null)
+                {
+                    types.remove(supertype.getURI());
+                }
+            });
+
+            if (types.size() > 1) {
                 RejectMessageException e = new RejectMessageException(RejectionReason.TOO_MANY_RESULTS, new Exception("Could not determine type of " + requestedElement + " (multiple options)"));
                 logger.error("Could not determine the type of a requested element.", e);
                 throw e;
             }
-            return result.get(0).get("type").toString();
+            return types.iterator().next();
         }
         catch (ARQException e)
         {
@@ -20,6 +20,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 /**
@@ -132,15 +133,22 @@ public class DescriptionRequestHandler implements MessageHandler<DescriptionRequ
                 }
             }
         }
+        //For REST interface, it is useful to know the class of the requested element
+        //This lookup is independent of the retrieval of the element itself, so both are evaluated in parallel
+        URI requestedElement = messageAndPayload.getMessage().getRequestedElement();
+        CompletableFuture<String> typeOfRequestedElementFuture = null;
+        if(requestedElement != null)
+        {
+            typeOfRequestedElementFuture = descriptionProvider.repositoryFacade.getAsync().supply(repositoryFacade -> descriptionProvider.getTypeOfRequestedElement(requestedElement));
+        }
         //Retrieve object with possibly custom depth
-        payload = descriptionProvider.getElement(messageAndPayload.getMessage().getRequestedElement(), depth, outputLanguage);
+        payload = descriptionProvider.getElement(requestedElement, depth, outputLanguage);
         try {
             //If this point is reached, the retrieval of the requestedElement was successful (otherwise RejectMessageException is thrown)
-            //For REST interface, it is useful to know the class of the requested element
             String typeOfRequestedElement;
-            if(messageAndPayload.getMessage().getRequestedElement() != null)
+            if(typeOfRequestedElementFuture != null)
             {
-                typeOfRequestedElement = descriptionProvider.getTypeOfRequestedElement(messageAndPayload.getMessage().getRequestedElement());
+                typeOfRequestedElement = AsyncRepositoryFacade.join(typeOfRequestedElementFuture);
             }
             else
             {
@@ -2,11 +2,23 @@ package de.fraunhofer.iais.eis.ids.index.common.persistence;
 
 import de.fraunhofer.iais.eis.RejectionReason;
 import de.fraunhofer.iais.eis.ids.component.core.RejectMessageException;
+import de.fraunhofer.iais.eis.ids.index.common.util.QueryCostAnalyzer;
 import de.fraunhofer.iais.eis.ids.index.common.util.SparqlQueryRewriter;
 import org.apache.jena.query.Query;
-import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.QueryCancelledException;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFWriter;
+import org.apache.jena.sparql.engine.http.QueryExceptionHTTP;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
 
 /**
  * This class can evaluate incoming SPARQL queries. Queries are rewritten to not expose information from inactive connectors
@@ -25,39 +37,183 @@ public class GenericQueryEvaluator {
     }
 
     /**
-     * Evaluate a given query, which will be rewritten within this function
+     * Evaluate a given query, which will be rewritten within this function.
+     * The result is collected in memory before it is returned, so that a client disconnecting in the meantime does not cancel the query.
+     * Only the user query time budget bounds it. Use the overload writing to an output stream to cancel queries whose client went away
      * @param queryString Original query to be evaluated
-     * @return Result of a rewritten query
+     * @return Result of a rewritten query. Graphs are returned as JSON-LD, tabular results as TSV
      * @throws RejectMessageException if the query cannot be evaluated, or if it is not of ASK, SELECT, CONSTRUCT, or DESCRIBE type
      */
     public String getResults(String queryString) throws RejectMessageException {
-        //Evaluate the reformulated query
-        String reformulatedQuery = SparqlQueryRewriter.reformulate(queryString, repositoryFacade);
-        Query originalQuery = QueryFactory.create(queryString);
-        //Determine the type of query. Depending on it, we will receive different result formats
-        //SELECT query provides a tabular result. Returning variable bindings in table form
-        if(originalQuery.isSelectType())
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        getResults(queryString, outputStream, Lang.JSONLD);
+        return outputStream.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Evaluate a given query, which will be rewritten within this function, and write the result to an output stream.
+     * If a streaming writer exists for the requested RDF language (e.g. N-Triples or Turtle), triples of CONSTRUCT and DESCRIBE queries are written as they arrive,
+     * so that the result is never held in memory as a whole. Otherwise (e.g. JSON-LD), the resulting graph is collected before it is written.
+     * Results are cached until the next write to the triple store, so that repeated queries are answered without evaluating them again.
+     * If writing to the output stream fails (e.g. because the client disconnected), the running query is cancelled
+     * @param queryString Original query to be evaluated
+     * @param outputStream Stream to which the result is written
+     * @param graphLang RDF language in which results of CONSTRUCT and DESCRIBE queries should be written. Tabular results are always written as TSV
+     * @throws RejectMessageException if the query cannot be evaluated, or if it is not of ASK, SELECT, CONSTRUCT, or DESCRIBE type
+     */
+    public void getResults(String queryString, OutputStream outputStream, Lang graphLang) throws RejectMessageException {
+        QueryResultCache queryResultCache = repositoryFacade.getQueryResultCache();
+        //Must be obtained before the active graphs are determined and the query is evaluated
+        long storeVersion = repositoryFacade.getStoreVersion();
+        //Rejects malformed queries and queries against an empty index, even if their result is cached. The type of the reformulated query is the same as the one of the original query
+        Query reformulatedQuery = SparqlQueryRewriter.reformulateQuery(queryString, repositoryFacade);
+        String cacheKey = QueryResultCache.key(reformulatedQuery, graphLang);
+        byte[] cachedResult = queryResultCache.get(cacheKey, storeVersion);
+        if(cachedResult != null)
         {
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            repositoryFacade.selectQuery(reformulatedQuery, outputStream);
-            return new String(outputStream.toByteArray());
+            try {
+                outputStream.write(cachedResult);
+            }
+            catch (IOException e)
+            {
+                throw new RejectMessageException(RejectionReason.INTERNAL_RECIPIENT_ERROR, e);
+            }
+            return;
         }
-        //DESCRIBE provides an RDF Graph as result, see https://www.w3.org/TR/rdf-sparql-query/#describe
-        if(originalQuery.isDescribeType())
+        QueryResultCache.RecordingOutputStream recordingOutputStream = queryResultCache.record(outputStream);
+        evaluateAdmitted(reformulatedQuery, recordingOutputStream, graphLang);
+        queryResultCache.put(cacheKey, storeVersion, recordingOutputStream);
+    }
+
+    /**
+     * Admits a rewritten query according to its cost, and evaluates it
+     * @param reformulatedQuery The rewritten query
+     * @param outputStream Stream to which the result is written
+     * @param graphLang RDF language in which results of CONSTRUCT and DESCRIBE queries should be written
+     * @throws RejectMessageException if the query is too expensive or cannot be evaluated
+     */
+    private void evaluateAdmitted(Query reformulatedQuery, OutputStream outputStream, Lang graphLang) throws RejectMessageException {
+        //Queries which are too expensive are rejected, queries without LIMIT are limited
+        QueryCostAnalyzer queryCostAnalyzer = repositoryFacade.getQueryCostAnalyzer();
+        QueryCostAnalyzer.QueryCost cost = queryCostAnalyzer.analyze(reformulatedQuery);
+        Query admittedQuery = queryCostAnalyzer.admit(reformulatedQuery, cost);
+        //User queries get their own time budget, so that a single expensive query cannot block the triple store
+        long timeoutMillis = repositoryFacade.getUserQueryTimeoutMillis();
+        if(!cost.isExpensive())
         {
-            return ConstructQueryResultHandler.graphToString(repositoryFacade.describeQuery(reformulatedQuery));
+            evaluate(admittedQuery, outputStream, graphLang, timeoutMillis);
+            return;
+        }
+        //Expensive queries share a few slots, leaving the remaining connections to registrations and cheap queries
+        //The time spent waiting for a slot counts towards the time budget
+        long remainingMillis = queryCostAnalyzer.enterLowPriorityLane(timeoutMillis);
+        try {
+            evaluate(admittedQuery, outputStream, graphLang, remainingMillis);
         }
-        //CONSTRUCT also provides an RDF Graph as result. Here, the returned structure is explicitly provided by the query
-        if(originalQuery.isConstructType())
+        finally {
+            queryCostAnalyzer.leaveLowPriorityLane();
+        }
+    }
+
+    /**
+     * Evaluates an admitted query and writes the result to an output stream
+     * @param reformulatedQuery The rewritten and admitted query
+     * @param outputStream Stream to which the result is written
+     * @param graphLang RDF language in which results of CONSTRUCT and DESCRIBE queries should be written
+     * @param timeoutMillis Time budget of the query in milliseconds
+     * @throws RejectMessageException if the query cannot be evaluated, or if it is not of ASK, SELECT, CONSTRUCT, or DESCRIBE type
+     */
+    private void evaluate(Query reformulatedQuery, OutputStream outputStream, Lang graphLang, long timeoutMillis) throws RejectMessageException {
+        try {
+            //Determine the type of query. Depending on it, we will receive different result formats
+            //SELECT query provides a tabular result. Returning variable bindings in table form
+            if(reformulatedQuery.isSelectType())
+            {
+                repositoryFacade.selectQuery(reformulatedQuery, outputStream, timeoutMillis);
+                return;
+            }
+            //DESCRIBE provides an RDF Graph as result, see https://www.w3.org/TR/rdf-sparql-query/#describe
+            //CONSTRUCT also provides an RDF Graph as result. Here, the returned structure is explicitly provided by the query
+            if(reformulatedQuery.isDescribeType() || reformulatedQuery.isConstructType())
+            {
+                RDFFormat streamingFormat = StreamRDFWriter.defaultSerialization(graphLang);
+                if(streamingFormat != null)
+                {
+                    //Triples flow from the triple store straight into the output stream
+                    StreamRDF writer = StreamRDFWriter.getWriterStream(outputStream, streamingFormat);
+                    if(reformulatedQuery.isDescribeType())
+                    {
+                        repositoryFacade.describeQuery(reformulatedQuery, writer, timeoutMillis);
+                    }
+                    else
+                    {
+                        repositoryFacade.constructQuery(reformulatedQuery, writer, timeoutMillis);
+                    }
+                }
+                else
+                {
+                    //Writers for this language need the entire graph (e.g. JSON-LD, to compact the result)
+                    Model result = reformulatedQuery.isDescribeType() ? repositoryFacade.describeQuery(reformulatedQuery, timeoutMillis) : repositoryFacade.constructQuery(reformulatedQuery, timeoutMillis);
+                    RDFDataMgr.write(outputStream, result, graphLang);
+                }
+                return;
+            }
+            //ASK returns a boolean value
+            if(reformulatedQuery.isAskType())
+            {
+                try {
+                    outputStream.write(String.valueOf(repositoryFacade.booleanQuery(reformulatedQuery, timeoutMillis)).getBytes(StandardCharsets.UTF_8));
+                }
+                catch (IOException e)
+                {
+                    throw new RejectMessageException(RejectionReason.INTERNAL_RECIPIENT_ERROR, e);
+                }
+                return;
+            }
+        }
+        catch (QueryCancelledException e)
         {
-            return ConstructQueryResultHandler.graphToString(repositoryFacade.constructQuery(reformulatedQuery));
+            //The query exceeded its time budget
+            throw new RejectMessageException(RejectionReason.TEMPORARILY_NOT_AVAILABLE, new Exception("Query could not be evaluated within its time budget of " + timeoutMillis + " ms. Try a more specific query.", e));
         }
-        //ASK returns a boolean value
-        if(originalQuery.isAskType())
+        catch (QueryExceptionHTTP e)
         {
-            return String.valueOf(repositoryFacade.booleanQuery(reformulatedQuery));
+            if(isTimeout(e))
+            {
+                //The triple store did not answer in time
+                throw new RejectMessageException(RejectionReason.TEMPORARILY_NOT_AVAILABLE, new Exception("Query could not be evaluated within its time budget of " + timeoutMillis + " ms. Try a more specific query.", e));
+            }
+            if(e.getResponseCode() >= 400 && e.getResponseCode() < 500)
+            {
+                //The triple store refused the query itself, e.g. due to a syntax error
+                throw new RejectMessageException(RejectionReason.BAD_PARAMETERS, e);
+            }
+            //The triple store is unreachable or failed
+            throw new RejectMessageException(RejectionReason.INTERNAL_RECIPIENT_ERROR, e);
         }
         //Other query types are not supported. Particularly, this rejects DELETE queries
         throw new RejectMessageException(RejectionReason.BAD_PARAMETERS, new Exception("Could not determine query type from SPARQL query (ASK, SELECT, CONSTRUCT, DESCRIBE)"));
     }
+
+    /**
+     * Determines whether a remote triple store failed to answer a query in time
+     * @param e The exception thrown while evaluating the query remotely
+     * @return true, if the triple store cancelled the query (Fuseki answers with 503), a proxy or the triple store reported a timeout, or the response was not read in time
+     */
+    private static boolean isTimeout(QueryExceptionHTTP e)
+    {
+        int responseCode = e.getResponseCode();
+        if(responseCode == 503 || responseCode == 504 || responseCode == 408)
+        {
+            return true;
+        }
+        for(Throwable cause = e.getCause(); cause != null; cause = cause.getCause())
+        {
+            if(cause instanceof SocketTimeoutException)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -0,0 +1,38 @@
+package de.fraunhofer.iais.eis.ids.index.common.persistence;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks ordering concurrent updates of the same named graph, e.g. two updates of the same connector, or an update of a connector and of one of its resources.
+ * Each graph is mapped to one of a fixed number of locks, so that updates of different graphs almost always run in parallel, without keeping a lock per graph.
+ * The locks are fair, i.e. updates of the same graph are applied in the order in which they arrived
+ */
+public class GraphLocks {
+
+    private final Lock[] stripes;
+
+    /**
+     * Constructor
+     * @param stripes Number of locks. Rounded up to the next power of two. The more locks, the less likely different graphs share a lock
+     */
+    public GraphLocks(int stripes) {
+        this.stripes = new Lock[stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1];
+        for(int i = 0; i < this.stripes.length; i++)
+        {
+            this.stripes[i] = new ReentrantLock(true);
+        }
+    }
+
+    /**
+     * Retrieves the lock of a graph. Callers must lock and unlock it themselves, typically in a try/finally block
+     * @param graphUri URI of the named graph, such as the (rewritten) URI of a connector
+     * @return The lock guarding the graph
+     */
+    public Lock get(String graphUri) {
+        int hash = graphUri.hashCode();
+        //Spread the higher bits, as only the lower bits select the lock
+        hash ^= (hash >>> 16);
+        return stripes[hash & (stripes.length - 1)];
+    }
+}
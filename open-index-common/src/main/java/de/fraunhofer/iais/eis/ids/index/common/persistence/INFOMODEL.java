@@ -4,6 +4,8 @@ package de.fraunhofer.iais.eis.ids.index.common.persistence;
 import org.apache.jena.rdf.model.Resource;
 import org.apache.jena.rdf.model.ResourceFactory;
 
+import java.util.Map;
+
 /**
  * Class which provides some static references to some selected IDS classes
  */
@@ -15,5 +17,18 @@ public class INFOMODEL {
     public final static Resource TRUSTED_CONNECTOR = ResourceFactory.createResource(NS + "TrustedConnector");
     public final static Resource PARTICIPANT = ResourceFactory.createResource(NS + "Participant");
     public final static Resource RESOURCE = ResourceFactory.createResource(NS + "Resource");
+    public final static Resource CONNECTOR = ResourceFactory.createResource(NS + "Connector");
+
+    //Subclasses of ids:Resource and ids:Connector, mapped to the supertype which is materialized whenever an instance is stored, so that queries can match a single type
+    public final static Map<Resource, Resource> SUPERTYPES = Map.of(
+            ResourceFactory.createResource(NS + "DataResource"), RESOURCE,
+            ResourceFactory.createResource(NS + "TextResource"), RESOURCE,
+            ResourceFactory.createResource(NS + "AudioResource"), RESOURCE,
+            ResourceFactory.createResource(NS + "ImageResource"), RESOURCE,
+            ResourceFactory.createResource(NS + "VideoResource"), RESOURCE,
+            ResourceFactory.createResource(NS + "SoftwareResource"), RESOURCE,
+            ResourceFactory.createResource(NS + "AppResource"), RESOURCE,
+            BASE_CONNECTOR, CONNECTOR,
+            TRUSTED_CONNECTOR, CONNECTOR);
 
 }
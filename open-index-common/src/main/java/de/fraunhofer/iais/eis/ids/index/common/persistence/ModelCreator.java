@@ -7,9 +7,11 @@ import de.fraunhofer.iais.eis.ids.component.core.RejectMessageException;
 import org.apache.commons.io.IOUtils;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.RDFNode;
 import org.apache.jena.rdf.model.Resource;
 import org.apache.jena.rdf.model.Statement;
 import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.vocabulary.RDF;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,7 +20,9 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URL;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Optional;
 
 /**
@@ -112,12 +116,39 @@ public abstract class ModelCreator {
      * @throws IOException if the selfDescription cannot be parsed
      */
     public InnerModel toModel(String selfDescription) throws IOException, RejectMessageException {
-        Model model = parse(selfDescription);
+        return toModel(parse(selfDescription));
+    }
+
+    /**
+     * Function to retrieve an InnerModel of an already parsed Connector, Resource or Participant, e.g. after its URIs were rewritten
+     * @param model A Connector, Resource or Participant as Apache Jena Model. The supertypes of its instances are added to it
+     * @return An InnerModel, containing the model and the named graph in which it is to be stored
+     * @throws RejectMessageException if the named graph cannot be determined
+     */
+    public InnerModel toModel(Model model) throws RejectMessageException {
+        materializeSupertypes(model);
         Optional<Resource> namedGraph = determineNamedGraph(model);
 
         return new InnerModel(model, namedGraph.orElse(null));
     }
 
+    /**
+     * Adds the supertype of every instance of a subclass of ids:Resource or ids:Connector, e.g. ids:Resource to an ids:DataResource.
+     * Stored models thereby carry the supertypes explicitly, so that queries can match a single type instead of listing all subclasses
+     * @param model Model to which the types are added
+     */
+    public static void materializeSupertypes(Model model) {
+        List<Statement> supertypeStatements = new ArrayList<>();
+        model.listStatements(null, RDF.type, (RDFNode) null).forEachRemaining(statement -> {
+            Resource supertype = statement.getObject().isURIResource() ? INFOMODEL.SUPERTYPES.get(statement.getObject().asResource()) : null;
+            if(supertype != null)
+            {
+                supertypeStatements.add(model.createStatement(statement.getSubject(), RDF.type, supertype));
+            }
+        });
+        model.add(supertypeStatements);
+    }
+
     /**
      * Function to parse a String representation in some RDF Format into an Apache Jena Model
      * @param selfDescriptionJsonLd String representation of the object to be parsed (Connector, Resource or Participant)
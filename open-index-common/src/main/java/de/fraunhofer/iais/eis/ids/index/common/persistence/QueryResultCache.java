@@ -0,0 +1,205 @@
+package de.fraunhofer.iais.eis.ids.index.common.persistence;
+
+import org.apache.jena.query.Query;
+import org.apache.jena.riot.Lang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the serialized results of queries submitted by users, as evaluated by the GenericQueryEvaluator.
+ * Each result is only valid for the version of the store it was read at. The version is increased by every write of the RepositoryFacade,
+ * so that a result read concurrently with a write can never be served after the write.
+ * The size is bounded by the bytes of all results together, evicting the least recently used ones first
+ */
+public class QueryResultCache {
+
+    private final long maxBytes;
+    //Access ordered, i.e. iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes = 0;
+
+    //Metrics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static class Entry {
+        private final long storeVersion;
+        private final byte[] result;
+
+        private Entry(long storeVersion, byte[] result) {
+            this.storeVersion = storeVersion;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Output stream passing everything on to another stream, while recording it for the cache as long as it fits into the cache
+     */
+    public class RecordingOutputStream extends FilterOutputStream {
+        private ByteArrayOutputStream recorded = new ByteArrayOutputStream();
+
+        private RecordingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if(recorded != null)
+            {
+                recorded.write(b);
+                checkSize();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if(recorded != null)
+            {
+                recorded.write(b, off, len);
+                checkSize();
+            }
+        }
+
+        private void checkSize() {
+            //Results exceeding the size of the cache are not recorded any further, so that they are never held in memory as a whole
+            if(recorded.size() > maxBytes)
+            {
+                recorded = null;
+            }
+        }
+
+        /**
+         * @return Everything written so far, or null, if it does not fit into the cache
+         */
+        private byte[] getRecorded() {
+            return recorded == null ? null : recorded.toByteArray();
+        }
+    }
+
+    /**
+     * Constructor
+     * @param maxBytes Maximum size of all cached results together, in bytes. 0 disables the cache
+     */
+    public QueryResultCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Creates the key of a query result. The key is derived from the rewritten query, which is re-serialized from its parsed form,
+     * so that queries differing only in formatting or comments share their result
+     * @param reformulatedQuery The query as rewritten by the SparqlQueryRewriter
+     * @param graphLang RDF language in which results of CONSTRUCT and DESCRIBE queries are written
+     * @return Key for get and put
+     */
+    public static String key(Query reformulatedQuery, Lang graphLang) {
+        return graphLang.getName() + "\n" + reformulatedQuery.serialize();
+    }
+
+    /**
+     * Retrieves a cached result
+     * @param key Key of the query
+     * @param storeVersion Current version of the store, see RepositoryFacade.getStoreVersion
+     * @return The serialized result, or null, if it is not cached at this version of the store
+     */
+    public byte[] get(String key, long storeVersion) {
+        synchronized (this)
+        {
+            Entry entry = entries.get(key);
+            if(entry != null && entry.storeVersion == storeVersion)
+            {
+                hits.incrementAndGet();
+                return entry.result;
+            }
+            if(entry != null)
+            {
+                //Outdated, as the store has been written since
+                entries.remove(key);
+                cachedBytes -= entry.result.length;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Wraps the stream to which a result is written, so that the result can be added to the cache via put once it is complete
+     * @param outputStream Stream to which the result is written
+     * @return Stream which should be used instead
+     */
+    public RecordingOutputStream record(OutputStream outputStream) {
+        return new RecordingOutputStream(outputStream);
+    }
+
+    /**
+     * Adds a completely written result to the cache. Ignored, if it does not fit into the cache
+     * @param key Key of the query
+     * @param storeVersion Version of the store, obtained via RepositoryFacade.getStoreVersion before the query was evaluated
+     * @param recordingOutputStream Stream obtained via record, to which the result was written
+     */
+    public void put(String key, long storeVersion, RecordingOutputStream recordingOutputStream) {
+        byte[] result = recordingOutputStream.getRecorded();
+        if(result == null || result.length > maxBytes)
+        {
+            return;
+        }
+        synchronized (this)
+        {
+            Entry previous = entries.put(key, new Entry(storeVersion, result));
+            cachedBytes += result.length - (previous == null ? 0 : previous.result.length);
+            Iterator<Entry> leastRecentlyUsed = entries.values().iterator();
+            while(cachedBytes > maxBytes && leastRecentlyUsed.hasNext())
+            {
+                cachedBytes -= leastRecentlyUsed.next().result.length;
+                leastRecentlyUsed.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return Number of queries answered from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Number of queries which had to be evaluated
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Share of the queries answered from the cache, between 0 and 1
+     */
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * @return Number of results removed from the cache to stay within the size limit
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return Size of all currently cached results, in bytes
+     */
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+}
@@ -4,21 +4,45 @@ import de.fraunhofer.iais.eis.Connector;
 import de.fraunhofer.iais.eis.Participant;
 import de.fraunhofer.iais.eis.RejectionReason;
 import de.fraunhofer.iais.eis.ids.component.core.RejectMessageException;
-import de.fraunhofer.iais.eis.ids.index.common.util.FusekiConnectionFactory;
+import de.fraunhofer.iais.eis.ids.index.common.util.ActiveGraphTransform;
+import de.fraunhofer.iais.eis.ids.index.common.util.FusekiConnectionPool;
+import de.fraunhofer.iais.eis.ids.index.common.util.GroupCommitter;
+import de.fraunhofer.iais.eis.ids.index.common.util.ReadReplicaRouter;
+import de.fraunhofer.iais.eis.ids.index.common.util.QueryCostAnalyzer;
+import de.fraunhofer.iais.eis.ids.index.common.util.SparqlEndpointSettings;
+import de.fraunhofer.iais.eis.ids.index.common.util.SubtreeClosure;
 import de.fraunhofer.iais.eis.ids.jsonld.Serializer;
 import org.apache.http.conn.HttpHostConnectException;
+import org.apache.jena.graph.Graph;
 import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
 import org.apache.jena.query.*;
 import org.apache.jena.rdf.model.*;
 import org.apache.jena.rdfconnection.RDFConnection;
 import org.apache.jena.rdfconnection.RDFConnectionFactory;
 import org.apache.jena.riot.RDFFormat;
 import org.apache.jena.riot.RDFWriter;
+import org.apache.jena.riot.system.StreamRDF;
 import org.apache.jena.sparql.ARQException;
+import org.apache.jena.sparql.core.DatasetGraph;
 import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.http.QueryEngineHTTP;
 import org.apache.jena.sparql.engine.http.QueryExceptionHTTP;
 import org.apache.jena.sparql.modify.request.*;
-import org.apache.jena.update.Update;
+import org.apache.jena.sparql.syntax.ElementGroup;
+import org.apache.jena.sparql.syntax.ElementNamedGraph;
+import org.apache.jena.sparql.syntax.ElementOptional;
+import org.apache.jena.sparql.syntax.ElementTriplesBlock;
+import org.apache.jena.sparql.util.FmtUtils;
+import org.apache.jena.system.Txn;
+import org.apache.jena.tdb2.TDB2Factory;
+import org.apache.jena.tdb2.sys.TDBInternal;
+import org.apache.jena.update.UpdateFactory;
+import org.apache.jena.update.UpdateRequest;
+import org.apache.jena.vocabulary.OWL;
+import org.apache.jena.vocabulary.RDF;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,27 +52,60 @@ import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.AbstractList;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * This class provides an interface for easy access to the triple store
  */
-public class RepositoryFacade {
+public class RepositoryFacade implements AutoCloseable {
     final private Logger logger = LoggerFactory.getLogger(RepositoryFacade.class);
     private URI adminGraphUri;
     private final String graphIsActiveUrl = "https://w3id.org/idsa/core/graphIsActive";
+    //Links the graph of a resource to the graph of the connector offering it, if resources are stored in graphs of their own
+    private final String partOfGraphUrl = "https://w3id.org/idsa/core/partOfGraph";
+    //Marks in the admin graph that the supertypes of all stored objects have been materialized, so that this is done only once per triple store
+    private final String supertypesMaterializedUrl = "https://w3id.org/idsa/core/supertypesMaterialized";
     private String sparqlUrl;
     private Dataset dataset;
-    private FusekiConnectionFactory connectionFactory, connectionFactoryReadOnly;
+    private boolean embeddedStore = false;
+    private FusekiConnectionPool connectionPool;
+    private GroupCommitter groupCommitter;
+    private ReadReplicaRouter readReplicaRouter;
+    private AsyncRepositoryFacade asyncRepositoryFacade;
+    private long internalQueryTimeoutMillis;
+    //Startup and maintenance scans read the whole store. They must not be cut off by the time budget of internal lookups
+    private static final long UNBOUNDED = 0;
+    private long userQueryTimeoutMillis;
+    private QueryCostAnalyzer queryCostAnalyzer;
+    private boolean resourceGraphs;
+    private ConnectorCache connectorCache;
+    private DescriptionCache descriptionCache;
+    private QueryResultCache queryResultCache;
+    private GraphLocks graphLocks;
+    //Increased with every write, so that results read before can be told apart from current ones
+    private final AtomicLong storeVersion = new AtomicLong();
+    private final ActiveGraphRegistry activeGraphRegistry = new ActiveGraphRegistry();
+    private final UriResolutionIndex uriResolutionIndex = new UriResolutionIndex();
 
     private static boolean writableConnectionWarningPrinted = false;
 
-    // A simple query string that is used to validate the existence of a valid connection to a fuseki server
-    private static final String TEST_CONNECTION_STRING = "ASK WHERE { GRAPH <test> {?s ?p ?o .} }";
+    //Prefix of the "SPARQL URL" selecting an embedded, persistent TDB2 dataset instead of a remote endpoint, e.g. tdb2:/var/lib/broker/db
+    public static final String TDB2_PREFIX = "tdb2:";
 
     private static final String CONNECTOR_QUERY_HATEOS_BEGINNING =
             "PREFIX ids: <https://w3id.org/idsa/core/> \n" +
@@ -74,9 +131,9 @@ public class RepositoryFacade {
             "        ?o0 ?p1 ?o1 .\n" +
             "    \n" +
             "        { # ?o1 should be an ids:Resource, and only a certain amount shall be returned\n" +
-            "          SELECT (?o1 AS ?res) WHERE { GRAPH <%1$s> {\n" +
+            "          SELECT (?o1 AS ?res) WHERE { %2$s GRAPH ?resourceGraph {\n" +
             "              \n" +
-            "                { ?o1 a ids:Resource } UNION { ?o1 a ids:DataResource } UNION { ?o1 a ids:TextResource } UNION { ?o1 a ids:AudioResource } UNION { ?o1 a ids:ImageResource } UNION { ?o1 a ids:VideoResource } UNION { ?o1 a ids:SoftwareResource } UNION { ?o1 a ids:AppResource }\n" +
+            "                ?o1 a ids:Resource .\n" +
             "              \n" +
             "            }}";
     private static final String CONNECTOR_QUERY_HATEOS_END =
@@ -102,18 +159,49 @@ public class RepositoryFacade {
 
     /**
      * Constructor, using a provided SPARQL endpoint as repository
-     * @param sparqlUrl the URL of the SPARQL endpoint which is to be used. If this is null or empty, a local in-memory repository will be created
+     * @param sparqlUrl the URL of the SPARQL endpoint which is to be used. If this is null or empty, a local in-memory repository will be created.
+     *                  If this starts with "tdb2:", an embedded TDB2 dataset is created (or opened) in the directory following the prefix
      */
     public RepositoryFacade(String sparqlUrl) {
+        this(sparqlUrl, new SparqlEndpointSettings());
+    }
+
+    /**
+     * Constructor, using a provided SPARQL endpoint as repository
+     * @param sparqlUrl the URL of the SPARQL endpoint which is to be used. If this is null or empty, a local in-memory repository will be created.
+     *                  If this starts with "tdb2:", an embedded TDB2 dataset is created (or opened) in the directory following the prefix
+     * @param settings Settings for the connections to the SPARQL endpoint, such as the connection pool size. Ignored for in-memory repositories
+     */
+    public RepositoryFacade(String sparqlUrl, SparqlEndpointSettings settings) {
+        this.internalQueryTimeoutMillis = settings.getInternalQueryTimeoutMillis();
+        this.userQueryTimeoutMillis = settings.getUserQueryTimeoutMillis();
+        this.queryCostAnalyzer = new QueryCostAnalyzer(settings);
+        this.resourceGraphs = settings.isResourceGraphs();
+        this.connectorCache = new ConnectorCache(settings.getConnectorCacheMaxTriples());
+        this.descriptionCache = new DescriptionCache(settings.getDescriptionCacheMaxBytes());
+        this.queryResultCache = new QueryResultCache(settings.getQueryCacheMaxBytes());
+        this.graphLocks = new GraphLocks(settings.getGraphLockStripes());
         if (sparqlUrl == null || sparqlUrl.isEmpty()) {
             logger.info("Preparing memory repository");
             dataset = DatasetFactory.create();
+        } else if (sparqlUrl.startsWith(TDB2_PREFIX)) {
+            String location = sparqlUrl.substring(TDB2_PREFIX.length());
+            logger.info("Preparing embedded TDB2 repository at '" + location + "'");
+            //Persistent and transactional, but without any HTTP and serialization overhead
+            dataset = TDB2Factory.connectDataset(location);
+            embeddedStore = true;
         } else {
             logger.info("Setting SPARQL repository to be used: '" + sparqlUrl + "'");
-            connectionFactory = new FusekiConnectionFactory(sparqlUrl);
-            String url = sparqlUrl + (sparqlUrl.endsWith("/")? "" : "/") + "sparql";
-            connectionFactoryReadOnly = new FusekiConnectionFactory(sparqlUrl);
+            //Connections are long-lived and reused. The server is probed once here and then periodically in the background
+            connectionPool = new FusekiConnectionPool(sparqlUrl, settings);
+        }
+        if(settings.getGroupCommitWindowMillis() > 0 && (connectionPool != null || embeddedStore))
+        {
+            //Concurrent writes are combined into a single update request
+            groupCommitter = new GroupCommitter(this::executeUpdateDirectly, settings.getGroupCommitWindowMillis(), settings.getGroupCommitMaxOperations());
         }
+        //Threads are only started once asynchronous operations are submitted
+        asyncRepositoryFacade = new AsyncRepositoryFacade(this, settings.getAsyncThreads(), settings.getAsyncQueueCapacity());
         try {
             this.adminGraphUri = new URI("https://broker.ids.isst.fraunhofer.de/admin");
         } catch (URISyntaxException e) {
@@ -122,25 +210,75 @@ public class RepositoryFacade {
         this.sparqlUrl = sparqlUrl;
 
         initAdminGraph();
+        if(!booleanQuery("ASK WHERE { GRAPH <" + adminGraphUri + "> { <" + adminGraphUri + "> <" + supertypesMaterializedUrl + "> true . } }"))
+        {
+            materializeSupertypes();
+        }
+        reloadGraphStates();
+        reloadUriResolutionIndex();
+
+        //Replicas are only used once the state at startup has been read from the primary endpoint
+        if(connectionPool != null && !settings.getReadReplicaUrls().isEmpty())
+        {
+            logger.info("Distributing queries across read replicas " + settings.getReadReplicaUrls());
+            readReplicaRouter = new ReadReplicaRouter(settings.getReadReplicaUrls(), settings);
+        }
     }
+
+    /**
+     * Releases the threads, connections and files held by this object. Asynchronous operations and group commits which are already queued are completed first.
+     * An embedded TDB2 dataset is released, so that its directory can be opened again. The object must not be used afterwards
+     */
+    @Override
+    public void close()
+    {
+        //Queued operations may still read from and write to the triple store
+        asyncRepositoryFacade.close();
+        if(groupCommitter != null)
+        {
+            groupCommitter.close();
+        }
+        if(readReplicaRouter != null)
+        {
+            readReplicaRouter.close();
+        }
+        if(connectionPool != null)
+        {
+            connectionPool.close();
+        }
+        if(embeddedStore)
+        {
+            //Closes the dataset and releases its location
+            TDBInternal.expel(dataset.asDatasetGraph());
+        }
+        else if(dataset != null)
+        {
+            dataset.close();
+        }
+    }
+
+    /**
+     * Utility function to return the IDs and the JSON representations of all the Resources of a specific Connector
+     * @param connectorURI the URI of the target Connector
+     * @return list of pairs (resource ID, JSON representation)
+     */
     public List<List<String>> getResourceIDandAsJSON(URI connectorURI){
         List<List<String>> result = new ArrayList<>();
-        ArrayList<QuerySolution> resultSet = selectQuery("PREFIX ids: <https://w3id.org/idsa/core/>\n" +
+        selectConnectorQuery("PREFIX ids: <https://w3id.org/idsa/core/>\n" +
                 "\n" +
                 "SELECT ?resourceID ?JSON\n" +
                 "WHERE {\n" +
-                "  graph <" + connectorURI + "> {\n" +
+                "  " + getConnectorGraphPattern("?g", connectorURI.toString()) + "\n" +
+                "  graph ?g {\n" +
                 "    ?resourceID a ids:DataResource.\n" +
                 "    ?resourceID <mdp:indexRepresentation> ?JSON\n" +
                 "  } \n" +
-                "}");
-        var list = resultSet.stream().collect(Collectors.toList());
-        for(QuerySolution resource: list){
+                "}", connectorURI.toString(), resource -> {
             var temp = new ArrayList<String>();
             temp.add(resource.get("resourceID").toString());
             temp.add(resource.get("JSON").toString());
             result.add(temp);
-        }
+        });
         return result;
     }
 
@@ -150,9 +288,20 @@ public class RepositoryFacade {
      * @return list of all the Resources under connectorURI
      */
     public List<String> getResouces(URI connectorURI){
-        ArrayList<QuerySolution> resultSet = selectQuery("prefix ids: <https://w3id.org/idsa/core/>\n"+
-                "SELECT ?subject WHERE { graph <" + connectorURI + "> { ?subject a ids:DataResource } }");
-        return resultSet.stream().map(result -> result.get("subject").toString()).collect(Collectors.toList());
+        List<String> result = new ArrayList<>();
+        forEachResource(connectorURI, result::add);
+        return result;
+    }
+
+    /**
+     * Utility function to enumerate all the Resources for a specific Connector without holding them in memory at the same time
+     * @param connectorURI the URI of the target Connector
+     * @param resourceConsumer Function which is called with the URI of every Resource under connectorURI
+     */
+    public void forEachResource(URI connectorURI, Consumer<String> resourceConsumer){
+        selectConnectorQuery("prefix ids: <https://w3id.org/idsa/core/>\n"+
+                "SELECT ?subject WHERE { " + getConnectorGraphPattern("?g", connectorURI.toString()) + "graph ?g { ?subject a ids:DataResource } }", connectorURI.toString(),
+                solution -> resourceConsumer.accept(solution.get("subject").toString()));
     }
 
     /**
@@ -171,8 +320,8 @@ public class RepositoryFacade {
      */
     public RDFConnection getNewWritableConnection()
     {
-        if(sparqlUrl != null && !sparqlUrl.isEmpty()) {
-            return (RDFConnection) connectionFactory.getConnection();
+        if(connectionPool != null) {
+            return connectionPool.createUnpooledConnection();
         } else
         if(dataset == null)
         {
@@ -188,8 +337,8 @@ public class RepositoryFacade {
      */
     public RDFConnection getNewReadOnlyConnectionToFuseki()
     {
-        if(sparqlUrl != null && !sparqlUrl.isEmpty()) {
-            return (RDFConnection) connectionFactoryReadOnly.getConnection();
+        if(connectionPool != null) {
+            return connectionPool.createUnpooledConnection();
         }
         else
         {
@@ -202,75 +351,424 @@ public class RepositoryFacade {
         return RDFConnectionFactory.connect(dataset);
     }
 
+    /**
+     * Internal function to borrow a connection from the connection pool. Must be followed by a call to releaseConnection, typically in a finally block
+     * @return RDFConnection object, providing access to the repository
+     */
+    private RDFConnection acquireConnection()
+    {
+        if(connectionPool != null) {
+            return connectionPool.acquire();
+        }
+        return getNewWritableConnection();
+    }
+
+    /**
+     * Internal function to hand a connection obtained via acquireConnection back
+     * @param connection The connection which is no longer needed
+     */
+    private void releaseConnection(RDFConnection connection)
+    {
+        if(connectionPool != null) {
+            connectionPool.release(connection);
+        }
+        else if(connection != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * @return The pool of connections to the SPARQL endpoint, e.g. to monitor its usage. null, if an in-memory repository is used
+     */
+    public FusekiConnectionPool getConnectionPool()
+    {
+        return connectionPool;
+    }
+
+    /**
+     * @return Asynchronous access to this repository, e.g. to evaluate independent queries in parallel
+     */
+    public AsyncRepositoryFacade getAsync()
+    {
+        return asyncRepositoryFacade;
+    }
+
     /**
      * Utility function to provide a list of context IDs, e.g. the IDs of all known Connectors or Participants
      * @return Collection, containing all context IDs
      */
     public ArrayList<String> getContextIds() {
-        ArrayList<QuerySolution> resultSet = selectQuery("SELECT DISTINCT ?g WHERE { GRAPH ?g { ?s ?p ?o . } }");
-        return resultSet.stream().map(result -> result.get("g").toString()).collect(Collectors.toCollection(ArrayList::new));
+        ArrayList<String> result = new ArrayList<>();
+        selectQuery("SELECT DISTINCT ?g WHERE { GRAPH ?g { ?s ?p ?o . } }", solution -> result.add(solution.get("g").toString()));
+        return result;
     }
 
 
     /**
      * Function for adding a collection of statements to a named graph
+     * If the named graph is not the admin graph, the graph is marked as active within the same update request
      * @param statements statements to be added
      * @param namedGraphUri named graph URI to which the statements should be added. Typically, this is the URI of the connector in question
      * @throws RejectMessageException if the named graph doesn't exist
      */
     public void addStatements(Model statements, String namedGraphUri) throws RejectMessageException {
-        RDFConnection connection = getNewWritableConnection();
-        connection.load(namedGraphUri, statements); //load = add/append, put = set
-        if(!namedGraphUri.equals(adminGraphUri.toString()))
+        if(namedGraphUri.equals(adminGraphUri.toString()))
+        {
+            RDFConnection connection = acquireConnection();
+            try {
+                connection.load(namedGraphUri, statements); //load = add/append, put = set
+            }
+            finally {
+                releaseConnection(connection);
+            }
+            graphWritten(namedGraphUri);
+            return;
+        }
+        logger.debug("addStatements with an ID which is not the admin graph called. Marking it as available. " + namedGraphUri);
+        UpdateRequest updateRequest = new UpdateRequest();
+        Set<String> writtenResourceGraphs = Collections.emptySet();
+        Model description = statements;
+        if(resourceGraphs)
         {
-            logger.debug("addStatements with an ID which is not the admin graph called. Marking it as available. " + namedGraphUri);
-            //Not adding to admin graph, but to a connector/participant graph.
-            changePassivationOfGraph(namedGraphUri, true);
+            //The descriptions of offered resources go to graphs of their own. The caller's model is left untouched
+            statements = ModelFactory.createDefaultModel().add(statements);
+            writtenResourceGraphs = appendResourceGraphs(updateRequest, statements, namedGraphUri, true);
         }
-        connection.close();
+        appendInsertData(updateRequest, statements, namedGraphUri);
+        //Not adding to admin graph, but to a connector/participant graph.
+        appendGraphState(updateRequest, namedGraphUri, true);
+        executeUpdate(updateRequest);
+        graphWritten(namedGraphUri);
+        writtenResourceGraphs.forEach(this::graphWritten);
+        activeGraphRegistry.setState(namedGraphUri, true);
+        uriResolutionIndex.add(namedGraphUri, description);
     }
 
     /**
      * Function to replace ALL statements in a context (named graph) with a new set of statements
+     * Clearing the graph, inserting the new statements and marking the graph as active is done in a single update request.
+     * As the triple store executes such a request atomically, readers never observe an empty or half-written graph
      * @param newStatements new set of statements
      * @param namedGraphUri named graph which should be modified
      */
     public void replaceStatements(Model newStatements, String namedGraphUri) throws RejectMessageException {
-        //Retrieve a connection
-        RDFConnection connection = getNewWritableConnection();
+        boolean isAdminGraph = namedGraphUri.equals(adminGraphUri.toString());
+        UpdateRequest updateRequest = new UpdateRequest();
+        Set<String> writtenResourceGraphs = new HashSet<>();
+        Model description = newStatements;
+
+        if(resourceGraphs && !isAdminGraph)
+        {
+            //Resources which are no longer offered are dropped, all others are replaced
+            Set<String> previousResourceGraphs = getResourceGraphs(namedGraphUri);
+            newStatements = ModelFactory.createDefaultModel().add(newStatements);
+            Set<String> currentResourceGraphs = appendResourceGraphs(updateRequest, newStatements, namedGraphUri, true);
+            writtenResourceGraphs.addAll(previousResourceGraphs);
+            writtenResourceGraphs.addAll(currentResourceGraphs);
+            previousResourceGraphs.removeAll(currentResourceGraphs);
+            previousResourceGraphs.forEach(resourceGraphUri -> appendDropResourceGraph(updateRequest, resourceGraphUri));
+        }
 
-        //Delete all previous statement in this named graph
-        Update clearUpdate = new UpdateClear(namedGraphUri);
+        //Delete all previous statement in this named graph. Silent, as the graph might not exist yet
+        updateRequest.add(new UpdateClear(namedGraphUri, true));
+        appendInsertData(updateRequest, newStatements, namedGraphUri);
 
+        //If changes were made to this graph, then it must be available
+        if(!isAdminGraph)
+        {
+            logger.debug("replaceStatements with an ID which is not the admin graph called. Marking it as available. " + namedGraphUri);
+            appendGraphState(updateRequest, namedGraphUri, true);
+        }
+
+        executeUpdate(updateRequest);
+        graphWritten(namedGraphUri);
+        writtenResourceGraphs.forEach(this::graphWritten);
+
+        if(!isAdminGraph)
+        {
+            activeGraphRegistry.setState(namedGraphUri, true);
+            uriResolutionIndex.removeGraph(namedGraphUri);
+            uriResolutionIndex.add(namedGraphUri, description);
+        }
+    }
+
+    /**
+     * Internal function to append an INSERT DATA operation for a set of statements to an update request
+     * @param updateRequest The update request to be extended
+     * @param statements The statements to be inserted
+     * @param namedGraphUri The named graph into which the statements should be inserted
+     */
+    private void appendInsertData(UpdateRequest updateRequest, Model statements, String namedGraphUri)
+    {
         //Turn new statements into quads: (named graph, triple)
-        List<Quad> newStatementsAsQuad = new ArrayList<>();
-        Node namedGraphAsNode = ResourceFactory.createResource(namedGraphUri).asNode();
-        StmtIterator iterator = newStatements.listStatements();
+        List<Quad> statementsAsQuad = new ArrayList<>();
+        Node namedGraphAsNode = NodeFactory.createURI(namedGraphUri);
+        StmtIterator iterator = statements.listStatements();
         while(iterator.hasNext())
         {
-            newStatementsAsQuad.add(new Quad(namedGraphAsNode, iterator.next().asTriple()));
+            statementsAsQuad.add(new Quad(namedGraphAsNode, iterator.next().asTriple()));
         }
+        updateRequest.add(new UpdateDataInsert(new QuadDataAcc(statementsAsQuad)));
+    }
+
+    /**
+     * Internal function to append the operation replacing the state of a graph in the admin graph to an update request.
+     * The state is a single triple (graph, graphIsActive, boolean), which is swapped by one DELETE/INSERT WHERE operation,
+     * so that the graph is never observed as neither active nor passive
+     * @param updateRequest The update request to be extended
+     * @param graphUrl The URL of the named graph (i.e. the connector / participant URL)
+     * @param active The new state (true = active, false = inactive) of the named graph
+     */
+    private void appendGraphState(UpdateRequest updateRequest, String graphUrl, boolean active)
+    {
+        Node adminGraphAsNode = NodeFactory.createURI(adminGraphUri.toString());
+        Node graphAsNode = NodeFactory.createURI(graphUrl);
+        Node graphIsActiveAsNode = NodeFactory.createURI(graphIsActiveUrl);
+        Var oldState = Var.alloc("oldState");
 
-        QuadDataAcc quadDataAcc = new QuadDataAcc(newStatementsAsQuad);
-        //Turn insert into an update object
-        Update insertUpdate = new UpdateDataInsert(quadDataAcc);
+        UpdateModify updateModify = new UpdateModify();
+        updateModify.getDeleteAcc().addQuad(new Quad(adminGraphAsNode, graphAsNode, graphIsActiveAsNode, oldState));
+        updateModify.getInsertAcc().addQuad(new Quad(adminGraphAsNode, graphAsNode, graphIsActiveAsNode, ResourceFactory.createTypedLiteral(active).asNode()));
 
-        //Execute the delete
-        connection.update(clearUpdate);
-        //Execute the insert
-        connection.update(insertUpdate);
+        //OPTIONAL, so that the new state is also inserted if there is no previous state yet
+        ElementTriplesBlock previousState = new ElementTriplesBlock();
+        previousState.addTriple(Triple.create(graphAsNode, graphIsActiveAsNode, oldState));
+        ElementGroup where = new ElementGroup();
+        where.addElement(new ElementOptional(new ElementNamedGraph(adminGraphAsNode, previousState)));
+        updateModify.setElement(where);
 
-        //If changes were made to this graph, then it must be available
-        if(!namedGraphUri.equals(adminGraphUri.toString()))
+        updateRequest.add(updateModify);
+
+        if(resourceGraphs)
         {
-            logger.debug("addStatements with an ID which is not the admin graph called. Marking it as available. " + namedGraphUri);
-            //Not adding to admin graph, but to a connector/participant graph.
-            changePassivationOfGraph(namedGraphUri, true);
+            //The graphs of the resources offered by a connector follow the state of the connector's graph
+            Var resourceGraph = Var.alloc("resourceGraph");
+            Var oldResourceGraphState = Var.alloc("oldResourceGraphState");
+            UpdateModify cascade = new UpdateModify();
+            cascade.getDeleteAcc().addQuad(new Quad(adminGraphAsNode, resourceGraph, graphIsActiveAsNode, oldResourceGraphState));
+            cascade.getInsertAcc().addQuad(new Quad(adminGraphAsNode, resourceGraph, graphIsActiveAsNode, ResourceFactory.createTypedLiteral(active).asNode()));
+            ElementTriplesBlock resourceGraphStates = new ElementTriplesBlock();
+            resourceGraphStates.addTriple(Triple.create(resourceGraph, NodeFactory.createURI(partOfGraphUrl), graphAsNode));
+            resourceGraphStates.addTriple(Triple.create(resourceGraph, graphIsActiveAsNode, oldResourceGraphState));
+            ElementGroup cascadeWhere = new ElementGroup();
+            cascadeWhere.addElement(new ElementNamedGraph(adminGraphAsNode, resourceGraphStates));
+            cascade.setElement(cascadeWhere);
+            updateRequest.add(cascade);
         }
+    }
 
-        //Cleanup: close connections
-        quadDataAcc.close();
-        connection.close();
+    /**
+     * Internal function to append the operations storing the descriptions of the resources offered in a model in graphs of their own.
+     * Each resource graph is named after its resource, replaced as a whole (like a graph store PUT) and linked to the connector's graph in the admin graph.
+     * The descriptions are removed from the model. The links to the resources (?catalog ids:offeredResource ?resource) remain in it
+     * @param updateRequest The update request to be extended
+     * @param statements The statements for the graph of the connector. Modified in place
+     * @param connectorGraphUri The named graph of the connector offering the resources
+     * @param active The state of the resource graphs, which is the state of the connector's graph
+     * @return URIs of the resource graphs which are written
+     */
+    private Set<String> appendResourceGraphs(UpdateRequest updateRequest, Model statements, String connectorGraphUri, boolean active)
+    {
+        Map<String, Model> descriptions = splitOffResources(statements);
+        descriptions.forEach((resourceUri, description) -> {
+            updateRequest.add(new UpdateClear(resourceUri, true));
+            appendInsertData(updateRequest, description, resourceUri);
+
+            Node adminGraphAsNode = NodeFactory.createURI(adminGraphUri.toString());
+            Node resourceGraphAsNode = NodeFactory.createURI(resourceUri);
+            appendDeleteAdminEntries(updateRequest, resourceGraphAsNode);
+            List<Quad> adminEntries = new ArrayList<>();
+            adminEntries.add(new Quad(adminGraphAsNode, resourceGraphAsNode, NodeFactory.createURI(partOfGraphUrl), NodeFactory.createURI(connectorGraphUri)));
+            adminEntries.add(new Quad(adminGraphAsNode, resourceGraphAsNode, NodeFactory.createURI(graphIsActiveUrl), ResourceFactory.createTypedLiteral(active).asNode()));
+            updateRequest.add(new UpdateDataInsert(new QuadDataAcc(adminEntries)));
+        });
+        return descriptions.keySet();
+    }
+
+    /**
+     * Internal function to append the operations dropping the graph of a resource, including its entries in the admin graph
+     * @param updateRequest The update request to be extended
+     * @param resourceGraphUri The named graph of the resource
+     */
+    private void appendDropResourceGraph(UpdateRequest updateRequest, String resourceGraphUri)
+    {
+        updateRequest.add(new UpdateDrop(resourceGraphUri, true));
+        appendDeleteAdminEntries(updateRequest, NodeFactory.createURI(resourceGraphUri));
+    }
+
+    private void appendDeleteAdminEntries(UpdateRequest updateRequest, Node graphAsNode)
+    {
+        QuadAcc adminEntries = new QuadAcc();
+        adminEntries.addQuad(new Quad(NodeFactory.createURI(adminGraphUri.toString()), graphAsNode, Var.alloc("adminPredicate"), Var.alloc("adminObject")));
+        updateRequest.add(new UpdateDeleteWhere(adminEntries));
+    }
+
+    /**
+     * Internal function to split the descriptions of the resources offered in a model off into models of their own.
+     * The description of a resource consists of all triples reachable from it. Triples which are also reachable from the rest of the model,
+     * without passing through a resource, remain in the model as well, so that the connector's graph stays complete without its resources
+     * @param statements The model to be split. The descriptions of the resources are removed from it
+     * @return The descriptions of the resources, by resource URI
+     */
+    private static Map<String, Model> splitOffResources(Model statements)
+    {
+        Graph graph = statements.getGraph();
+        Map<String, Model> descriptions = new HashMap<>();
+        Set<Node> resources = new HashSet<>();
+        graph.find(Node.ANY, NodeFactory.createURI("https://w3id.org/idsa/core/offeredResource"), Node.ANY).forEachRemaining(link -> {
+            if(link.getObject().isURI())
+            {
+                resources.add(link.getObject());
+            }
+        });
+        Set<Triple> described = new HashSet<>();
+        for(Node resource : resources)
+        {
+            Model description = ModelFactory.createDefaultModel();
+            SubtreeClosure.traverse(graph, resource, Integer.MAX_VALUE, false, triple -> {
+                description.getGraph().add(triple);
+                described.add(triple);
+            });
+            descriptions.put(resource.getURI(), description);
+        }
+        //Everything reachable from the triples outside of the descriptions, without passing through a resource, is kept
+        Set<Node> kept = new HashSet<>();
+        Deque<Node> pending = new ArrayDeque<>();
+        graph.find().forEachRemaining(triple -> {
+            if(!described.contains(triple) && kept.add(triple.getSubject()))
+            {
+                pending.add(triple.getSubject());
+            }
+        });
+        while(!pending.isEmpty())
+        {
+            graph.find(pending.poll(), Node.ANY, Node.ANY).forEachRemaining(triple -> {
+                if(!triple.getObject().isLiteral() && !resources.contains(triple.getObject()) && kept.add(triple.getObject()))
+                {
+                    pending.add(triple.getObject());
+                }
+            });
+        }
+        described.stream().filter(triple -> !kept.contains(triple.getSubject())).forEach(graph::delete);
+        return descriptions;
+    }
+
+    /**
+     * Utility function to list the graphs of the resources offered by a connector, if resources are stored in graphs of their own
+     * @param connectorGraphUri The named graph of the connector
+     * @return URIs of the resource graphs. Empty, if resources are stored in the connector's graph
+     */
+    public Set<String> getResourceGraphs(String connectorGraphUri)
+    {
+        Set<String> result = new HashSet<>();
+        if(!resourceGraphs)
+        {
+            return result;
+        }
+        ParameterizedSparqlString queryString = new ParameterizedSparqlString("SELECT ?resourceGraph WHERE { GRAPH ?admin { ?resourceGraph ?partOfGraph ?connectorGraph . } }");
+        queryString.setIri("admin", adminGraphUri.toString());
+        queryString.setIri("partOfGraph", partOfGraphUrl);
+        queryString.setIri("connectorGraph", connectorGraphUri);
+        selectConnectorQuery(queryString.toString(), connectorGraphUri, solution -> result.add(solution.get("resourceGraph").toString()));
+        return result;
+    }
+
+    /**
+     * @return true, if the descriptions of resources are stored in named graphs of their own
+     */
+    public boolean usesResourceGraphs()
+    {
+        return resourceGraphs;
+    }
+
+    /**
+     * Removes a resource which is stored in a graph of its own, together with the links to it in the connector's graph, in a single update request
+     * @param resourceUri The URI of the resource, which is also the name of its graph
+     * @param connectorGraphUri The named graph of the connector offering the resource
+     * @return true, if the resource was stored in a graph of its own and has been removed. false, if nothing was changed
+     */
+    public boolean removeResourceGraph(String resourceUri, String connectorGraphUri)
+    {
+        if(!getResourceGraphs(connectorGraphUri).contains(resourceUri))
+        {
+            return false;
+        }
+        UpdateRequest updateRequest = new UpdateRequest();
+        appendDropResourceGraph(updateRequest, resourceUri);
+        QuadAcc links = new QuadAcc();
+        links.addQuad(new Quad(NodeFactory.createURI(connectorGraphUri), Var.alloc("linkSubject"), Var.alloc("linkPredicate"), NodeFactory.createURI(resourceUri)));
+        updateRequest.add(new UpdateDeleteWhere(links));
+        executeUpdate(updateRequest);
+        graphWritten(connectorGraphUri);
+        graphWritten(resourceUri);
+        uriResolutionIndex.removeSubtree(connectorGraphUri, resourceUri);
+        return true;
+    }
+
+    /**
+     * Moves the descriptions of all resources, which are still stored in the graphs of their connectors, to graphs of their own.
+     * Used to convert existing repositories when the resource graph layout is enabled. The states of the graphs are kept. Running it again has no effect
+     * @return Number of resources which were moved
+     */
+    public int migrateToResourceGraphs()
+    {
+        Map<String, Boolean> connectorGraphs = new HashMap<>();
+        selectQuery("SELECT ?graph ?active WHERE { GRAPH <" + adminGraphUri + "> { ?graph <" + graphIsActiveUrl + "> ?active . FILTER NOT EXISTS { ?graph <" + partOfGraphUrl + "> ?connectorGraph } } }",
+                solution -> connectorGraphs.put(solution.get("graph").toString(), solution.getLiteral("active").getBoolean()), UNBOUNDED);
+        connectorGraphs.remove(adminGraphUri.toString());
+        int moved = 0;
+        for(Map.Entry<String, Boolean> connectorGraph : connectorGraphs.entrySet())
+        {
+            ParameterizedSparqlString queryString = new ParameterizedSparqlString("CONSTRUCT { ?s ?p ?o . } WHERE { GRAPH ?g { ?s ?p ?o . } }");
+            queryString.setIri("g", connectorGraph.getKey());
+            Model statements = constructQuery(queryString.toString(), UNBOUNDED);
+            UpdateRequest updateRequest = new UpdateRequest();
+            Set<String> resourceGraphUris = appendResourceGraphs(updateRequest, statements, connectorGraph.getKey(), connectorGraph.getValue());
+            if(resourceGraphUris.isEmpty())
+            {
+                continue;
+            }
+            updateRequest.add(new UpdateClear(connectorGraph.getKey(), true));
+            appendInsertData(updateRequest, statements, connectorGraph.getKey());
+            executeUpdate(updateRequest);
+            graphWritten(connectorGraph.getKey());
+            resourceGraphUris.forEach(this::graphWritten);
+            logger.info("Moved " + resourceGraphUris.size() + " resources of " + connectorGraph.getKey() + " to graphs of their own");
+            moved += resourceGraphUris.size();
+        }
+        return moved;
+    }
+
+    /**
+     * Internal function to send an update request to the triple store in one go.
+     * If group commits are enabled, the request may be combined with concurrent updates of other callers. This function returns once the update was applied
+     * @param updateRequest The update request to be executed
+     */
+    private void executeUpdate(UpdateRequest updateRequest)
+    {
+        if(groupCommitter != null)
+        {
+            groupCommitter.execute(updateRequest);
+        }
+        else
+        {
+            executeUpdateDirectly(updateRequest);
+        }
+    }
+
+    /**
+     * Internal function to send an update request to the triple store, bypassing group commits
+     * @param updateRequest The update request to be executed
+     */
+    private void executeUpdateDirectly(UpdateRequest updateRequest)
+    {
+        RDFConnection connection = acquireConnection();
+        try {
+            connection.update(updateRequest);
+        }
+        finally {
+            releaseConnection(connection);
+        }
     }
 
     /**
@@ -297,9 +795,6 @@ public class RepositoryFacade {
             return;
         }
 
-        //Establish new connection
-        RDFConnection connection = getNewWritableConnection();
-
         //Transform the named graph URI to a node
         Node namedGraphAsNode = ResourceFactory.createResource(namedGraphUri).asNode();
 
@@ -312,14 +807,12 @@ public class RepositoryFacade {
         QuadAcc quadAcc = new QuadAcc(statementsAsQuad);
 
         //Turn this into a delete request
-        Update u = new UpdateDeleteWhere(quadAcc);
+        UpdateRequest updateRequest = new UpdateRequest(new UpdateDeleteWhere(quadAcc));
 
         //Execute the request
-        connection.update(u);
-
-        //Cleanup: close connections
-        quadAcc.close();
-        connection.close();
+        executeUpdate(updateRequest);
+        graphWritten(namedGraphUri);
+        uriResolutionIndex.remove(namedGraphUri, statementsToRemove);
     }
 
     /**
@@ -329,10 +822,31 @@ public class RepositoryFacade {
      */
     public boolean booleanQuery(String query)
     {
-        RDFConnection connection = getNewReadOnlyConnectionToFuseki();
-        boolean result = connection.queryAsk(query);
-        connection.close();
-        return result;
+        return booleanQuery(query, internalQueryTimeoutMillis);
+    }
+
+    /**
+     * Utility function to evaluate an ASK SPARQL query
+     * @param query ASK query as String
+     * @param timeoutMillis Time budget of the query in milliseconds. 0 or less for no limit
+     * @return Evaluation result (boolean)
+     * @throws QueryCancelledException if the query did not finish in time (local repositories)
+     * @throws QueryExceptionHTTP if the query failed or did not finish in time (remote repositories)
+     */
+    public boolean booleanQuery(String query, long timeoutMillis)
+    {
+        return booleanQuery(QueryFactory.create(query), timeoutMillis);
+    }
+
+    /**
+     * Utility function to evaluate an already parsed ASK SPARQL query. The query object is not modified
+     * @param query ASK query
+     * @param timeoutMillis Time budget of the query in milliseconds. 0 or less for no limit
+     * @return Evaluation result (boolean)
+     */
+    public boolean booleanQuery(Query query, long timeoutMillis)
+    {
+        return evaluate(query, timeoutMillis, QueryExecution::execAsk);
     }
 
     /**
@@ -342,10 +856,238 @@ public class RepositoryFacade {
      */
     public Model constructQuery(String query)
     {
-        RDFConnection connection = getNewReadOnlyConnectionToFuseki();
-        Model m = connection.queryConstruct(query);
-        connection.close();
-        return m;
+        return constructQuery(query, internalQueryTimeoutMillis);
+    }
+
+    /**
+     * Utility function to evaluate a CONSTRUCT SPARQL query
+     * @param query CONSTRUCT query as String
+     * @param timeoutMillis Time budget of the query in milliseconds. 0 or less for no limit
+     * @return Evaluation result (graph)
+     */
+    public Model constructQuery(String query, long timeoutMillis)
+    {
+        return constructQuery(QueryFactory.create(query), timeoutMillis);
+    }
+
+    /**
+     * Utility function to evaluate an already parsed CONSTRUCT SPARQL query. The query object is not modified
+     * @param query CONSTRUCT query
+     * @param timeoutMillis Time budget of the query in milliseconds. 0 or less for no limit
+     * @return Evaluation result (graph)
+     */
+    public Model constructQuery(Query query, long timeoutMillis)
+    {
+        return evaluate(query, timeoutMillis, QueryExecution::execConstruct);
+    }
+
+    /**
+     * Utility function to evaluate a CONSTRUCT SPARQL query, streaming the resulting triples to a destination as they arrive
+     * In contrast to constructQuery(String), the result is never held in memory as a whole
+     * @param query CONSTRUCT query as String
+     * @param destination Destination of the triples, e.g. a streaming writer. start and finish are called by this function
+     */
+    public void constructQuery(String query, StreamRDF destination)
+    {
+        constructQuery(query, destination, internalQueryTimeoutMillis);
+    }
+
+    /**
+     * Utility function to evaluate a CONSTRUCT SPARQL query, streaming the resulting triples to a destination as they arrive
+     * If the destination fails (e.g. because the client disconnected), the running query is cancelled
+     * @param query CONSTRUCT query as String
+     * @param destination Destination of the triples, e.g. a streaming writer. start and finish are called by this function
+     * @param timeoutMillis Time budget of the query in milliseconds. 0 or less for no limit
+     */
+    public void constructQuery(String query, StreamRDF destination, long timeoutMillis)
+    {
+        constructQuery(QueryFactory.create(query), destination, timeoutMillis);
+    }
+
+    /**
+     * Utility function to evaluate an already parsed CONSTRUCT SPARQL query, streaming the resulting triples to a destination as they arrive
+     * @param query CONSTRUCT query. The query object is not modified
+     * @param destination Destination of the triples, e.g. a streaming writer. start and finish are called by this function
+     * @param timeoutMillis Time budget of the query in milliseconds. 0 or less for no limit
+     */
+    public void constructQuery(Query query, StreamRDF destination, long timeoutMillis)
+    {
+        graphQuery(query, destination, timeoutMillis, QueryExecution::execConstructTriples);
+    }
+
+    /**
+     * Utility function to evaluate a DESCRIBE SPARQL query, streaming the resulting triples to a destination as they arrive
+     * @param query DESCRIBE query as String
+     * @param destination Destination of the triples, e.g. a streaming writer. start and finish are called by this function
+     */
+    public void describeQuery(String query, StreamRDF destination)
+    {
+        describeQuery(query, destination, internalQueryTimeoutMillis);
+    }
+
+    /**
+     * Utility function to evaluate a DESCRIBE SPARQL query, streaming the resulting triples to a destination as they arrive
+     * If the destination fails (e.g. because the client disconnected), the running query is cancelled
+     * @param query DESCRIBE query as String
+     * @param destination Destination of the triples, e.g. a streaming writer. start and finish are called by this function
+     * @param timeoutMillis Time budget of the query in milliseconds. 0 or less for no limit
+     */
+    public void describeQuery(String query, StreamRDF destination, long timeoutMillis)
+    {
+        describeQuery(QueryFactory.create(query), destination, timeoutMillis);
+    }
+
+    /**
+     * Utility function to evaluate an already parsed DESCRIBE SPARQL query, streaming the resulting triples to a destination as they arrive
+     * @param query DESCRIBE query. The query object is not modified
+     * @param destination Destination of the triples, e.g. a streaming writer. start and finish are called by this function
+     * @param timeoutMillis Time budget of the query in milliseconds. 0 or less for no limit
+     */
+    public void describeQuery(Query query, StreamRDF destination, long timeoutMillis)
+    {
+        graphQuery(query, destination, timeoutMillis, QueryExecution::execDescribeTriples);
+    }
+
+    /**
+     * Internal function to evaluate a query with an RDF graph as result, streaming the triples to a destination
+     * @param query The query to be evaluated
+     * @param destination Destination of the triples
+     * @param timeoutMillis Time budget of the query in milliseconds. 0 or less for no limit
+     * @param evaluation Function evaluating the query execution, depending on the type of the query
+     */
+    private void graphQuery(Query query, StreamRDF destination, long timeoutMillis, Function<QueryExecution, Iterator<Triple>> evaluation)
+    {
+        evaluate(query, timeoutMillis, queryExecution -> {
+            destination.start();
+            evaluation.apply(queryExecution).forEachRemaining(destination::triple);
+            destination.finish();
+            return null;
+        });
+    }
+
+    /**
+     * Internal function through which all queries are evaluated. Takes care of connections, transactions, time budgets and cancellation
+     * @param query The query to be evaluated
+     * @param timeoutMillis Time budget of the query in milliseconds. 0 or less for no limit
+     * @param evaluation Function evaluating the query execution and consuming its result
+     * @param <T> Type of the result
+     * @return Result of the evaluation function
+     */
+    private <T> T evaluate(String query, long timeoutMillis, Function<QueryExecution, T> evaluation)
+    {
+        return evaluate(QueryFactory.create(query), timeoutMillis, evaluation);
+    }
+
+    /**
+     * Internal function through which all queries are evaluated. Takes care of connections, transactions, time budgets and cancellation
+     * @param query The parsed query to be evaluated. It is not modified, so that it can be evaluated repeatedly
+     * @param timeoutMillis Time budget of the query in milliseconds. 0 or less for no limit
+     * @param evaluation Function evaluating the query execution and consuming its result
+     * @param <T> Type of the result
+     * @return Result of the evaluation function
+     */
+    private <T> T evaluate(Query query, long timeoutMillis, Function<QueryExecution, T> evaluation)
+    {
+        //The query may concern any graph, so that it is answered by the primary endpoint while any graph was just written
+        return evaluate(query, timeoutMillis, null, evaluation);
+    }
+
+    /**
+     * Internal function through which all queries are evaluated. Takes care of connections, transactions, time budgets and cancellation
+     * @param query The parsed query to be evaluated. It is not modified, so that it can be evaluated repeatedly
+     * @param timeoutMillis Time budget of the query in milliseconds. 0 or less for no limit
+     * @param connectorGraphUri Graph of the single connector or participant the query reads, or null, if it may read any graph.
+     *                          Determines whether the query has to be answered by the primary endpoint to read recent writes
+     * @param evaluation Function evaluating the query execution and consuming its result
+     * @param <T> Type of the result
+     * @return Result of the evaluation function
+     */
+    private <T> T evaluate(Query query, long timeoutMillis, String connectorGraphUri, Function<QueryExecution, T> evaluation)
+    {
+        //Read replicas take load off the primary endpoint, unless the query concerns a graph which was just written
+        RDFConnection replicaConnection = readReplicaRouter != null ? readReplicaRouter.acquire(connectorGraphUri) : null;
+        if(replicaConnection != null)
+        {
+            RuntimeException failure = null;
+            try {
+                return evaluate(replicaConnection, query, timeoutMillis, evaluation);
+            }
+            catch (RuntimeException e)
+            {
+                failure = e;
+                if(!ReadReplicaRouter.isEndpointFailure(e))
+                {
+                    throw e;
+                }
+                //The replica is unreachable or broken, while the query itself may be fine. Retry it once on the primary endpoint below.
+                //Such failures occur while sending the request, i.e. before any of the result was passed to the evaluation function
+                logger.warn("Read replica failed to answer query. Retrying on primary endpoint.");
+            }
+            finally {
+                readReplicaRouter.release(replicaConnection, failure);
+            }
+        }
+        RDFConnection connection = acquireConnection();
+        try {
+            return evaluate(connection, query, timeoutMillis, evaluation);
+        }
+        finally {
+            releaseConnection(connection);
+        }
+    }
+
+    /**
+     * Internal function evaluating a query on a given connection
+     * @param connection The connection on which the query is evaluated
+     * @param query The query to be evaluated
+     * @param timeoutMillis Time budget of the query in milliseconds. 0 or less for no limit
+     * @param evaluation Function evaluating the query execution and consuming its result
+     * @param <T> Type of the result
+     * @return Result of the evaluation function
+     */
+    private <T> T evaluate(RDFConnection connection, Query query, long timeoutMillis, Function<QueryExecution, T> evaluation)
+    {
+        //Results must be consumed within a read transaction. Otherwise, embedded TDB2 datasets refuse access
+        return Txn.calculateRead(connection, () -> {
+            //Careful. QueryExecutions MUST BE CLOSED or will cause a freeze, if >5 are left open!!!
+            try(QueryExecution queryExecution = connection.query(query)) {
+                if(timeoutMillis > 0)
+                {
+                    //Locally, this cancels the query. Remotely, it only bounds how long the response is waited for
+                    queryExecution.setTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+                    if(queryExecution instanceof QueryEngineHTTP)
+                    {
+                        //Makes Fuseki cancel the query as well (in seconds), instead of evaluating it for a client which gave up
+                        ((QueryEngineHTTP) queryExecution).addParam("timeout", String.valueOf(timeoutMillis / 1000.0));
+                    }
+                }
+                try {
+                    return evaluation.apply(queryExecution);
+                }
+                catch (RuntimeException e)
+                {
+                    //E.g. the consumer of the result failed, as the client is gone. Make sure the query does not keep running
+                    queryExecution.abort();
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Internal function to be called after a graph was written. Routes subsequent queries concerning the graph to the primary endpoint for a while,
+     * so that its writes are visible to them, and invalidates the objects cached from the graph. Also increases the version of the store
+     * @param graphUri URI of the graph which was written
+     */
+    private void graphWritten(String graphUri)
+    {
+        storeVersion.incrementAndGet();
+        connectorCache.invalidate(graphUri);
+        descriptionCache.invalidate(graphUri);
+        if(readReplicaRouter != null)
+        {
+            readReplicaRouter.pin(graphUri);
+        }
     }
 
     /**
@@ -355,16 +1097,77 @@ public class RepositoryFacade {
      */
     public ArrayList<QuerySolution> selectQuery(String query)
     {
-        RDFConnection connection = getNewReadOnlyConnectionToFuseki();
-        QueryExecution queryExecution = connection.query(query); //Careful. QueryExecutions MUST BE CLOSED or will cause a freeze, if >5 are left open!!!
-        ResultSet resultSet = queryExecution.execSelect();
         ArrayList<QuerySolution> result = new ArrayList<>();
-        while(resultSet.hasNext())
+        selectQuery(query, solution -> result.add(detach(solution)));
+        return result;
+    }
+
+    /**
+     * Utility function to evaluate a SELECT SPARQL query, handing each binding to a callback as soon as it arrives.
+     * In contrast to selectQuery(String), the result is never held in memory as a whole. The query execution is always closed, even if the callback fails
+     * Note that the solutions handed to the callback are only valid during the callback. Copy the values which are needed later on
+     * @param query SELECT query as String
+     * @param solutionConsumer Function which is called once for every binding of the result
+     */
+    public void selectQuery(String query, Consumer<QuerySolution> solutionConsumer)
+    {
+        selectQuery(query, solutionConsumer, internalQueryTimeoutMillis);
+    }
+
+    /**
+     * Utility function to evaluate a SELECT SPARQL query, handing each binding to a callback as soon as it arrives
+     * @param query SELECT query as String
+     * @param solutionConsumer Function which is called once for every binding of the result
+     * @param timeoutMillis Time budget of the query in milliseconds. 0 or less for no limit
+     */
+    public void selectQuery(String query, Consumer<QuerySolution> solutionConsumer, long timeoutMillis)
+    {
+        evaluate(query, timeoutMillis, queryExecution -> {
+            queryExecution.execSelect().forEachRemaining(solutionConsumer);
+            return null;
+        });
+    }
+
+    /**
+     * Internal function to evaluate a SELECT query which only reads the graphs of a single connector or participant
+     * @param query SELECT query as String
+     * @param connectorGraphUri Graph of the connector or participant. Only recent writes to it route the query to the primary endpoint
+     * @param solutionConsumer Function which is called once for every binding of the result
+     */
+    private void selectConnectorQuery(String query, String connectorGraphUri, Consumer<QuerySolution> solutionConsumer)
+    {
+        evaluate(QueryFactory.create(query), internalQueryTimeoutMillis, connectorGraphUri, queryExecution -> {
+            queryExecution.execSelect().forEachRemaining(solutionConsumer);
+            return null;
+        });
+    }
+
+    /**
+     * Internal function to evaluate a CONSTRUCT query which only reads the graphs of a single connector or participant
+     * @param query CONSTRUCT query as String
+     * @param connectorGraphUri Graph of the connector or participant. Only recent writes to it route the query to the primary endpoint
+     * @return Evaluation result as Model
+     */
+    private Model constructConnectorQuery(String query, String connectorGraphUri)
+    {
+        return evaluate(QueryFactory.create(query), internalQueryTimeoutMillis, connectorGraphUri, QueryExecution::execConstruct);
+    }
+
+    /**
+     * Internal function to make a query solution usable after the end of the transaction in which it was obtained.
+     * Solutions from an embedded TDB2 dataset only hold references into the node table of the dataset, which are resolved here
+     * @param solution The query solution as obtained from the result set
+     * @return Query solution which does not depend on the dataset any longer
+     */
+    private QuerySolution detach(QuerySolution solution)
+    {
+        if(!embeddedStore)
         {
-            result.add(resultSet.next());
+            return solution;
         }
-        queryExecution.close();
-        return result;
+        QuerySolutionMap detachedSolution = new QuerySolutionMap();
+        detachedSolution.addAll(solution);
+        return detachedSolution;
     }
 
     /**
@@ -374,12 +1177,8 @@ public class RepositoryFacade {
      */
     public String selectQueryReturnTSV(String query)
     {
-        RDFConnection connection = getNewReadOnlyConnectionToFuseki();
-        QueryExecution queryExecution = connection.query(query); //Careful. QueryExecutions MUST BE CLOSED or will cause a freeze, if >5 are left open!!!
-        ResultSet resultSet = queryExecution.execSelect();
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        ResultSetFormatter.outputAsTSV(outputStream, resultSet);
-        queryExecution.close();
+        selectQuery(query, outputStream);
         return outputStream.toString();
     }
 
@@ -390,11 +1189,33 @@ public class RepositoryFacade {
      */
     public void selectQuery(String query, OutputStream outputStream)
     {
-        RDFConnection connection = getNewReadOnlyConnectionToFuseki();
-        QueryExecution queryExecution = connection.query(query);
-        ResultSet resultSet = queryExecution.execSelect();
-        ResultSetFormatter.outputAsTSV(outputStream, resultSet);
-        queryExecution.close();
+        selectQuery(query, outputStream, internalQueryTimeoutMillis);
+    }
+
+    /**
+     * Utility function to evaluate a SELECT SPARQL query
+     * If writing to the output stream fails (e.g. because the client disconnected), the running query is cancelled
+     * @param query SELECT query as String
+     * @param outputStream Evaluation result is streamed into this output stream
+     * @param timeoutMillis Time budget of the query in milliseconds. 0 or less for no limit
+     */
+    public void selectQuery(String query, OutputStream outputStream, long timeoutMillis)
+    {
+        selectQuery(QueryFactory.create(query), outputStream, timeoutMillis);
+    }
+
+    /**
+     * Utility function to evaluate an already parsed SELECT SPARQL query
+     * @param query SELECT query. The query object is not modified
+     * @param outputStream Evaluation result is streamed into this output stream
+     * @param timeoutMillis Time budget of the query in milliseconds. 0 or less for no limit
+     */
+    public void selectQuery(Query query, OutputStream outputStream, long timeoutMillis)
+    {
+        evaluate(query, timeoutMillis, queryExecution -> {
+            ResultSetFormatter.outputAsTSV(outputStream, queryExecution.execSelect());
+            return null;
+        });
     }
 
     /**
@@ -404,10 +1225,235 @@ public class RepositoryFacade {
      */
     public Model describeQuery(String query)
     {
-        RDFConnection connection = getNewReadOnlyConnectionToFuseki();
-        Model m = connection.queryDescribe(query);
-        connection.close();
-        return m;
+        return describeQuery(query, internalQueryTimeoutMillis);
+    }
+
+    /**
+     * Utility function to evaluate a DESCRIBE SPARQL query
+     * @param query DESCRIBE query as String
+     * @param timeoutMillis Time budget of the query in milliseconds. 0 or less for no limit
+     * @return Evaluation result (graph)
+     */
+    public Model describeQuery(String query, long timeoutMillis)
+    {
+        return describeQuery(QueryFactory.create(query), timeoutMillis);
+    }
+
+    /**
+     * Utility function to evaluate an already parsed DESCRIBE SPARQL query
+     * @param query DESCRIBE query. The query object is not modified
+     * @param timeoutMillis Time budget of the query in milliseconds. 0 or less for no limit
+     * @return Evaluation result (graph)
+     */
+    public Model describeQuery(Query query, long timeoutMillis)
+    {
+        return evaluate(query, timeoutMillis, QueryExecution::execDescribe);
+    }
+
+    /**
+     * @return Default time budget in milliseconds for queries submitted by users, e.g. via a QueryMessage
+     */
+    public long getUserQueryTimeoutMillis()
+    {
+        return userQueryTimeoutMillis;
+    }
+
+    /**
+     * @return Analyzer deciding whether and how queries submitted by users are admitted
+     */
+    public QueryCostAnalyzer getQueryCostAnalyzer()
+    {
+        return queryCostAnalyzer;
+    }
+
+    /**
+     * @return Cache of the connectors obtained via getConnectorFromTripleStore, e.g. to monitor its hit rate
+     */
+    public ConnectorCache getConnectorCache()
+    {
+        return connectorCache;
+    }
+
+    /**
+     * @return Cache of the descriptions generated by the DescriptionProvider, which is invalidated by all writes of this repository
+     */
+    public DescriptionCache getDescriptionCache()
+    {
+        return descriptionCache;
+    }
+
+    /**
+     * @return Cache of the results of queries submitted by users, which is valid for the current version of the store only
+     */
+    public QueryResultCache getQueryResultCache()
+    {
+        return queryResultCache;
+    }
+
+    /**
+     * @return Locks ordering concurrent updates of the same named graph, shared by all components writing to this repository
+     */
+    public GraphLocks getGraphLocks()
+    {
+        return graphLocks;
+    }
+
+    /**
+     * @return Version of the store, which is increased by every write of this repository. Results obtained at an older version may be outdated
+     */
+    public long getStoreVersion()
+    {
+        return storeVersion.get();
+    }
+
+    /**
+     * Collects all triples reachable from given root nodes within a bounded number of hops, such as the full description of a resource.
+     * Embedded repositories are traversed directly. Remote repositories are traversed level by level, with one query per level for all roots of all graphs.
+     * If resources are stored in graphs of their own, the traversal continues in the graph of a resource once it reaches the resource
+     * @param rootsByGraph URIs of the root nodes, grouped by the graph in which they are traversed. The graphs should be active
+     * @param maxDepth Maximum number of hops from a root. 1 only yields the triples of the roots themselves
+     * @param exclusive true, if only nodes referenced by a single subject should be descended into, e.g. to find what can be removed along with a resource
+     * @return Model containing the reachable triples
+     */
+    public Model getSubtrees(Map<String, ? extends Collection<String>> rootsByGraph, int maxDepth, boolean exclusive)
+    {
+        Model result = ModelFactory.createDefaultModel();
+        Graph resultGraph = result.getGraph();
+        Set<Node> resourceGraphNodes = new HashSet<>();
+        if(resourceGraphs && !rootsByGraph.isEmpty())
+        {
+            //One query for the resource graphs of all graphs involved
+            StringBuilder connectorGraphs = new StringBuilder();
+            rootsByGraph.keySet().forEach(graphUri -> connectorGraphs.append(FmtUtils.stringForNode(NodeFactory.createURI(graphUri))).append(" "));
+            selectQuery("SELECT ?resourceGraph WHERE { VALUES ?connectorGraph { " + connectorGraphs + "} GRAPH <" + adminGraphUri + "> { ?resourceGraph <" + partOfGraphUrl + "> ?connectorGraph . } }",
+                    solution -> resourceGraphNodes.add(solution.get("resourceGraph").asNode()));
+        }
+        if(connectionPool == null)
+        {
+            Txn.executeRead(dataset, () -> {
+                DatasetGraph datasetGraph = dataset.asDatasetGraph();
+                Function<Node, Graph> graphOfNode = node -> resourceGraphNodes.contains(node) ? datasetGraph.getGraph(node) : null;
+                rootsByGraph.forEach((graphUri, roots) -> {
+                    Node graphNode = NodeFactory.createURI(graphUri);
+                    //Do not implicitly create graphs which are not there
+                    if(datasetGraph.containsGraph(graphNode))
+                    {
+                        Graph graph = datasetGraph.getGraph(graphNode);
+                        roots.forEach(root -> SubtreeClosure.traverse(graph, NodeFactory.createURI(root), maxDepth, exclusive, graphOfNode, resultGraph::add));
+                    }
+                });
+            });
+            return result;
+        }
+        //Pairs of graph and node which are to be expanded next
+        List<Node[]> frontier = new ArrayList<>();
+        Set<List<Node>> visited = new HashSet<>();
+        rootsByGraph.forEach((graphUri, roots) -> roots.forEach(root -> {
+            Node rootNode = NodeFactory.createURI(root);
+            Node[] pair = { resourceGraphNodes.contains(rootNode) ? rootNode : NodeFactory.createURI(graphUri), rootNode };
+            if(visited.add(Arrays.asList(pair)))
+            {
+                frontier.add(pair);
+            }
+        }));
+        //Nodes to be expanded at the following depths. Nodes below blank nodes are found several hops ahead
+        List<List<Node[]>> upcoming = new ArrayList<>();
+        for(int depth = 0; depth < maxDepth && (!frontier.isEmpty() || !upcoming.isEmpty()); depth++)
+        {
+            int remainingHops = maxDepth - depth - 1;
+            for(String values : toValuesBlocks(frontier))
+            {
+                selectQuery("SELECT ?g ?s ?p ?o ?level WHERE { VALUES (?g ?root) { " + values + " } GRAPH ?g { " + subtreePattern(remainingHops, exclusive) + " } }", solution -> {
+                    Node graph = solution.get("g").asNode();
+                    Node object = solution.get("o").asNode();
+                    resultGraph.add(Triple.create(solution.get("s").asNode(), solution.get("p").asNode(), object));
+                    //Blank nodes cannot be referred to in the next query. They have already been descended into by this one
+                    int hops = solution.getLiteral("level").getInt() + 1;
+                    Node objectGraph = resourceGraphNodes.contains(object) ? object : graph;
+                    if(object.isURI() && hops <= remainingHops && visited.add(Arrays.asList(objectGraph, object)))
+                    {
+                        while(upcoming.size() < hops)
+                        {
+                            upcoming.add(new ArrayList<>());
+                        }
+                        upcoming.get(hops - 1).add(new Node[]{ objectGraph, object });
+                    }
+                });
+            }
+            List<Node[]> next = upcoming.isEmpty() ? new ArrayList<>() : upcoming.remove(0);
+            if(exclusive && !next.isEmpty())
+            {
+                Set<List<Node>> exclusiveNodes = new HashSet<>();
+                for(String values : toValuesBlocks(next))
+                {
+                    selectQuery("SELECT ?g ?s WHERE { VALUES (?g ?s) { " + values + " } GRAPH ?g { ?parent ?p ?s } } GROUP BY ?g ?s HAVING (COUNT(DISTINCT ?parent) = 1)",
+                            solution -> exclusiveNodes.add(Arrays.asList(solution.get("g").asNode(), solution.get("s").asNode())));
+                }
+                //Resources with a graph of their own are described there alone
+                next.removeIf(pair -> !resourceGraphNodes.contains(pair[1]) && !exclusiveNodes.contains(Arrays.asList(pair)));
+            }
+            frontier.clear();
+            frontier.addAll(next);
+        }
+        return result;
+    }
+
+    /**
+     * Internal function building the graph pattern which yields the triples (?s ?p ?o) of a node ?root and of the blank nodes below it.
+     * As blank nodes cannot be referred to in subsequent queries, chains of blank nodes are followed within this pattern, just like SubtreeClosure.traverse descends into them.
+     * ?level is the number of hops from ?root to ?s
+     * @param blankNodeHops Maximum number of hops along blank nodes
+     * @param exclusive true, if only blank nodes referenced by a single subject should be descended into
+     * @return Graph pattern, to be placed within a GRAPH block
+     */
+    private static String subtreePattern(int blankNodeHops, boolean exclusive)
+    {
+        StringBuilder pattern = new StringBuilder("{ ?root ?p ?o . BIND(?root AS ?s) BIND(0 AS ?level) }");
+        for(int level = 1; level <= blankNodeHops; level++)
+        {
+            pattern.append(" UNION { ");
+            String parent = "?root";
+            for(int hop = 1; hop <= level; hop++)
+            {
+                String node = hop == level ? "?s" : "?b" + hop;
+                pattern.append(parent).append(" ?p").append(hop).append(" ").append(node).append(" . FILTER(isBlank(").append(node).append(")) ");
+                if(exclusive)
+                {
+                    pattern.append("FILTER NOT EXISTS { ?other").append(hop).append(" ?q").append(hop).append(" ").append(node).append(" . FILTER(?other").append(hop).append(" != ").append(parent).append(") } ");
+                }
+                parent = node;
+            }
+            pattern.append("?s ?p ?o . BIND(").append(level).append(" AS ?level) }");
+        }
+        return pattern.toString();
+    }
+
+    /**
+     * Internal function to turn pairs of nodes into the content of VALUES blocks, splitting them so that single queries do not become too large
+     * @param pairs Pairs of graph and node
+     * @return Content of the VALUES blocks, one per query
+     */
+    private static List<String> toValuesBlocks(List<Node[]> pairs)
+    {
+        List<String> blocks = new ArrayList<>();
+        StringBuilder block = new StringBuilder();
+        int size = 0;
+        for(Node[] pair : pairs)
+        {
+            //Written as SPARQL terms, just like the parameters of a ParameterizedSparqlString
+            block.append("(").append(FmtUtils.stringForNode(pair[0])).append(" ").append(FmtUtils.stringForNode(pair[1])).append(") ");
+            if(++size == 500)
+            {
+                blocks.add(block.toString());
+                block = new StringBuilder();
+                size = 0;
+            }
+        }
+        if(size > 0)
+        {
+            blocks.add(block.toString());
+        }
+        return blocks;
     }
 
     /**
@@ -416,31 +1462,23 @@ public class RepositoryFacade {
      */
     public Model getAllStatements() {
         //Statements are split across different named graphs
-        //Iteratively building up the query string Each active graph adds one "FROM NAMED <URL>" clause
-        StringBuilder queryStringBuilder = new StringBuilder();
-
-        //CONSTRUCT so that we get a graph as result
-        queryStringBuilder.append("CONSTRUCT { ?s ?p ?o . } ");
-
         //If no graphs exist, return an empty model
-        List<String> activeGraphs = getActiveGraphs();
-        if(activeGraphs.isEmpty())
+        if(getSize() == 0)
         {
             return ModelFactory.createDefaultModel();
         }
 
-        //Only active graphs
-        activeGraphs.forEach(graphName -> queryStringBuilder.append("FROM NAMED <").append(graphName).append("> "));
+        //CONSTRUCT so that we get a graph as result. Only active graphs are matched
+        //The GRAPH ?g part is required for any results to be returned
+        String queryString = "CONSTRUCT { ?s ?p ?o . } WHERE { " + getActiveGraphPattern("?g") + "GRAPH ?g { ?s ?p ?o . } } ";
 
-        //Get all statements from these graphs. The GRAPH ?g part is required for any results to be returned
-        queryStringBuilder.append(" WHERE GRAPH ?g { ?s ?p ?o . } ");
-
-        //Run the query
-        return constructQuery(queryStringBuilder.toString());
+        //Run the query. It reads the whole store, so it is not bounded by the budget of internal lookups
+        return constructQuery(queryString, UNBOUNDED);
     }
 
     /**
      * Utility function to obtain an IDS Connector object from the triple store
+     * Connectors are cached until their graph is written. The returned object may be shared and must not be modified
      * @param connectorUri The URI of the connector to be obtained
      * @return an IDS connector object with the requested connectorUri, if it is known to the broker
      * @throws RejectMessageException if the connector is not known to the broker, or if the parsing fails
@@ -450,14 +1488,20 @@ public class RepositoryFacade {
         {
             throw new RejectMessageException(RejectionReason.NOT_FOUND, new NullPointerException("The connector with URI " + connectorUri + " is not known to this broker or unavailable."));
         }
+        Connector cachedConnector = connectorCache.get(connectorUri.toString());
+        if(cachedConnector != null)
+        {
+            return cachedConnector;
+        }
+        //Obtained before reading, so that a concurrent write prevents caching the result
+        long version = connectorCache.getVersion(connectorUri.toString());
         logger.info("Starting SPARQL query to fetch connector from the Fuseki server");
-        //Fire the query against our repository
-        ParameterizedSparqlString queryString = new ParameterizedSparqlString("CONSTRUCT { ?s ?p ?o . }" +
-                "WHERE { GRAPH ?g { ?s ?p ?o . } } ");
-        queryString.setIri("g", connectorUri.toString());
         try {
+            //Fire the query against our repository. The pattern also covers the graphs of the connector's resources, if they are stored separately
+            String queryString = "CONSTRUCT { ?s ?p ?o . }" +
+                    "WHERE { " + getConnectorGraphPattern("?g", connectorUri.toString()) + "GRAPH ?g { ?s ?p ?o . } } ";
             logger.info("Constructing the model");
-            Model result = constructQuery(queryString.toString());
+            Model result = constructConnectorQuery(queryString, connectorUri.toString());
             logger.info("Model construction complete");
             //Check if response is empty
             if (result.isEmpty()) {
@@ -467,7 +1511,9 @@ public class RepositoryFacade {
 
 
             //Generate a connector object from the SPARQL result string (already containing the new resource!). This is a bit of a messy business
-            return ConstructQueryResultHandler.GraphQueryResultToConnector(result);
+            Connector connector = ConstructQueryResultHandler.GraphQueryResultToConnector(result);
+            connectorCache.put(connectorUri.toString(), version, connector, result.size());
+            return connector;
         }
         catch (ARQException e)
         {
@@ -491,7 +1537,7 @@ public class RepositoryFacade {
         }
         logger.info("Starting SPARQL query to fetch connector from the Fuseki server");
         //Fire the query against our repository
-        ParameterizedSparqlString queryString = new ParameterizedSparqlString("prefix ids: <https://w3id.org/idsa/core/>\n" +
+        ParameterizedSparqlString queryString = resourceGraphs ? getPagedConnectorQuery(limit, offset) : new ParameterizedSparqlString("prefix ids: <https://w3id.org/idsa/core/>\n" +
                 "\n" +
                 "CONSTRUCT {?subject ?predicate ?object}\n" +
                 "WHERE {\n" +
@@ -540,7 +1586,7 @@ public class RepositoryFacade {
         logger.info("Retrieved Connector " + connectorUri.toString() + " with " + limit + " number of Resources in a batch");
         try {
             logger.info("Constructing the model");
-            Model result = constructQuery(queryString.toString());
+            Model result = constructConnectorQuery(queryString.toString(), connectorUri.toString());
             logger.info("Model construction complete");
             //Check if response is empty
             if (result.isEmpty()) {
@@ -561,6 +1607,34 @@ public class RepositoryFacade {
     }
 
 
+    /**
+     * Internal function providing the query for a page of the resources of a connector, if resources are stored in graphs of their own.
+     * The resources of the page are selected from the links in the admin graph, which are ordered by an index, instead of filtering all triples by string comparisons
+     * @param limit number of Resources to put inside the Connector object
+     * @param offset position from which "limit" number of Resources will be taken from the triple store
+     * @return Query, in which ?g still needs to be set to the graph of the connector
+     */
+    private ParameterizedSparqlString getPagedConnectorQuery(int limit, int offset)
+    {
+        ParameterizedSparqlString queryString = new ParameterizedSparqlString("prefix ids: <https://w3id.org/idsa/core/>\n" +
+                "\n" +
+                "CONSTRUCT { ?subject ?predicate ?object . ?catalog ids:offeredResource ?resource . }\n" +
+                "WHERE {\n" +
+                "  {\n" +
+                "    #Everything under the connector, other than the links to its Resources\n" +
+                "    GRAPH ?g { ?subject ?predicate ?object . FILTER (?predicate != ids:offeredResource) }\n" +
+                "  } UNION {\n" +
+                "    #Number(LIMIT) of Resource(s) from the OFFSET, with their links and their own graphs\n" +
+                "    { SELECT ?resource WHERE { GRAPH ?admin { ?resource ?partOfGraph ?g . } } ORDER BY ?resource LIMIT " + limit + " OFFSET " + offset + " }\n" +
+                "    GRAPH ?g { ?catalog ids:offeredResource ?resource . }\n" +
+                "    GRAPH ?resource { ?subject ?predicate ?object . }\n" +
+                "  }\n" +
+                "}");
+        queryString.setIri("admin", adminGraphUri.toString());
+        queryString.setIri("partOfGraph", partOfGraphUrl);
+        return queryString;
+    }
+
     /**
      * Utility function to obtain an IDS Connector object from the triple store
      * @param connectorUri The URI of the connector to be obtained
@@ -573,7 +1647,7 @@ public class RepositoryFacade {
     public Connector getReducedConnector(URI connectorUri, int limit, int offset) throws RejectMessageException {
         String rawQueryString = String.format(CONNECTOR_QUERY_HATEOS_BEGINNING +
                 " LIMIT " + limit + " OFFSET " + offset +
-                CONNECTOR_QUERY_HATEOS_END, connectorUri);
+                CONNECTOR_QUERY_HATEOS_END, connectorUri, getConnectorGraphPattern("?resourceGraph", connectorUri.toString()));
         return getReducedConnector(connectorUri, rawQueryString);
     }
 
@@ -588,7 +1662,7 @@ public class RepositoryFacade {
     public Connector getReducedConnector(URI connectorUri, int limit) throws RejectMessageException {
         String rawQueryString = String.format(CONNECTOR_QUERY_HATEOS_BEGINNING +
                 " LIMIT " + limit +
-                CONNECTOR_QUERY_HATEOS_END, connectorUri);
+                CONNECTOR_QUERY_HATEOS_END, connectorUri, getConnectorGraphPattern("?resourceGraph", connectorUri.toString()));
         return getReducedConnector(connectorUri, rawQueryString);
     }
 
@@ -600,7 +1674,7 @@ public class RepositoryFacade {
      */
     public Connector getReducedConnector(URI connectorUri) throws RejectMessageException {
         String rawQueryString = String.format(CONNECTOR_QUERY_HATEOS_BEGINNING +
-                CONNECTOR_QUERY_HATEOS_END, connectorUri);
+                CONNECTOR_QUERY_HATEOS_END, connectorUri, getConnectorGraphPattern("?resourceGraph", connectorUri.toString()));
         return getReducedConnector(connectorUri, rawQueryString);
     }
 
@@ -614,7 +1688,7 @@ public class RepositoryFacade {
         //Fire the query against our repository
         ParameterizedSparqlString queryString = new ParameterizedSparqlString(rawQueryString);
         try {
-            Model result = constructQuery(queryString.toString());
+            Model result = constructConnectorQuery(queryString.toString(), connectorUri.toString());
 
             //Check if response is empty
             if (result.isEmpty()) {
@@ -625,6 +1699,7 @@ public class RepositoryFacade {
             //Generate a connector object from the SPARQL result string (already containing the new resource!). This is a bit of a messy business
             //return ConstructQueryResultHandler.GraphQueryResultToConnector(result);
 
+            ConstructQueryResultHandler.removeMaterializedSupertypes(result);
             RDFWriter writer = RDFWriter.create().format(RDFFormat.JSONLD).source(result).build();
             ByteArrayOutputStream os = new ByteArrayOutputStream();
             writer.output(os);
@@ -658,7 +1733,7 @@ public class RepositoryFacade {
                 "WHERE { GRAPH ?g { ?s ?p ?o . } } ");
         queryString.setIri("g", participantUri.toString());
         try {
-            Model result = constructQuery(queryString.toString());
+            Model result = constructConnectorQuery(queryString.toString(), participantUri.toString());
 
             //Check if response is empty
             if (result.isEmpty()) {
@@ -694,9 +1769,13 @@ public class RepositoryFacade {
             logger.info("Admin graph does not yet exist. Initializing it with one statement.");
             Model adminGraphModel = ModelFactory.createDefaultModel();
             adminGraphModel.addLiteral(ResourceFactory.createResource(adminGraphUri.toString()), ResourceFactory.createProperty(graphIsActiveUrl), false);
-            RDFConnection connection = getNewWritableConnection();
-            connection.put(adminGraphUri.toString(), adminGraphModel);
-            connection.close();
+            RDFConnection connection = acquireConnection();
+            try {
+                connection.put(adminGraphUri.toString(), adminGraphModel);
+            }
+            finally {
+                releaseConnection(connection);
+            }
             //It does not exist - create it (done by setting it to passive, as the fact that it is passive is stored within the admin graph)
             //changePassivationOfGraph(adminGraphUri.toString(), false);
         } else {
@@ -704,19 +1783,143 @@ public class RepositoryFacade {
         }
     }
 
+    /**
+     * Loads the states of all named graphs from the triple store into the in-process registry of graph states.
+     * This is done once at startup. Afterwards, the registry is kept up to date by changePassivationOfGraph
+     */
+    public void reloadGraphStates()
+    {
+        logger.info("Loading graph states from the admin graph");
+        Map<String, ActiveGraphRegistry.GraphState> states = new HashMap<>();
+        //Graphs holding data without any entry in the admin graph are treated as passive, as they are neither returned nor hidden by queries
+        selectQuery("SELECT DISTINCT ?g WHERE { GRAPH ?g { ?s ?p ?o . } }", solution -> states.put(solution.get("g").toString(), ActiveGraphRegistry.GraphState.PASSIVE), UNBOUNDED);
+        selectQuery("SELECT ?graph ?active WHERE { GRAPH <" + adminGraphUri + "> { ?graph <" + graphIsActiveUrl + "> ?active . } } ", solution -> {
+            boolean active = solution.getLiteral("active").getBoolean();
+            String graph = solution.get("graph").toString();
+            //An existing graph must not be turned into an unknown one, just because it was passivated
+            states.put(graph, active ? ActiveGraphRegistry.GraphState.ACTIVE : ActiveGraphRegistry.GraphState.PASSIVE);
+        }, UNBOUNDED);
+        //Graphs of single resources are part of their connector's graph, not connectors of their own
+        selectQuery("SELECT ?graph WHERE { GRAPH <" + adminGraphUri + "> { ?graph <" + partOfGraphUrl + "> ?connectorGraph . } } ", solution -> states.remove(solution.get("graph").toString()), UNBOUNDED);
+        activeGraphRegistry.load(states);
+        //The set of active graphs, and thereby the results of rewritten queries, may have changed
+        storeVersion.incrementAndGet();
+        logger.info("Loaded states of " + states.size() + " graphs, " + activeGraphRegistry.getActiveGraphCount() + " of which are active");
+    }
+
+    /**
+     * Adds the supertypes of all stored instances of subclasses of ids:Resource and ids:Connector, which are missing in the triple store.
+     * New objects receive them from the ModelCreator when they are stored. This converts repositories written before. Running it again has no effect.
+     * Once done, this is marked in the admin graph, so that the scan over the entire triple store is not repeated at every startup
+     */
+    public void materializeSupertypes()
+    {
+        logger.info("Materializing the supertypes of stored connectors and resources");
+        StringBuilder subtypes = new StringBuilder();
+        INFOMODEL.SUPERTYPES.forEach((subtype, supertype) -> subtypes.append("(<").append(subtype.getURI()).append("> <").append(supertype.getURI()).append(">) "));
+        String missingSupertypes = "VALUES (?type ?supertype) { " + subtypes + "} " +
+                "GRAPH ?g { ?s a ?type . FILTER NOT EXISTS { ?s a ?supertype . } } ";
+        //The graphs which are modified, so that the objects cached from them can be invalidated afterwards
+        Set<String> modifiedGraphs = new HashSet<>();
+        selectQuery("SELECT DISTINCT ?g WHERE { " + missingSupertypes + "}", solution -> modifiedGraphs.add(solution.get("g").toString()), UNBOUNDED);
+        executeUpdateDirectly(UpdateFactory.create("INSERT { GRAPH ?g { ?s a ?supertype . } } WHERE { " + missingSupertypes + "} ; " +
+                "INSERT DATA { GRAPH <" + adminGraphUri + "> { <" + adminGraphUri + "> <" + supertypesMaterializedUrl + "> true . } }"));
+        //Cached query results and descriptions lack the added types
+        storeVersion.incrementAndGet();
+        modifiedGraphs.forEach(this::graphWritten);
+    }
+
+    /**
+     * Rebuilds the index of rewritten URIs from the owl:sameAs and type statements in the triple store.
+     * Statements in graphs of single resources are attributed to the graph of their connector
+     */
+    public void reloadUriResolutionIndex()
+    {
+        logger.info("Loading the URI resolution index");
+        StringBuilder typeList = new StringBuilder();
+        UriResolutionIndex.TRACKED_TYPES.forEach(type -> typeList.append(typeList.length() == 0 ? "" : ", ").append("<").append(type).append(">"));
+        Map<String, Model> modelsByGraph = new HashMap<>();
+        selectQuery("SELECT ?owner ?s ?p ?o WHERE { " +
+                "GRAPH ?g { { ?s <" + OWL.sameAs.getURI() + "> ?o . BIND(<" + OWL.sameAs.getURI() + "> AS ?p) } UNION { ?s <" + RDF.type.getURI() + "> ?o . FILTER(?o IN (" + typeList + ")) BIND(<" + RDF.type.getURI() + "> AS ?p) } } " +
+                "FILTER(?g != <" + adminGraphUri + ">) " +
+                "OPTIONAL { GRAPH <" + adminGraphUri + "> { ?g <" + partOfGraphUrl + "> ?connectorGraph . } } " +
+                "BIND(COALESCE(?connectorGraph, ?g) AS ?owner) }", solution -> {
+            if(solution.get("s").isURIResource() && solution.get("o").isURIResource())
+            {
+                modelsByGraph.computeIfAbsent(solution.get("owner").toString(), graph -> ModelFactory.createDefaultModel())
+                        .add(solution.getResource("s"), ResourceFactory.createProperty(solution.getResource("p").getURI()), solution.getResource("o"));
+            }
+        }, UNBOUNDED);
+        uriResolutionIndex.load(modelsByGraph);
+        logger.info("Loaded " + uriResolutionIndex.size() + " objects into the URI resolution index");
+    }
+
+    /**
+     * @return The in-process index of rewritten URIs, which resolves original URIs and tells the type and owning graph of stored objects
+     */
+    public UriResolutionIndex getUriResolutionIndex()
+    {
+        return uriResolutionIndex;
+    }
+
+    /**
+     * @return The in-process registry of graph states, e.g. to detect changes to the set of active graphs via its version
+     */
+    public ActiveGraphRegistry getActiveGraphRegistry()
+    {
+        return activeGraphRegistry;
+    }
+
     /**
      * Utility function to return a list of all active (i.e. non-deleted, non-passivated) named graphs
-     * Note: This function is often used in the "FROM NAMED" parts in SPARQL queries. In case no active graph exists,
-     * one needs to be careful, as having no "FROM NAMED" statement means that all named graphs will be used, including our passivated graphs
-     * Hence, special treatment is often required in case this list is empty!
+     * Note: Do not use this list to build "FROM NAMED" parts in SPARQL queries, as the query would grow with the number of graphs.
+     * Use getActiveGraphPattern or restrictToActiveGraphs instead
      * @return List of all active (i.e. non-deleted, non-passivated) named graphs
      */
     public List<String> getActiveGraphs()
     {
-        logger.info("Running SPARQL query to the Fuseki Server to fetch active graphs");
-        ArrayList<QuerySolution> resultSet = selectQuery("SELECT ?graph FROM NAMED <" + adminGraphUri + "> WHERE { GRAPH ?g { ?graph <" + graphIsActiveUrl + "> true . } } ");
-        logger.info("SPARQL query to fetch active graphs complete");
-        return resultSet.stream().map(result -> result.get("graph").toString()).collect(Collectors.toList());
+        //Answered from the registry, which mirrors the admin graph
+        return activeGraphRegistry.getActiveGraphs();
+    }
+
+    /**
+     * Restricts all GRAPH patterns of a query to active graphs, by joining them with the graph states stored in the admin graph.
+     * In contrast to FROM NAMED clauses listing all active graphs, the size of the query does not depend on the number of graphs
+     * @param query The query to be restricted. It is modified in place
+     * @return The restricted query
+     */
+    public Query restrictToActiveGraphs(Query query)
+    {
+        return new ActiveGraphTransform(adminGraphUri.toString(), graphIsActiveUrl).apply(query);
+    }
+
+    /**
+     * Provides a graph pattern which only matches if a graph variable is bound to an active graph. Place it before the GRAPH pattern using the variable
+     * @param graphVariable The graph variable, including the question mark, e.g. "?g"
+     * @return Graph pattern to be included in the WHERE part of a query
+     */
+    public String getActiveGraphPattern(String graphVariable)
+    {
+        return "GRAPH <" + adminGraphUri + "> { " + graphVariable + " <" + graphIsActiveUrl + "> true . } ";
+    }
+
+    /**
+     * Provides a graph pattern binding a graph variable to the graph of a connector and, if resources are stored in graphs of their own, to the graphs of its resources.
+     * Place it before the GRAPH pattern using the variable
+     * @param graphVariable The graph variable, including the question mark, e.g. "?g"
+     * @param connectorGraphUri The named graph of the connector
+     * @return Graph pattern to be included in the WHERE part of a query
+     * @throws ARQException if the URI of the connector graph would break out of its IRI
+     */
+    public String getConnectorGraphPattern(String graphVariable, String connectorGraphUri)
+    {
+        ParameterizedSparqlString pattern = new ParameterizedSparqlString(resourceGraphs
+                ? "{ VALUES " + graphVariable + " { ?connectorGraph } } UNION { GRAPH ?admin { " + graphVariable + " ?partOfGraph ?connectorGraph . } } "
+                : "VALUES " + graphVariable + " { ?connectorGraph } ");
+        pattern.setIri("connectorGraph", connectorGraphUri);
+        pattern.setIri("admin", adminGraphUri.toString());
+        pattern.setIri("partOfGraph", partOfGraphUrl);
+        return pattern.toString();
     }
 
     /**
@@ -727,39 +1930,7 @@ public class RepositoryFacade {
     public boolean graphIsActive(String graphUrl) throws RejectMessageException {
         //Query admin graph, check if a triple satisfying "URI isActive true" exists
         logger.debug("Asking whether graph " + graphUrl + " is active.");
-        ParameterizedSparqlString parameterizedSparqlString = new ParameterizedSparqlString("ASK FROM NAMED <" + adminGraphUri.toString() + "> WHERE { GRAPH ?g { ?connector <" + graphIsActiveUrl + "> true . } } ");
-        parameterizedSparqlString.setIri("connector", graphUrl);
-        try {
-            return booleanQuery(parameterizedSparqlString.toString());
-        }
-        catch (ARQException e)
-        {
-            logger.info("Potential injection attack detected.", e);
-            throw new RejectMessageException(RejectionReason.MALFORMED_MESSAGE);
-        }
-    }
-
-    /**
-     * Internal function to remove all statements about a named graph from the admin graph. This is required when a graph changes states
-     * @param graphUrl Graph URL which should be removed from the admin graph
-     */
-    private void removeGraphFromAdminGraph(String graphUrl) throws RejectMessageException {
-        ParameterizedSparqlString parameterizedSparqlString = new ParameterizedSparqlString("CONSTRUCT { ?s ?p ?o . } FROM NAMED <" + adminGraphUri.toString() + "> WHERE { GRAPH <" + adminGraphUri.toString() + "> { ?s ?p ?o } }");
-        parameterizedSparqlString.setIri("s", graphUrl);
-        try {
-            Model constructSolution = constructQuery(parameterizedSparqlString.toString());
-            /*ArrayList<Statement> solutionAsStatements = new ArrayList<>();
-            for (QuerySolution solution : selectSolution) {
-                solutionAsStatements.add(ResourceFactory.createStatement(solution.getResource("s"), ResourceFactory.createProperty(solution.get("p").toString()), solution.get("o")));
-            }*/
-
-            removeStatements(constructSolution, adminGraphUri.toString());
-        }
-        catch (ARQException e)
-        {
-            logger.warn("Potential SPARQL injection attack detected.", e);
-            throw new RejectMessageException(RejectionReason.MALFORMED_MESSAGE);
-        }
+        return activeGraphRegistry.isActive(graphUrl);
     }
 
     /**
@@ -775,13 +1946,27 @@ public class RepositoryFacade {
             if(!active)
                 throw new RejectMessageException(RejectionReason.NOT_FOUND, new NullPointerException("The graph does not exist"));
         }
+        try {
+            //The URL ends up in an update request. Make sure it cannot break out of its IRI
+            new URI(graphUrl);
+        }
+        catch (URISyntaxException e)
+        {
+            logger.warn("Potential SPARQL injection attack detected.", e);
+            throw new RejectMessageException(RejectionReason.MALFORMED_MESSAGE);
+        }
         //At this point, the graph either exists, or we want to store for a new graph that it is now active
         logger.info("Changing passivation of graph " + graphUrl + ". Is now active: " + active);
-        removeGraphFromAdminGraph(graphUrl);
-
-        Model newStatements = ModelFactory.createDefaultModel();
-        newStatements.addLiteral(ResourceFactory.createResource(graphUrl), ResourceFactory.createProperty(graphIsActiveUrl), active);
-        addStatements(newStatements, adminGraphUri.toString());
+        //Swapping the state is a single request, without reading the admin graph first
+        UpdateRequest updateRequest = new UpdateRequest();
+        appendGraphState(updateRequest, graphUrl, active);
+        executeUpdate(updateRequest);
+        graphWritten(graphUrl);
+        //The states of the resource graphs have changed along with it
+        getResourceGraphs(graphUrl).forEach(this::graphWritten);
+
+        //Only update the registry once the change has been persisted
+        activeGraphRegistry.setState(graphUrl, active);
     }
 
     /**
@@ -792,17 +1977,8 @@ public class RepositoryFacade {
     public boolean graphExists(String graphUrl) throws RejectMessageException {
         logger.debug("Asking whether graph " + graphUrl + " exists.");
 
-        //Can we find the graph in the triplestore? If yes, then it exists and was not deleted
-        try {
-            ParameterizedSparqlString parameterizedSparqlString = new ParameterizedSparqlString("ASK FROM NAMED <" + graphUrl + "> WHERE { GRAPH ?g { ?s ?p ?o . } } ");
-            parameterizedSparqlString.setIri("g", graphUrl);
-            return booleanQuery(parameterizedSparqlString.toString());
-        }
-        catch (ARQException e)
-        {
-            logger.info("Potential injection attack detected.", e);
-            throw new RejectMessageException(RejectionReason.MALFORMED_MESSAGE);
-        }
+        //Is the graph known to the registry? If yes, then it exists and was not deleted
+        return activeGraphRegistry.exists(graphUrl) || graphUrl.equals(adminGraphUri.toString());
     }
 
 
@@ -811,7 +1987,7 @@ public class RepositoryFacade {
      * @return Number of named graphs in the triple store
      */
     public int getSize() {
-        return getActiveGraphs().size();
+        return activeGraphRegistry.getActiveGraphCount();
     }
 
 }
@@ -0,0 +1,27 @@
+package de.fraunhofer.iais.eis.ids.index.common.persistence;
+
+import de.fraunhofer.iais.eis.ids.index.common.util.SparqlEndpointSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Command line tool converting an existing repository to the layout in which each offered resource is stored in a named graph of its own.
+ * Run it once while the broker is stopped, before setting sparql.resourceGraphs=true. Running it again has no effect.
+ * Usage: ResourceGraphMigration &lt;SPARQL URL or tdb2:directory&gt;
+ */
+public class ResourceGraphMigration {
+    final private static Logger logger = LoggerFactory.getLogger(ResourceGraphMigration.class);
+
+    public static void main(String[] args) {
+        if(args.length != 1)
+        {
+            System.err.println("Usage: ResourceGraphMigration <SPARQL URL or tdb2:directory>");
+            System.exit(1);
+        }
+        try(RepositoryFacade repositoryFacade = new RepositoryFacade(args[0], new SparqlEndpointSettings().resourceGraphs(true))) {
+            long start = System.currentTimeMillis();
+            int moved = repositoryFacade.migrateToResourceGraphs();
+            logger.info("Moved " + moved + " resources to graphs of their own (" + (System.currentTimeMillis() - start) + " ms)");
+        }
+    }
+}
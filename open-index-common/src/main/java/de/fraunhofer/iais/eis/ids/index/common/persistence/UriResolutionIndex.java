@@ -0,0 +1,235 @@
+package de.fraunhofer.iais.eis.ids.index.common.persistence;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.rdf.model.Statement;
+import org.apache.jena.vocabulary.OWL;
+import org.apache.jena.vocabulary.RDF;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-process index from the original URIs of connectors, resources and their child objects to the URIs they were rewritten to, together with the graph owning them and their types.
+ * The broker replaces the URIs of all objects it stores and links the new URIs to the original ones via owl:sameAs. These statements are the persistent source of the index:
+ * it is rebuilt from them at startup and then kept up to date by the RepositoryFacade on every write, so that URIs can be resolved without a round trip to the triple store.
+ * The owning graph is always the graph of the connector, even if a resource is stored in a graph of its own
+ */
+public class UriResolutionIndex {
+
+    //Subclasses are indexed by their supertype, which is materialized in the triple store as well
+    public static final Set<String> TRACKED_TYPES = Set.of(INFOMODEL.RESOURCE.getURI(), INFOMODEL.CONNECTOR.getURI());
+
+    /**
+     * An indexed object
+     */
+    public static class Entry {
+        private final String originalUri;
+        private final String rewrittenUri;
+        private final String graph;
+        private final Set<String> types;
+
+        private Entry(String originalUri, String rewrittenUri, String graph, Set<String> types) {
+            this.originalUri = originalUri;
+            this.rewrittenUri = rewrittenUri;
+            this.graph = graph;
+            this.types = types;
+        }
+
+        /**
+         * @return The URI under which the object was announced. Same as the rewritten URI, if the object was stored without rewriting its URI
+         */
+        public String getOriginalUri() {
+            return originalUri;
+        }
+
+        /**
+         * @return The URI under which the object is stored
+         */
+        public String getRewrittenUri() {
+            return rewrittenUri;
+        }
+
+        /**
+         * @return The named graph of the connector owning the object
+         */
+        public String getGraph() {
+            return graph;
+        }
+
+        /**
+         * @return The types ids:Resource and ids:Connector, if the object is an instance of them or of their subclasses. Other types are not indexed
+         */
+        public Set<String> getTypes() {
+            return types;
+        }
+
+        /**
+         * @return true, if the object is an ids:Resource or one of its subclasses
+         */
+        public boolean isResource() {
+            return types.contains(INFOMODEL.RESOURCE.getURI());
+        }
+    }
+
+    private final Map<String, Entry> entriesByRewrittenUri = new ConcurrentHashMap<>();
+    //Original URIs are only unique within the graph of a connector, as different connectors may offer resources with the same URI
+    private final Map<String, String> rewrittenUrisByOriginalUri = new ConcurrentHashMap<>();
+    //Only accessed while holding the lock of this object
+    private final Map<String, Set<String>> rewrittenUrisByGraph = new HashMap<>();
+
+    /**
+     * Replaces the content of the index entirely, e.g. when rebuilding it from the triple store at startup
+     * @param modelsByGraph Map from the graph of a connector to its owl:sameAs and rdf:type statements
+     */
+    public synchronized void load(Map<String, Model> modelsByGraph) {
+        entriesByRewrittenUri.clear();
+        rewrittenUrisByOriginalUri.clear();
+        rewrittenUrisByGraph.clear();
+        modelsByGraph.forEach(this::add);
+    }
+
+    /**
+     * Indexes all objects written to a graph. Objects are indexed if they carry an owl:sameAs statement, or if they are connectors or resources.
+     * Must only be called once the statements were successfully persisted
+     * @param graphUri URI of the named graph of the connector
+     * @param statements The statements written to the graph
+     */
+    public synchronized void add(String graphUri, Model statements) {
+        Map<String, String> originalUris = new HashMap<>();
+        Map<String, Set<String>> types = new HashMap<>();
+        statements.listStatements(null, OWL.sameAs, (RDFNode) null).forEachRemaining(statement -> {
+            if(statement.getSubject().isURIResource() && statement.getObject().isURIResource())
+            {
+                originalUris.put(statement.getSubject().getURI(), statement.getObject().asResource().getURI());
+            }
+        });
+        statements.listStatements(null, RDF.type, (RDFNode) null).forEachRemaining(statement -> {
+            if(statement.getSubject().isURIResource() && statement.getObject().isURIResource())
+            {
+                Resource type = INFOMODEL.SUPERTYPES.getOrDefault(statement.getObject().asResource(), statement.getObject().asResource());
+                if(TRACKED_TYPES.contains(type.getURI()))
+                {
+                    types.computeIfAbsent(statement.getSubject().getURI(), subject -> new HashSet<>()).add(type.getURI());
+                }
+            }
+        });
+        Set<String> rewrittenUris = new HashSet<>(originalUris.keySet());
+        rewrittenUris.addAll(types.keySet());
+        for(String rewrittenUri : rewrittenUris)
+        {
+            put(new Entry(originalUris.getOrDefault(rewrittenUri, rewrittenUri), rewrittenUri, graphUri, types.getOrDefault(rewrittenUri, Collections.emptySet())));
+        }
+    }
+
+    /**
+     * Removes all objects of a graph, e.g. before the graph is replaced
+     * @param graphUri URI of the named graph of the connector
+     */
+    public synchronized void removeGraph(String graphUri) {
+        Set<String> rewrittenUris = rewrittenUrisByGraph.remove(graphUri);
+        if(rewrittenUris != null)
+        {
+            rewrittenUris.forEach(rewrittenUri -> forget(entriesByRewrittenUri.get(rewrittenUri)));
+        }
+    }
+
+    /**
+     * Removes the objects whose owl:sameAs or rdf:type statements were removed from a graph
+     * @param graphUri URI of the named graph of the connector
+     * @param statements The statements removed from the graph
+     */
+    public synchronized void remove(String graphUri, Iterable<Statement> statements) {
+        for(Statement statement : statements)
+        {
+            if(statement.getSubject().isURIResource() && (statement.getPredicate().equals(OWL.sameAs) || statement.getPredicate().equals(RDF.type)))
+            {
+                Entry entry = entriesByRewrittenUri.get(statement.getSubject().getURI());
+                if(entry != null && entry.graph.equals(graphUri))
+                {
+                    forget(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes an object and all of its child objects, which share its rewritten URI as prefix, e.g. when a resource stored in a graph of its own is dropped
+     * @param graphUri URI of the named graph of the connector
+     * @param rewrittenUri The rewritten URI of the object
+     */
+    public synchronized void removeSubtree(String graphUri, String rewrittenUri) {
+        Set<String> rewrittenUris = rewrittenUrisByGraph.get(graphUri);
+        if(rewrittenUris == null)
+        {
+            return;
+        }
+        new ArrayList<>(rewrittenUris).stream()
+                .filter(uri -> uri.equals(rewrittenUri) || uri.startsWith(rewrittenUri + "/"))
+                .forEach(uri -> forget(entriesByRewrittenUri.get(uri)));
+    }
+
+    /**
+     * Retrieves an object by the URI under which it is stored
+     * @param rewrittenUri The rewritten URI
+     * @return The entry of the object, or null, if no such object is known
+     */
+    public Entry get(String rewrittenUri) {
+        return entriesByRewrittenUri.get(rewrittenUri);
+    }
+
+    /**
+     * Resolves the original URI of an object within the graph of a connector
+     * @param graphUri URI of the named graph of the connector
+     * @param originalUri The URI under which the object was announced
+     * @return The rewritten URI, or null, if no such object is known in this graph
+     */
+    public String getRewrittenUri(String graphUri, String originalUri) {
+        return rewrittenUrisByOriginalUri.get(graphUri + " " + originalUri);
+    }
+
+    /**
+     * Checks whether a rewritten URI is already taken by an object with a different original URI, e.g. due to a collision of hash codes
+     * @param originalUri The URI under which the object was announced
+     * @param rewrittenUri The URI to which it would be rewritten
+     * @return The entry of the other object, or null, if there is no collision
+     */
+    public Entry findCollision(String originalUri, String rewrittenUri) {
+        Entry entry = entriesByRewrittenUri.get(rewrittenUri);
+        return entry == null || entry.originalUri.equals(originalUri) ? null : entry;
+    }
+
+    /**
+     * @return Number of indexed objects
+     */
+    public int size() {
+        return entriesByRewrittenUri.size();
+    }
+
+    private void put(Entry entry) {
+        forget(entriesByRewrittenUri.get(entry.rewrittenUri));
+        entriesByRewrittenUri.put(entry.rewrittenUri, entry);
+        rewrittenUrisByOriginalUri.put(entry.graph + " " + entry.originalUri, entry.rewrittenUri);
+        rewrittenUrisByGraph.computeIfAbsent(entry.graph, graph -> new HashSet<>()).add(entry.rewrittenUri);
+    }
+
+    private void forget(Entry entry) {
+        if(entry == null)
+        {
+            return;
+        }
+        entriesByRewrittenUri.remove(entry.rewrittenUri, entry);
+        rewrittenUrisByOriginalUri.remove(entry.graph + " " + entry.originalUri, entry.rewrittenUri);
+        Set<String> rewrittenUris = rewrittenUrisByGraph.get(entry.graph);
+        if(rewrittenUris != null && rewrittenUris.remove(entry.rewrittenUri) && rewrittenUris.isEmpty())
+        {
+            rewrittenUrisByGraph.remove(entry.graph);
+        }
+    }
+}
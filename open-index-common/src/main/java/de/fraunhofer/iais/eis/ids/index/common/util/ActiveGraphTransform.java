@@ -0,0 +1,84 @@
+package de.fraunhofer.iais.eis.ids.index.common.util;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Query;
+import org.apache.jena.rdf.model.ResourceFactory;
+import org.apache.jena.sparql.syntax.Element;
+import org.apache.jena.sparql.syntax.ElementGroup;
+import org.apache.jena.sparql.syntax.ElementNamedGraph;
+import org.apache.jena.sparql.syntax.ElementSubQuery;
+import org.apache.jena.sparql.syntax.ElementTriplesBlock;
+import org.apache.jena.sparql.syntax.syntaxtransform.ElementTransformCopyBase;
+import org.apache.jena.sparql.syntax.syntaxtransform.ElementTransformer;
+import org.apache.jena.sparql.syntax.syntaxtransform.ExprTransformApplyElementTransform;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Syntax transformation restricting every GRAPH pattern of a query to active graphs.
+ * Instead of listing all active graphs in FROM NAMED clauses, which makes the query grow with the number of connectors,
+ * each GRAPH ?g { ... } is joined with the state of ?g in the admin graph: GRAPH admin { ?g graphIsActive true } GRAPH ?g { ... }
+ * The size of the query therefore does not depend on the number of graphs
+ */
+public class ActiveGraphTransform extends ElementTransformCopyBase {
+
+    private final Node adminGraph;
+    private final Node graphIsActive;
+    private final Node activeState = ResourceFactory.createTypedLiteral(true).asNode();
+    //Patterns created by this transformation, which must not be restricted again
+    private final Set<Element> restrictedPatterns = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * Constructor
+     * @param adminGraphUri URI of the admin graph, in which the states of all graphs are stored
+     * @param graphIsActiveUrl Property linking a graph to its state
+     */
+    public ActiveGraphTransform(String adminGraphUri, String graphIsActiveUrl) {
+        this.adminGraph = NodeFactory.createURI(adminGraphUri);
+        this.graphIsActive = NodeFactory.createURI(graphIsActiveUrl);
+    }
+
+    /**
+     * Restricts all GRAPH patterns of a query to active graphs, including those in sub-queries and (NOT) EXISTS filters
+     * @param query The query to be restricted. It is modified in place
+     * @return The same query, for convenience
+     */
+    public Query apply(Query query) {
+        query.setQueryPattern(apply(query.getQueryPattern()));
+        return query;
+    }
+
+    private Element apply(Element element) {
+        return ElementTransformer.transform(element, this, new ExprTransformApplyElementTransform(this));
+    }
+
+    @Override
+    public Element transform(ElementNamedGraph el, Node gn, Element subElt) {
+        if(restrictedPatterns.contains(el))
+        {
+            return el;
+        }
+        //Note that the admin graph itself is not active, so that it cannot be queried this way
+        ElementTriplesBlock state = new ElementTriplesBlock();
+        state.addTriple(Triple.create(gn, graphIsActive, activeState));
+        ElementNamedGraph statePattern = new ElementNamedGraph(adminGraph, state);
+        ElementNamedGraph graphPattern = new ElementNamedGraph(gn, subElt);
+        restrictedPatterns.add(statePattern);
+        restrictedPatterns.add(graphPattern);
+        ElementGroup group = new ElementGroup();
+        //The state comes first, so that only active graphs are bound to the graph variable before the inner pattern is evaluated
+        group.addElement(statePattern);
+        group.addElement(graphPattern);
+        return group;
+    }
+
+    @Override
+    public Element transform(ElementSubQuery el, Query query) {
+        //Sub-queries must not be a way around the restriction. Patterns which have already been restricted are left as they are
+        return new ElementSubQuery(apply(query));
+    }
+}
@@ -0,0 +1,335 @@
+package de.fraunhofer.iais.eis.ids.index.common.util;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.jena.rdfconnection.RDFConnection;
+import org.apache.jena.rdfconnection.RDFConnectionFuseki;
+import org.apache.jena.rdfconnection.RDFConnectionRemote;
+import org.apache.jena.rdfconnection.RDFConnectionRemoteBuilder;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.WebContent;
+import org.apache.jena.shared.JenaException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Bounded pool of long-lived connections to a Fuseki server.
+ * All connections share a single keep-alive HTTP client. Instead of probing the server each time a connection is handed out,
+ * the availability of the server is checked periodically in the background
+ */
+public class FusekiConnectionPool implements AutoCloseable {
+    final private Logger logger = LoggerFactory.getLogger(FusekiConnectionPool.class);
+
+    // A simple query string that is used to validate the existence of a valid connection to a fuseki server
+    private static final String TEST_CONNECTION_STRING = "ASK WHERE { GRAPH <test> {?s ?p ?o .} }";
+
+    private final Supplier<RDFConnection> connectionSupplier;
+    private final CloseableHttpClient httpClient;
+    private final SparqlEndpointSettings settings;
+    private final Semaphore permits;
+    private final BlockingDeque<RDFConnection> idleConnections = new LinkedBlockingDeque<>();
+    private final ScheduledExecutorService healthChecker;
+
+    //Metrics
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong acquireCount = new AtomicLong();
+    private final AtomicLong totalAcquireNanos = new AtomicLong();
+    private final AtomicLong maxAcquireNanos = new AtomicLong();
+
+    private volatile boolean healthy = true;
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor. Makes sure that the Fuseki server can be reached (with retries) before the pool is created
+     * @param sparqlUrl The URL of the Fuseki dataset, e.g. http://localhost:3030/connectorData
+     * @param settings Settings such as the maximum pool size
+     */
+    public FusekiConnectionPool(String sparqlUrl, SparqlEndpointSettings settings) {
+        this(sparqlUrl, createHttpClient(settings), settings);
+    }
+
+    private FusekiConnectionPool(String sparqlUrl, CloseableHttpClient httpClient, SparqlEndpointSettings settings) {
+        this(createConnectionBuilder(sparqlUrl, httpClient, settings)::build, httpClient, settings);
+        //Fail early (after some retries) if no Fuseki server is reachable. This is the only time the connection is probed synchronously
+        ((RDFConnection) new FusekiConnectionFactory(sparqlUrl).getConnection()).close();
+    }
+
+    /**
+     * Constructor taking a custom source of connections
+     * @param connectionSupplier Creates new connections whenever the pool needs to grow
+     * @param httpClient The HTTP client shared by the connections. Closed together with the pool. May be null
+     * @param settings Settings such as the maximum pool size
+     */
+    FusekiConnectionPool(Supplier<RDFConnection> connectionSupplier, CloseableHttpClient httpClient, SparqlEndpointSettings settings) {
+        this.connectionSupplier = connectionSupplier;
+        this.httpClient = httpClient;
+        this.settings = settings;
+        this.permits = new Semaphore(settings.getMaxPoolSize(), true);
+
+        if(settings.getHealthCheckIntervalSeconds() > 0)
+        {
+            healthChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "sparql-health-check");
+                thread.setDaemon(true);
+                return thread;
+            });
+            healthChecker.scheduleWithFixedDelay(this::checkHealth, settings.getHealthCheckIntervalSeconds(), settings.getHealthCheckIntervalSeconds(), TimeUnit.SECONDS);
+        }
+        else
+        {
+            healthChecker = null;
+        }
+    }
+
+    /**
+     * Creates the HTTP client which is shared by all connections of this pool. HTTP connections are kept alive and reused
+     * @param settings Settings determining the number of HTTP connections
+     * @return HTTP client with connection pooling
+     */
+    private static CloseableHttpClient createHttpClient(SparqlEndpointSettings settings) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        //One HTTP connection per pooled RDFConnection, plus one for the health check
+        connectionManager.setMaxTotal(settings.getMaxPoolSize() + 1);
+        connectionManager.setDefaultMaxPerRoute(settings.getMaxPoolSize() + 1);
+        HttpClientBuilder httpClientBuilder = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                //Respect proxy settings passed via system properties
+                .useSystemProperties();
+        if(!settings.isCompressTransfer())
+        {
+            //By default, the client asks for gzip/deflate compressed responses
+            httpClientBuilder.disableContentCompression();
+        }
+        return httpClientBuilder.build();
+    }
+
+    /**
+     * Creates the builder for the connections of this pool, negotiating the RDF formats according to the settings
+     * @param sparqlUrl The URL of the Fuseki dataset
+     * @param httpClient HTTP client to be used by all connections
+     * @param settings Settings determining the formats
+     * @return Builder for new connections
+     */
+    private static RDFConnectionRemoteBuilder createConnectionBuilder(String sparqlUrl, CloseableHttpClient httpClient, SparqlEndpointSettings settings) {
+        RDFConnectionRemoteBuilder builder;
+        if(settings.isBinaryTransport())
+        {
+            //Graphs and result sets as RDF Thrift in both directions
+            builder = RDFConnectionFuseki.create()
+                    .triplesFormat(RDFFormat.RDF_THRIFT)
+                    .quadsFormat(RDFFormat.RDF_THRIFT)
+                    .acceptHeaderGraph(WebContent.contentTypeRDFThrift)
+                    .acceptHeaderDataset(WebContent.contentTypeRDFThrift)
+                    .acceptHeaderSelectQuery(WebContent.contentTypeResultsThrift)
+                    .acceptHeaderQuery(WebContent.contentTypeResultsThrift + "," + WebContent.contentTypeRDFThrift);
+        }
+        else
+        {
+            builder = RDFConnectionRemote.create()
+                    .triplesFormat(RDFFormat.NTRIPLES)
+                    .quadsFormat(RDFFormat.NQUADS)
+                    .acceptHeaderGraph(WebContent.contentTypeTurtle + "," + WebContent.contentTypeNTriples + ";q=0.9")
+                    .acceptHeaderSelectQuery(WebContent.contentTypeResultsJSON);
+        }
+        builder = builder.destination(sparqlUrl).httpClient(httpClient);
+        return settings.getConnectionBuilderCustomizer().apply(builder);
+    }
+
+    /**
+     * Creates a connection which is not managed by this pool, but still shares the HTTP client of the pool.
+     * The caller is responsible for closing the connection
+     * @return new RDFConnection
+     */
+    public RDFConnection createUnpooledConnection() {
+        return connectionSupplier.get();
+    }
+
+    /**
+     * Takes a connection from the pool. If all connections are in use, this function waits until one is released
+     * Every acquired connection MUST be handed back via the release function
+     * @return RDFConnection to the Fuseki server
+     * @throws JenaException if no connection becomes available within the configured acquire timeout
+     */
+    public RDFConnection acquire() {
+        if(closed)
+        {
+            throw new JenaException("The connection pool has been closed");
+        }
+        long start = System.nanoTime();
+        boolean acquired;
+        waiting.incrementAndGet();
+        try {
+            acquired = permits.tryAcquire(settings.getAcquireTimeoutMillis(), TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new JenaException("Interrupted while waiting for a connection to the SPARQL endpoint", e);
+        }
+        finally {
+            waiting.decrementAndGet();
+        }
+        if(!acquired)
+        {
+            throw new JenaException("No connection to the SPARQL endpoint became available within " + settings.getAcquireTimeoutMillis() + " ms");
+        }
+
+        RDFConnection connection = idleConnections.pollFirst();
+        if(connection == null || connection.isClosed())
+        {
+            try {
+                connection = connectionSupplier.get();
+            }
+            catch (RuntimeException e)
+            {
+                permits.release();
+                throw e;
+            }
+        }
+        inUse.incrementAndGet();
+
+        long elapsed = System.nanoTime() - start;
+        acquireCount.incrementAndGet();
+        totalAcquireNanos.addAndGet(elapsed);
+        maxAcquireNanos.accumulateAndGet(elapsed, Math::max);
+        return connection;
+    }
+
+    /**
+     * Hands a connection back to the pool, so that it can be reused
+     * @param connection The connection previously obtained via the acquire function
+     */
+    public void release(RDFConnection connection) {
+        if(connection == null)
+        {
+            return;
+        }
+        inUse.decrementAndGet();
+        //Connections closed by the caller are simply dropped. A new one will be created on demand
+        if(!closed && !connection.isClosed())
+        {
+            idleConnections.offerFirst(connection);
+        }
+        permits.release();
+    }
+
+    /**
+     * Background task, replacing the former per-call probe of the Fuseki server
+     */
+    private void checkHealth() {
+        try (RDFConnection connection = connectionSupplier.get()) {
+            connection.queryAsk(TEST_CONNECTION_STRING);
+            if(!healthy)
+            {
+                logger.info("SPARQL endpoint is reachable again.");
+            }
+            healthy = true;
+        }
+        catch (Exception e)
+        {
+            if(healthy)
+            {
+                logger.warn("SPARQL endpoint health check failed. Discarding idle connections.", e);
+            }
+            healthy = false;
+            RDFConnection idle;
+            while((idle = idleConnections.pollFirst()) != null)
+            {
+                idle.close();
+            }
+        }
+        logger.debug("Connection pool: " + getInUse() + " in use, " + getIdle() + " idle, " + getWaiting() + " waiting, average acquire time " + getAverageAcquireMillis() + " ms");
+    }
+
+    /**
+     * @return true, if the last health check of the SPARQL endpoint succeeded
+     */
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * @return Number of connections currently handed out
+     */
+    public int getInUse() {
+        return inUse.get();
+    }
+
+    /**
+     * @return Number of connections ready to be handed out without creating a new one
+     */
+    public int getIdle() {
+        return idleConnections.size();
+    }
+
+    /**
+     * @return Number of callers currently waiting for a connection
+     */
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    /**
+     * @return Total number of successfully acquired connections
+     */
+    public long getAcquireCount() {
+        return acquireCount.get();
+    }
+
+    /**
+     * @return Average time in milliseconds which callers had to wait for a connection
+     */
+    public double getAverageAcquireMillis() {
+        long count = acquireCount.get();
+        return count == 0 ? 0 : totalAcquireNanos.get() / (count * 1000000.0);
+    }
+
+    /**
+     * @return Longest time in milliseconds which a caller had to wait for a connection
+     */
+    public double getMaxAcquireMillis() {
+        return maxAcquireNanos.get() / 1000000.0;
+    }
+
+    /**
+     * Closes all idle connections, stops the health check and releases the HTTP client
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if(healthChecker != null)
+        {
+            healthChecker.shutdownNow();
+        }
+        RDFConnection idle;
+        while((idle = idleConnections.pollFirst()) != null)
+        {
+            idle.close();
+        }
+        if(httpClient != null)
+        {
+            try {
+                httpClient.close();
+            }
+            catch (IOException e)
+            {
+                logger.warn("Failed to close HTTP client of connection pool.", e);
+            }
+        }
+    }
+}
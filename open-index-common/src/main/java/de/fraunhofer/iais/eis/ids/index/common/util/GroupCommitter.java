@@ -0,0 +1,190 @@
+package de.fraunhofer.iais.eis.ids.index.common.util;
+
+import org.apache.jena.update.UpdateRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Collects update requests arriving within a short time window and sends them to the triple store as one combined update request.
+ * As the triple store serializes writers anyway, this greatly increases the write throughput if many connectors register at the same time.
+ * Every caller still receives its own result: If the combined request fails, the updates are retried one by one
+ */
+public class GroupCommitter implements AutoCloseable {
+    final private Logger logger = LoggerFactory.getLogger(GroupCommitter.class);
+
+    private final Consumer<UpdateRequest> updateExecutor;
+    private final long windowMillis;
+    private final int maxOperations;
+    private final BlockingQueue<PendingUpdate> pendingUpdates = new LinkedBlockingQueue<>();
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    /**
+     * Update request of a single caller, together with the future through which the caller is notified
+     */
+    private static class PendingUpdate {
+        private final UpdateRequest updateRequest;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private PendingUpdate(UpdateRequest updateRequest) {
+            this.updateRequest = updateRequest;
+        }
+    }
+
+    /**
+     * Constructor
+     * @param updateExecutor Function sending an update request to the triple store. Must throw an exception if the update failed
+     * @param windowMillis Time in milliseconds to wait for further updates after the first update of a group arrived
+     * @param maxOperations Maximum number of updates combined into one request. Once reached, the group is sent without waiting for the window to pass
+     */
+    public GroupCommitter(Consumer<UpdateRequest> updateExecutor, long windowMillis, int maxOperations) {
+        if(maxOperations <= 0)
+        {
+            throw new IllegalArgumentException("Argument maxOperations should be >0!");
+        }
+        this.updateExecutor = updateExecutor;
+        this.windowMillis = windowMillis;
+        this.maxOperations = maxOperations;
+        worker = new Thread(this::run, "sparql-group-commit");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Queues an update request. It will be sent to the triple store together with other updates arriving shortly before or after it
+     * @param updateRequest The update request to be executed
+     * @return Future which is completed once the update was applied, or completed exceptionally if the update failed
+     */
+    public CompletableFuture<Void> submit(UpdateRequest updateRequest) {
+        PendingUpdate pendingUpdate = new PendingUpdate(updateRequest);
+        if(!running)
+        {
+            pendingUpdate.future.completeExceptionally(new IllegalStateException("Group committer has been closed"));
+            return pendingUpdate.future;
+        }
+        pendingUpdates.add(pendingUpdate);
+        return pendingUpdate.future;
+    }
+
+    /**
+     * Queues an update request and waits until it has been applied
+     * @param updateRequest The update request to be executed
+     * @throws RuntimeException the exception which caused the update to fail
+     */
+    public void execute(UpdateRequest updateRequest) {
+        try {
+            submit(updateRequest).join();
+        }
+        catch (CompletionException e)
+        {
+            //Hand the original exception to the caller, as if the update had been executed directly
+            if(e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void run() {
+        while(running || !pendingUpdates.isEmpty())
+        {
+            try {
+                PendingUpdate first = pendingUpdates.poll(100, TimeUnit.MILLISECONDS);
+                if(first == null)
+                {
+                    continue;
+                }
+                List<PendingUpdate> group = new ArrayList<>();
+                group.add(first);
+
+                //Wait for further updates, until either the window has passed or the group is full
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+                while(group.size() < maxOperations)
+                {
+                    long remaining = deadline - System.nanoTime();
+                    PendingUpdate next = remaining > 0 ? pendingUpdates.poll(remaining, TimeUnit.NANOSECONDS) : pendingUpdates.poll();
+                    if(next == null)
+                    {
+                        break;
+                    }
+                    group.add(next);
+                }
+                commit(group);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        //Do not leave any caller waiting forever
+        PendingUpdate leftOver;
+        while((leftOver = pendingUpdates.poll()) != null)
+        {
+            leftOver.future.completeExceptionally(new IllegalStateException("Group committer has been closed"));
+        }
+    }
+
+    /**
+     * Sends a group of updates to the triple store
+     * @param group Updates which should be combined
+     */
+    private void commit(List<PendingUpdate> group) {
+        if(group.size() == 1)
+        {
+            commitIndividually(group.get(0));
+            return;
+        }
+        //The operations are appended in order of arrival, so that later updates of the same graph win
+        UpdateRequest combined = new UpdateRequest();
+        group.forEach(pendingUpdate -> pendingUpdate.updateRequest.getOperations().forEach(combined::add));
+        try {
+            updateExecutor.accept(combined);
+            logger.debug("Committed " + group.size() + " updates in one request");
+            group.forEach(pendingUpdate -> pendingUpdate.future.complete(null));
+        }
+        catch (RuntimeException e)
+        {
+            //The triple store executes an update request atomically, so nothing of the combined request was applied
+            //Retry one by one, so that only the faulty update is rejected
+            logger.warn("Combined update of " + group.size() + " requests failed. Executing them individually.", e);
+            group.forEach(this::commitIndividually);
+        }
+    }
+
+    private void commitIndividually(PendingUpdate pendingUpdate) {
+        try {
+            updateExecutor.accept(pendingUpdate.updateRequest);
+            pendingUpdate.future.complete(null);
+        }
+        catch (RuntimeException e)
+        {
+            pendingUpdate.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Stops accepting new updates. Updates which are already queued are still sent to the triple store
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package de.fraunhofer.iais.eis.ids.index.common.util;
+
+import de.fraunhofer.iais.eis.RejectionReason;
+import de.fraunhofer.iais.eis.ids.component.core.RejectMessageException;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Query;
+import org.apache.jena.sparql.algebra.Algebra;
+import org.apache.jena.sparql.algebra.Op;
+import org.apache.jena.sparql.algebra.OpVars;
+import org.apache.jena.sparql.algebra.OpVisitorBase;
+import org.apache.jena.sparql.algebra.OpWalker;
+import org.apache.jena.sparql.algebra.op.Op1;
+import org.apache.jena.sparql.algebra.op.Op2;
+import org.apache.jena.sparql.algebra.op.OpBGP;
+import org.apache.jena.sparql.algebra.op.OpConditional;
+import org.apache.jena.sparql.algebra.op.OpJoin;
+import org.apache.jena.sparql.algebra.op.OpLeftJoin;
+import org.apache.jena.sparql.algebra.op.OpN;
+import org.apache.jena.sparql.algebra.op.OpTriple;
+import org.apache.jena.sparql.core.Var;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates the cost of user queries before they are sent to the triple store, and decides whether and how they are admitted.
+ * Cheap queries pass unchanged. Queries without LIMIT receive a default LIMIT. Expensive queries (fully unbound triple patterns, cartesian products)
+ * are evaluated in a low-priority lane with only a few concurrent slots, so that they cannot occupy all connections needed by registrations.
+ * Queries exceeding the configured thresholds are rejected
+ */
+public class QueryCostAnalyzer {
+    final private Logger logger = LoggerFactory.getLogger(QueryCostAnalyzer.class);
+
+    private final long defaultLimit;
+    private final int maxUnboundPatterns;
+    private final int maxCartesianProducts;
+    private final int maxOptionalDepth;
+    private final Semaphore lowPriorityLane;
+
+    /**
+     * Cost indicators of a single query, as derived from its algebra
+     */
+    public static class QueryCost {
+        private final int unboundPatterns;
+        private final int cartesianProducts;
+        private final int optionalDepth;
+        private final boolean limited;
+
+        private QueryCost(int unboundPatterns, int cartesianProducts, int optionalDepth, boolean limited) {
+            this.unboundPatterns = unboundPatterns;
+            this.cartesianProducts = cartesianProducts;
+            this.optionalDepth = optionalDepth;
+            this.limited = limited;
+        }
+
+        /**
+         * @return Number of triple patterns in which subject, predicate and object are all variables
+         */
+        public int getUnboundPatterns() {
+            return unboundPatterns;
+        }
+
+        /**
+         * @return Number of joins between patterns which do not share any variable
+         */
+        public int getCartesianProducts() {
+            return cartesianProducts;
+        }
+
+        /**
+         * @return Deepest nesting of OPTIONAL patterns
+         */
+        public int getOptionalDepth() {
+            return optionalDepth;
+        }
+
+        /**
+         * @return true, if the query has a LIMIT
+         */
+        public boolean isLimited() {
+            return limited;
+        }
+
+        /**
+         * @return true, if the query should be evaluated in the low-priority lane
+         */
+        public boolean isExpensive() {
+            return unboundPatterns > 0 || cartesianProducts > 0;
+        }
+
+        @Override
+        public String toString() {
+            return unboundPatterns + " unbound triple patterns, " + cartesianProducts + " cartesian products, OPTIONAL depth " + optionalDepth + (limited ? "" : ", no LIMIT");
+        }
+    }
+
+    /**
+     * Constructor
+     * @param settings Settings containing the thresholds for user queries
+     */
+    public QueryCostAnalyzer(SparqlEndpointSettings settings) {
+        this.defaultLimit = settings.getDefaultQueryLimit();
+        this.maxUnboundPatterns = settings.getMaxUnboundPatterns();
+        this.maxCartesianProducts = settings.getMaxCartesianProducts();
+        this.maxOptionalDepth = settings.getMaxOptionalDepth();
+        //Without any slots, expensive queries are evaluated like all others
+        this.lowPriorityLane = settings.getLowPriorityQuerySlots() > 0 ? new Semaphore(settings.getLowPriorityQuerySlots(), true) : null;
+    }
+
+    /**
+     * Derives the cost indicators of a query from its algebra
+     * @param query The query to be analyzed. It is not modified
+     * @return Cost indicators of the query
+     */
+    public QueryCost analyze(Query query) {
+        Op op = Algebra.compile(query);
+        int[] unboundPatterns = {0};
+        int[] cartesianProducts = {0};
+        OpWalker.walk(op, new OpVisitorBase() {
+            @Override
+            public void visit(OpBGP opBGP) {
+                List<Triple> triples = opBGP.getPattern().getList();
+                triples.forEach(triple -> {
+                    if(isUnbound(triple))
+                    {
+                        unboundPatterns[0]++;
+                    }
+                });
+                cartesianProducts[0] += countComponents(triples) - 1;
+            }
+
+            @Override
+            public void visit(OpTriple opTriple) {
+                if(isUnbound(opTriple.getTriple()))
+                {
+                    unboundPatterns[0]++;
+                }
+            }
+
+            @Override
+            public void visit(OpJoin opJoin) {
+                Set<Var> leftVars = OpVars.visibleVars(opJoin.getLeft());
+                Set<Var> rightVars = OpVars.visibleVars(opJoin.getRight());
+                //A side without variables (e.g. the state of a graph addressed by its URI, as added by the ActiveGraphTransform) only filters the other side, but does not multiply it
+                if(!leftVars.isEmpty() && !rightVars.isEmpty() && Collections.disjoint(leftVars, rightVars))
+                {
+                    cartesianProducts[0]++;
+                }
+            }
+        });
+        return new QueryCost(unboundPatterns[0], cartesianProducts[0], optionalDepth(op), query.hasLimit() || query.isAskType());
+    }
+
+    /**
+     * Decides whether a query is admitted. Queries exceeding a threshold are rejected, queries without LIMIT receive the default LIMIT.
+     * Thresholds and default LIMIT set to 0 are disabled
+     * @param query The query to be admitted. It is not modified
+     * @param cost The cost of the query, as determined by analyze
+     * @return The query which should be evaluated, possibly with an additional LIMIT
+     * @throws RejectMessageException if the query exceeds a threshold
+     */
+    public Query admit(Query query, QueryCost cost) throws RejectMessageException {
+        if(exceeds(cost.getUnboundPatterns(), maxUnboundPatterns) || exceeds(cost.getCartesianProducts(), maxCartesianProducts) || exceeds(cost.getOptionalDepth(), maxOptionalDepth))
+        {
+            logger.info("Rejecting query which is too expensive: " + cost);
+            throw new RejectMessageException(RejectionReason.BAD_PARAMETERS, new Exception("The query is too expensive (" + cost + "). Allowed are at most "
+                    + maxUnboundPatterns + " fully unbound triple patterns, " + maxCartesianProducts + " cartesian products and an OPTIONAL depth of " + maxOptionalDepth + "."));
+        }
+        if(!cost.isLimited() && defaultLimit > 0)
+        {
+            //The query might be shared with other callers (e.g. from a cache). Hence, a copy is modified
+            Query limitedQuery = query.cloneQuery();
+            limitedQuery.setLimit(defaultLimit);
+            return limitedQuery;
+        }
+        return query;
+    }
+
+    /**
+     * Waits for a slot in the low-priority lane. Must be followed by a call to leaveLowPriorityLane, typically in a finally block.
+     * Returns immediately, if the lane is disabled
+     * @param timeoutMillis Time budget of the query in milliseconds, which also bounds the waiting time. 0 or less for no limit
+     * @return Remaining time budget of the query in milliseconds, after the time spent waiting has been deducted. 0 or less for no limit
+     * @throws RejectMessageException if no slot became available in time
+     */
+    public long enterLowPriorityLane(long timeoutMillis) throws RejectMessageException {
+        if(lowPriorityLane == null)
+        {
+            return timeoutMillis;
+        }
+        long start = System.nanoTime();
+        try {
+            if(lowPriorityLane.tryAcquire(timeoutMillis > 0 ? timeoutMillis : Long.MAX_VALUE, TimeUnit.MILLISECONDS))
+            {
+                if(timeoutMillis <= 0)
+                {
+                    return timeoutMillis;
+                }
+                //At least a millisecond remains, as 0 would lift the limit
+                return Math.max(1, timeoutMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        throw new RejectMessageException(RejectionReason.TEMPORARILY_NOT_AVAILABLE, new Exception("Too many expensive queries are currently evaluated. Please try again later or make your query more specific."));
+    }
+
+    /**
+     * Frees the slot in the low-priority lane obtained via enterLowPriorityLane
+     */
+    public void leaveLowPriorityLane() {
+        if(lowPriorityLane != null)
+        {
+            lowPriorityLane.release();
+        }
+    }
+
+    private static boolean exceeds(int value, int threshold) {
+        return threshold > 0 && value > threshold;
+    }
+
+    private static boolean isUnbound(Triple triple) {
+        return triple.getSubject().isVariable() && triple.getPredicate().isVariable() && triple.getObject().isVariable();
+    }
+
+    /**
+     * Counts the groups of triple patterns which are connected via shared variables. Each further group multiplies the result size
+     * @param triples Triple patterns of a basic graph pattern
+     * @return Number of connected groups
+     */
+    private static int countComponents(List<Triple> triples) {
+        if(triples.isEmpty())
+        {
+            return 1;
+        }
+        //Union-find over the triple patterns, joining patterns sharing a variable
+        int[] parent = new int[triples.size()];
+        for(int i = 0; i < parent.length; i++)
+        {
+            parent[i] = i;
+        }
+        Map<Node, Integer> firstOccurrence = new HashMap<>();
+        for(int i = 0; i < triples.size(); i++)
+        {
+            for(Node node : nodes(triples.get(i)))
+            {
+                if(!Var.isVar(node))
+                {
+                    continue;
+                }
+                Integer other = firstOccurrence.putIfAbsent(node, i);
+                if(other != null)
+                {
+                    parent[find(parent, i)] = find(parent, other);
+                }
+            }
+        }
+        int components = 0;
+        for(int i = 0; i < parent.length; i++)
+        {
+            if(find(parent, i) == i)
+            {
+                components++;
+            }
+        }
+        return components;
+    }
+
+    private static List<Node> nodes(Triple triple) {
+        List<Node> nodes = new ArrayList<>(3);
+        nodes.add(triple.getSubject());
+        nodes.add(triple.getPredicate());
+        nodes.add(triple.getObject());
+        return nodes;
+    }
+
+    private static int find(int[] parent, int i) {
+        while(parent[i] != i)
+        {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /**
+     * Determines the deepest nesting of OPTIONAL patterns
+     * @param op The algebra expression
+     * @return Nesting depth, 0 if the expression contains no OPTIONAL
+     */
+    private static int optionalDepth(Op op) {
+        if(op instanceof OpLeftJoin || op instanceof OpConditional)
+        {
+            Op2 optional = (Op2) op;
+            return Math.max(optionalDepth(optional.getLeft()), optionalDepth(optional.getRight()) + 1);
+        }
+        if(op instanceof Op1)
+        {
+            return optionalDepth(((Op1) op).getSubOp());
+        }
+        if(op instanceof Op2)
+        {
+            return Math.max(optionalDepth(((Op2) op).getLeft()), optionalDepth(((Op2) op).getRight()));
+        }
+        if(op instanceof OpN)
+        {
+            int depth = 0;
+            for(Op element : ((OpN) op).getElements())
+            {
+                depth = Math.max(depth, optionalDepth(element));
+            }
+            return depth;
+        }
+        return 0;
+    }
+}
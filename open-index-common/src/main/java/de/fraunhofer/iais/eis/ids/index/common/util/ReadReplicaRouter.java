@@ -0,0 +1,222 @@
+package de.fraunhofer.iais.eis.ids.index.common.util;
+
+import org.apache.jena.rdfconnection.RDFConnection;
+import org.apache.jena.sparql.engine.http.QueryExceptionHTTP;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Distributes read queries across several read-only replicas of the triple store.
+ * Each query is sent to the healthy replica with the least outstanding requests. Replicas failing their health check, or failing to answer a query, are taken out of rotation for a while.
+ * Writes never pass through this class. To let a connector read its own writes despite replication lag, queries are answered by the primary endpoint instead,
+ * if the connector they read was recently written. Queries which may read any graph (e.g. listing all connectors) are answered by the primary endpoint while any graph was recently written
+ */
+public class ReadReplicaRouter implements AutoCloseable {
+    final private Logger logger = LoggerFactory.getLogger(ReadReplicaRouter.class);
+
+    private final List<Replica> replicas;
+    private final Map<RDFConnection, Replica> leasedConnections = new ConcurrentHashMap<>();
+    private final Map<String, Long> pinnedGraphs = new ConcurrentHashMap<>();
+    private final long readYourWritesNanos;
+    private final long failureBackoffNanos;
+
+    /**
+     * A single read replica, together with the number of requests it is currently working on
+     */
+    private static class Replica {
+        private final String name;
+        private final FusekiConnectionPool connectionPool;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile long failedUntil = 0;
+
+        private Replica(String name, FusekiConnectionPool connectionPool) {
+            this.name = name;
+            this.connectionPool = connectionPool;
+        }
+
+        private boolean isAvailable(long now) {
+            return connectionPool.isHealthy() && failedUntil - now <= 0;
+        }
+    }
+
+    /**
+     * Constructor, creating a connection pool for each replica
+     * @param replicaUrls URLs of the read-only SPARQL endpoints
+     * @param settings Settings for the connections to the replicas and for read-your-writes pinning
+     */
+    public ReadReplicaRouter(List<String> replicaUrls, SparqlEndpointSettings settings) {
+        this(createPools(replicaUrls, settings), replicaUrls, settings);
+    }
+
+    /**
+     * Constructor taking the connection pools of the replicas
+     * @param connectionPools One connection pool per replica
+     * @param names Names of the replicas, used for logging. Must have the same size as connectionPools
+     * @param settings Settings for read-your-writes pinning
+     */
+    ReadReplicaRouter(List<FusekiConnectionPool> connectionPools, List<String> names, SparqlEndpointSettings settings) {
+        if(connectionPools.isEmpty())
+        {
+            throw new IllegalArgumentException("At least one read replica is required");
+        }
+        List<Replica> replicaList = new ArrayList<>();
+        for(int i = 0; i < connectionPools.size(); i++)
+        {
+            replicaList.add(new Replica(names.get(i), connectionPools.get(i)));
+        }
+        this.replicas = Collections.unmodifiableList(replicaList);
+        this.readYourWritesNanos = TimeUnit.MILLISECONDS.toNanos(settings.getReadYourWritesMillis());
+        //A replica which failed to answer is given another chance after one health check interval
+        this.failureBackoffNanos = TimeUnit.SECONDS.toNanos(settings.getHealthCheckIntervalSeconds() > 0 ? settings.getHealthCheckIntervalSeconds() : 30);
+    }
+
+    private static List<FusekiConnectionPool> createPools(List<String> replicaUrls, SparqlEndpointSettings settings) {
+        List<FusekiConnectionPool> pools = new ArrayList<>();
+        for(String replicaUrl : replicaUrls)
+        {
+            pools.add(new FusekiConnectionPool(replicaUrl, settings));
+        }
+        return pools;
+    }
+
+    /**
+     * Marks a graph as recently written. For the configured read-your-writes period, queries reading the graph are answered by the primary endpoint
+     * @param graphUri URI of the graph which was written
+     */
+    public void pin(String graphUri) {
+        if(readYourWritesNanos > 0)
+        {
+            pinnedGraphs.put(graphUri, System.nanoTime() + readYourWritesNanos);
+        }
+    }
+
+    /**
+     * Determines whether a query needs to be answered by the primary endpoint, as it reads a graph which might not have been replicated yet
+     * @param connectorGraphUri Graph of the single connector the query reads, or null, if it may read any graph
+     * @return true, if this graph, or for null any graph, was recently written
+     */
+    private boolean isPinned(String connectorGraphUri) {
+        if(pinnedGraphs.isEmpty())
+        {
+            return false;
+        }
+        long now = System.nanoTime();
+        boolean pinned = false;
+        for(Map.Entry<String, Long> entry : pinnedGraphs.entrySet())
+        {
+            if(entry.getValue() - now <= 0)
+            {
+                //Replicas have caught up by now
+                pinnedGraphs.remove(entry.getKey(), entry.getValue());
+            }
+            else if(connectorGraphUri == null || connectorGraphUri.equals(entry.getKey()))
+            {
+                pinned = true;
+            }
+        }
+        return pinned;
+    }
+
+    /**
+     * Takes a connection to the replica which currently has the least outstanding requests.
+     * Every connection obtained this way MUST be handed back via the release function
+     * @param connectorGraphUri Graph of the single connector the query reads, or null, if it may read any graph. Used to determine whether the primary endpoint has to be used instead
+     * @return Connection to a replica, or null, if the query should be evaluated by the primary endpoint (no healthy replica, or read-your-writes)
+     */
+    public RDFConnection acquire(String connectorGraphUri) {
+        if(isPinned(connectorGraphUri))
+        {
+            return null;
+        }
+        long now = System.nanoTime();
+        Replica selected = null;
+        for(Replica replica : replicas)
+        {
+            if(replica.isAvailable(now) && (selected == null || replica.outstanding.get() < selected.outstanding.get()))
+            {
+                selected = replica;
+            }
+        }
+        if(selected == null)
+        {
+            logger.debug("No healthy read replica available. Falling back to primary endpoint.");
+            return null;
+        }
+        selected.outstanding.incrementAndGet();
+        try {
+            RDFConnection connection = selected.connectionPool.acquire();
+            leasedConnections.put(connection, selected);
+            return connection;
+        }
+        catch (RuntimeException e)
+        {
+            selected.outstanding.decrementAndGet();
+            markFailed(selected, e);
+            return null;
+        }
+    }
+
+    /**
+     * Hands a connection obtained via acquire back to its replica
+     * @param connection The connection which is no longer needed
+     * @param failure The exception which occurred while using the connection, or null if the query succeeded. Replicas which are unreachable are taken out of rotation
+     */
+    public void release(RDFConnection connection, RuntimeException failure) {
+        Replica replica = leasedConnections.remove(connection);
+        if(replica == null)
+        {
+            return;
+        }
+        replica.outstanding.decrementAndGet();
+        if(failure != null && isEndpointFailure(failure))
+        {
+            //Do not return a possibly broken connection to the pool
+            connection.close();
+            markFailed(replica, failure);
+        }
+        replica.connectionPool.release(connection);
+    }
+
+    /**
+     * Distinguishes failures of the replica from failures of the query itself (e.g. syntax errors or timeouts), which would occur on any replica
+     * @param failure The exception thrown while evaluating a query
+     * @return true, if the replica could not be reached or answered with a server error
+     */
+    public static boolean isEndpointFailure(RuntimeException failure) {
+        if(failure instanceof QueryExceptionHTTP)
+        {
+            int responseCode = ((QueryExceptionHTTP) failure).getResponseCode();
+            return responseCode < 0 || responseCode >= 500;
+        }
+        return false;
+    }
+
+    private void markFailed(Replica replica, RuntimeException e) {
+        logger.warn("Read replica " + replica.name + " failed. Taking it out of rotation.", e);
+        replica.failedUntil = System.nanoTime() + failureBackoffNanos;
+    }
+
+    /**
+     * @return Number of replicas which are currently in rotation
+     */
+    public int getAvailableReplicas() {
+        long now = System.nanoTime();
+        return (int) replicas.stream().filter(replica -> replica.isAvailable(now)).count();
+    }
+
+    /**
+     * Closes the connection pools of all replicas
+     */
+    @Override
+    public void close() {
+        replicas.forEach(replica -> replica.connectionPool.close());
+    }
+}
@@ -0,0 +1,396 @@
+package de.fraunhofer.iais.eis.ids.index.common.util;
+
+import org.apache.jena.rdfconnection.RDFConnectionRemoteBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * Settings for the connections to a remote SPARQL endpoint (typically Fuseki). Query time budgets also apply to local repositories.
+ * All values have sensible defaults, so that only values which differ from the defaults need to be set
+ */
+public class SparqlEndpointSettings {
+
+    private int maxPoolSize = 16;
+    private long acquireTimeoutMillis = 30000;
+    private long healthCheckIntervalSeconds = 30;
+    private long groupCommitWindowMillis = 0;
+    private int groupCommitMaxOperations = 64;
+    private boolean binaryTransport = true;
+    private long internalQueryTimeoutMillis = 10000;
+    private long userQueryTimeoutMillis = 20000;
+    private boolean compressTransfer = true;
+    private int asyncThreads = 16;
+    private int asyncQueueCapacity = 256;
+    private List<String> readReplicaUrls = new ArrayList<>();
+    private long readYourWritesMillis = 5000;
+    private long defaultQueryLimit = 0;
+    private int maxUnboundPatterns = 0;
+    private int maxCartesianProducts = 0;
+    private int maxOptionalDepth = 0;
+    private int lowPriorityQuerySlots = 0;
+    private boolean resourceGraphs = false;
+    private long connectorCacheMaxTriples = 500000;
+    private long descriptionCacheMaxBytes = 64 * 1024 * 1024;
+    private long queryCacheMaxBytes = 32 * 1024 * 1024;
+    private int graphLockStripes = 64;
+    private UnaryOperator<RDFConnectionRemoteBuilder> connectionBuilderCustomizer = UnaryOperator.identity();
+
+    /**
+     * Sets the maximum number of connections which may be in use concurrently. Further requests wait for a connection to be returned
+     * @param maxPoolSize Maximum number of concurrently used connections. Must be greater than 0
+     * @return Settings object as Builder Object
+     */
+    public SparqlEndpointSettings maxPoolSize(int maxPoolSize) {
+        if(maxPoolSize <= 0)
+        {
+            throw new IllegalArgumentException("Argument maxPoolSize should be >0!");
+        }
+        this.maxPoolSize = maxPoolSize;
+        return this;
+    }
+
+    /**
+     * Sets how long a request may wait for a free connection before failing
+     * @param acquireTimeoutMillis Maximum waiting time in milliseconds
+     * @return Settings object as Builder Object
+     */
+    public SparqlEndpointSettings acquireTimeoutMillis(long acquireTimeoutMillis) {
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Sets the interval of the background health check of the SPARQL endpoint. A value of 0 disables the health check
+     * @param healthCheckIntervalSeconds Interval in seconds
+     * @return Settings object as Builder Object
+     */
+    public SparqlEndpointSettings healthCheckIntervalSeconds(long healthCheckIntervalSeconds) {
+        this.healthCheckIntervalSeconds = healthCheckIntervalSeconds;
+        return this;
+    }
+
+    /**
+     * Sets the time window in which concurrent updates are collected and sent to the SPARQL endpoint as one combined request.
+     * A value of 0 disables group commits, sending every update on its own
+     * @param groupCommitWindowMillis Window in milliseconds
+     * @return Settings object as Builder Object
+     */
+    public SparqlEndpointSettings groupCommitWindowMillis(long groupCommitWindowMillis) {
+        this.groupCommitWindowMillis = groupCommitWindowMillis;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of updates combined into one request. Once reached, the updates are sent without waiting for the window to pass
+     * @param groupCommitMaxOperations Maximum number of updates per request. Must be greater than 0
+     * @return Settings object as Builder Object
+     */
+    public SparqlEndpointSettings groupCommitMaxOperations(int groupCommitMaxOperations) {
+        if(groupCommitMaxOperations <= 0)
+        {
+            throw new IllegalArgumentException("Argument groupCommitMaxOperations should be >0!");
+        }
+        this.groupCommitMaxOperations = groupCommitMaxOperations;
+        return this;
+    }
+
+    /**
+     * Sets whether RDF graphs and result sets are exchanged with the SPARQL endpoint in the binary RDF Thrift format, which is much cheaper to produce and parse than text formats.
+     * Disable this for endpoints other than Fuseki, which may not support RDF Thrift
+     * @param binaryTransport true for RDF Thrift, false for text formats (Turtle, N-Quads, SPARQL results in JSON)
+     * @return Settings object as Builder Object
+     */
+    public SparqlEndpointSettings binaryTransport(boolean binaryTransport) {
+        this.binaryTransport = binaryTransport;
+        return this;
+    }
+
+    /**
+     * Sets whether compressed (gzip/deflate) HTTP responses are accepted from the SPARQL endpoint.
+     * This reduces the transferred volume for large results, at the expense of some CPU time on both sides
+     * @param compressTransfer true, if compressed transfer should be negotiated
+     * @return Settings object as Builder Object
+     */
+    public SparqlEndpointSettings compressTransfer(boolean compressTransfer) {
+        this.compressTransfer = compressTransfer;
+        return this;
+    }
+
+    /**
+     * Sets the time budget of queries issued by the broker itself, e.g. to fetch a connector or a description
+     * @param internalQueryTimeoutMillis Time budget in milliseconds. 0 disables the limit
+     * @return Settings object as Builder Object
+     */
+    public SparqlEndpointSettings internalQueryTimeoutMillis(long internalQueryTimeoutMillis) {
+        this.internalQueryTimeoutMillis = internalQueryTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Sets the time budget of queries submitted by users, e.g. via a QueryMessage. Queries exceeding it are cancelled and rejected
+     * @param userQueryTimeoutMillis Time budget in milliseconds. 0 disables the limit
+     * @return Settings object as Builder Object
+     */
+    public SparqlEndpointSettings userQueryTimeoutMillis(long userQueryTimeoutMillis) {
+        this.userQueryTimeoutMillis = userQueryTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Sets the number of threads on which asynchronous operations on the repository are executed
+     * @param asyncThreads Maximum number of concurrently executed asynchronous operations. Must be greater than 0
+     * @return Settings object as Builder Object
+     */
+    public SparqlEndpointSettings asyncThreads(int asyncThreads) {
+        if(asyncThreads <= 0)
+        {
+            throw new IllegalArgumentException("Argument asyncThreads should be >0!");
+        }
+        this.asyncThreads = asyncThreads;
+        return this;
+    }
+
+    /**
+     * Sets how many asynchronous operations may wait for execution. Further operations are rejected until the backlog has been worked off
+     * @param asyncQueueCapacity Maximum number of waiting operations
+     * @return Settings object as Builder Object
+     */
+    public SparqlEndpointSettings asyncQueueCapacity(int asyncQueueCapacity) {
+        this.asyncQueueCapacity = asyncQueueCapacity;
+        return this;
+    }
+
+    /**
+     * Sets read-only replicas of the SPARQL endpoint. Queries are distributed across them, while updates are only sent to the primary endpoint
+     * @param readReplicaUrls URLs of the replicas. If empty, all queries are sent to the primary endpoint
+     * @return Settings object as Builder Object
+     */
+    public SparqlEndpointSettings readReplicaUrls(List<String> readReplicaUrls) {
+        this.readReplicaUrls = new ArrayList<>(readReplicaUrls);
+        return this;
+    }
+
+    /**
+     * Sets for how long after a write queries concerning the written graph are answered by the primary endpoint, so that connectors can read their own writes despite replication lag
+     * @param readYourWritesMillis Period in milliseconds. 0 disables this behaviour
+     * @return Settings object as Builder Object
+     */
+    public SparqlEndpointSettings readYourWritesMillis(long readYourWritesMillis) {
+        this.readYourWritesMillis = readYourWritesMillis;
+        return this;
+    }
+
+    /**
+     * Sets the LIMIT which is added to user queries without LIMIT
+     * @param defaultQueryLimit Maximum number of results. 0 (default) leaves queries without LIMIT unchanged
+     * @return Settings object as Builder Object
+     */
+    public SparqlEndpointSettings defaultQueryLimit(long defaultQueryLimit) {
+        this.defaultQueryLimit = defaultQueryLimit;
+        return this;
+    }
+
+    /**
+     * Sets how many triple patterns without any fixed subject, predicate or object (?s ?p ?o) a user query may contain
+     * @param maxUnboundPatterns Maximum number of such patterns. Queries with more of them are rejected. 0 (default) disables this check
+     * @return Settings object as Builder Object
+     */
+    public SparqlEndpointSettings maxUnboundPatterns(int maxUnboundPatterns) {
+        this.maxUnboundPatterns = maxUnboundPatterns;
+        return this;
+    }
+
+    /**
+     * Sets how many cartesian products (joins of patterns without shared variables) a user query may contain
+     * @param maxCartesianProducts Maximum number of cartesian products. Queries with more of them are rejected. 0 (default) disables this check
+     * @return Settings object as Builder Object
+     */
+    public SparqlEndpointSettings maxCartesianProducts(int maxCartesianProducts) {
+        this.maxCartesianProducts = maxCartesianProducts;
+        return this;
+    }
+
+    /**
+     * Sets how deeply OPTIONAL patterns may be nested in a user query
+     * @param maxOptionalDepth Maximum nesting depth. Queries with deeper nesting are rejected. 0 (default) disables this check
+     * @return Settings object as Builder Object
+     */
+    public SparqlEndpointSettings maxOptionalDepth(int maxOptionalDepth) {
+        this.maxOptionalDepth = maxOptionalDepth;
+        return this;
+    }
+
+    /**
+     * Sets how many expensive user queries (unbound triple patterns or cartesian products) may be evaluated concurrently. Further expensive queries wait for a slot
+     * @param lowPriorityQuerySlots Number of concurrently evaluated expensive queries. 0 (default) disables the low-priority lane
+     * @return Settings object as Builder Object
+     */
+    public SparqlEndpointSettings lowPriorityQuerySlots(int lowPriorityQuerySlots) {
+        if(lowPriorityQuerySlots < 0)
+        {
+            throw new IllegalArgumentException("Argument lowPriorityQuerySlots should be >=0!");
+        }
+        this.lowPriorityQuerySlots = lowPriorityQuerySlots;
+        return this;
+    }
+
+    /**
+     * Sets whether each offered resource is stored in a named graph of its own, which is linked to the graph of its connector via the admin graph.
+     * Updating or removing a resource then replaces or drops a single small graph. Existing repositories must be converted via ResourceGraphMigration
+     * @param resourceGraphs true, if resources should be stored in graphs of their own
+     * @return Settings object as Builder Object
+     */
+    public SparqlEndpointSettings resourceGraphs(boolean resourceGraphs) {
+        this.resourceGraphs = resourceGraphs;
+        return this;
+    }
+
+    /**
+     * Sets the size of the cache of connectors read from the triple store, measured in triples of the cached connectors
+     * @param connectorCacheMaxTriples Maximum number of triples of all cached connectors together. 0 disables the cache
+     * @return Settings object as Builder Object
+     */
+    public SparqlEndpointSettings connectorCacheMaxTriples(long connectorCacheMaxTriples) {
+        this.connectorCacheMaxTriples = connectorCacheMaxTriples;
+        return this;
+    }
+
+    /**
+     * Sets the size of the cache of serialized descriptions (connectors, resources, catalog). The cache is held outside of the Java heap
+     * @param descriptionCacheMaxBytes Maximum size of all cached descriptions together, in bytes. 0 disables the cache
+     * @return Settings object as Builder Object
+     */
+    public SparqlEndpointSettings descriptionCacheMaxBytes(long descriptionCacheMaxBytes) {
+        this.descriptionCacheMaxBytes = descriptionCacheMaxBytes;
+        return this;
+    }
+
+    /**
+     * Sets the size of the cache of results of queries submitted by users. Results are cached until the next write to the triple store
+     * @param queryCacheMaxBytes Maximum size of all cached results together, in bytes. 0 disables the cache
+     * @return Settings object as Builder Object
+     */
+    public SparqlEndpointSettings queryCacheMaxBytes(long queryCacheMaxBytes) {
+        this.queryCacheMaxBytes = queryCacheMaxBytes;
+        return this;
+    }
+
+    /**
+     * Sets the number of locks ordering concurrent updates of the same connector. Updates of connectors sharing a lock are applied one after another
+     * @param graphLockStripes Number of locks, rounded up to the next power of two
+     * @return Settings object as Builder Object
+     */
+    public SparqlEndpointSettings graphLockStripes(int graphLockStripes) {
+        this.graphLockStripes = graphLockStripes;
+        return this;
+    }
+
+    /**
+     * Allows to adjust the builder of the connections to the SPARQL endpoint beyond these settings, e.g. to use different endpoint names or accept headers
+     * The function is applied after all other settings have been applied to the builder
+     * @param connectionBuilderCustomizer Function adjusting the builder
+     * @return Settings object as Builder Object
+     */
+    public SparqlEndpointSettings connectionBuilderCustomizer(UnaryOperator<RDFConnectionRemoteBuilder> connectionBuilderCustomizer) {
+        this.connectionBuilderCustomizer = connectionBuilderCustomizer;
+        return this;
+    }
+
+    public int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    public long getAcquireTimeoutMillis() {
+        return acquireTimeoutMillis;
+    }
+
+    public long getHealthCheckIntervalSeconds() {
+        return healthCheckIntervalSeconds;
+    }
+
+    public long getGroupCommitWindowMillis() {
+        return groupCommitWindowMillis;
+    }
+
+    public int getGroupCommitMaxOperations() {
+        return groupCommitMaxOperations;
+    }
+
+    public boolean isBinaryTransport() {
+        return binaryTransport;
+    }
+
+    public boolean isCompressTransfer() {
+        return compressTransfer;
+    }
+
+    public long getInternalQueryTimeoutMillis() {
+        return internalQueryTimeoutMillis;
+    }
+
+    public long getUserQueryTimeoutMillis() {
+        return userQueryTimeoutMillis;
+    }
+
+    public int getAsyncThreads() {
+        return asyncThreads;
+    }
+
+    public int getAsyncQueueCapacity() {
+        return asyncQueueCapacity;
+    }
+
+    public List<String> getReadReplicaUrls() {
+        return readReplicaUrls;
+    }
+
+    public long getReadYourWritesMillis() {
+        return readYourWritesMillis;
+    }
+
+    public long getDefaultQueryLimit() {
+        return defaultQueryLimit;
+    }
+
+    public int getMaxUnboundPatterns() {
+        return maxUnboundPatterns;
+    }
+
+    public int getMaxCartesianProducts() {
+        return maxCartesianProducts;
+    }
+
+    public int getMaxOptionalDepth() {
+        return maxOptionalDepth;
+    }
+
+    public int getLowPriorityQuerySlots() {
+        return lowPriorityQuerySlots;
+    }
+
+    public boolean isResourceGraphs() {
+        return resourceGraphs;
+    }
+
+    public long getConnectorCacheMaxTriples() {
+        return connectorCacheMaxTriples;
+    }
+
+    public long getDescriptionCacheMaxBytes() {
+        return descriptionCacheMaxBytes;
+    }
+
+    public long getQueryCacheMaxBytes() {
+        return queryCacheMaxBytes;
+    }
+
+    public int getGraphLockStripes() {
+        return graphLockStripes;
+    }
+
+    public UnaryOperator<RDFConnectionRemoteBuilder> getConnectionBuilderCustomizer() {
+        return connectionBuilderCustomizer;
+    }
+}
@@ -3,29 +3,90 @@ package de.fraunhofer.iais.eis.ids.index.common.util;
 import de.fraunhofer.iais.eis.RejectionReason;
 import de.fraunhofer.iais.eis.ids.component.core.RejectMessageException;
 import de.fraunhofer.iais.eis.ids.index.common.persistence.RepositoryFacade;
+import org.apache.jena.atlas.lib.Cache;
+import org.apache.jena.atlas.lib.CacheFactory;
 import org.apache.jena.query.Query;
 import org.apache.jena.query.QueryFactory;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.syntax.Element;
+import org.apache.jena.sparql.syntax.ElementGroup;
+import org.apache.jena.sparql.syntax.ElementNamedGraph;
+import org.apache.jena.sparql.syntax.ElementSubQuery;
+import org.apache.jena.sparql.syntax.ElementVisitorBase;
+import org.apache.jena.sparql.syntax.ElementWalker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This utility class reformulates incoming SPARQL requests. If the query contains a FROM section, it is denied.
- * The reformulated query will hide the complexity of named graphs, creating a union graph of all ACTIVE graphs (this requires a repository facade connection)
+ * The reformulated query will hide the complexity of named graphs, restricting all GRAPH patterns to ACTIVE graphs (this requires a repository facade connection)
  */
 public class SparqlQueryRewriter {
 
     private static final Logger logger = LoggerFactory.getLogger(SparqlQueryRewriter.class);
 
+    //Maximum number of rewritten queries kept in memory
+    private static final int QUERY_CACHE_SIZE = 1000;
+
+    //Rewritten queries by their original query string. Repeated queries skip parsing and rewriting entirely
+    //As graphs are restricted via their state in the admin graph, rewritten queries stay valid when connectors are (de-)activated
+    private static final Cache<String, Query> queryCache = CacheFactory.createCache(QUERY_CACHE_SIZE);
+
     /**
      * Query reformulation function, rejecting malformed queries and queries with FROM part.
      * Queries are reformulated to respect only active graphs (requires repository connection)
      * @param queryString Query to be reformulated
      * @param repositoryFacade Repository facade from which a list of active graphs can be queried
+     * @return The reformulated query as String
      * @throws RejectMessageException thrown, if the query is malformed, the index is empty or if the query contains a FROM clause
      */
     public static String reformulate(String queryString, RepositoryFacade repositoryFacade) throws RejectMessageException
+    {
+        return reformulateQuery(queryString, repositoryFacade).serialize();
+    }
+
+    /**
+     * Query reformulation function, rejecting malformed queries and queries with FROM part.
+     * Queries are reformulated to respect only active graphs (requires repository connection).
+     * The result is cached, so that reformulating the same query again is cheap
+     * @param queryString Query to be reformulated
+     * @param repositoryFacade Repository facade from which a list of active graphs can be queried
+     * @return The reformulated query. The object is shared with other callers and MUST NOT be modified
+     * @throws RejectMessageException thrown, if the query is malformed, the index is empty or if the query contains a FROM clause
+     */
+    public static Query reformulateQuery(String queryString, RepositoryFacade repositoryFacade) throws RejectMessageException
+    {
+        //Surrounding whitespace does not change the meaning of a query. Whitespace within the query might (e.g. in literals)
+        String cacheKey = queryString.trim();
+        Query query = queryCache.getIfPresent(cacheKey);
+        if(query == null)
+        {
+            query = rewrite(cacheKey, repositoryFacade);
+            queryCache.put(cacheKey, query);
+        }
+        else
+        {
+            logger.debug("Reusing previously reformulated query.");
+        }
+        //No FROM clause was specified. Instead of listing all active graphs in FROM NAMED clauses, every GRAPH pattern is joined with the graph states
+        if(repositoryFacade.getSize() == 0)
+        {
+            //TODO: It would be better to return an empty result set instead. But this really depends on whether it is a SELECT, CONSTRUCT, ASK, ... Query.
+            throw new RejectMessageException(RejectionReason.NOT_FOUND, new NullPointerException("The index is empty - your query could not be evaluated."));
+        }
+        return query;
+    }
+
+    /**
+     * Internal function parsing and rewriting a query on the syntax level
+     * @param queryString Query to be reformulated
+     * @param repositoryFacade Repository facade providing the restriction to active graphs
+     * @return The reformulated query
+     * @throws RejectMessageException thrown, if the query is malformed or if the query contains a FROM clause
+     */
+    private static Query rewrite(String queryString, RepositoryFacade repositoryFacade) throws RejectMessageException
     {
         //Parse the query (using Apache Jena)
         Query query;
@@ -44,45 +105,53 @@ public class SparqlQueryRewriter {
             //A FROM clause was specified. Reject query
             throw new RejectMessageException(RejectionReason.BAD_PARAMETERS, new Exception("FROM clause is not allowed in queries."));
         }
-        //No FROM clause was specified. Attach our own FROM clauses
-
-        List<String> activeGraphs = repositoryFacade.getActiveGraphs();
-        //We need to make sure at least one active graph exists. Otherwise no "FROM NAMED <URI>" is generated, allowing the user to query inactive graphs or the admin graph
-        if(activeGraphs.isEmpty())
+        if(query.getQueryPattern() == null)
         {
-            //TODO: It would be better to return an empty result set instead. But this really depends on whether it is a SELECT, CONSTRUCT, ASK, ... Query.
-            throw new RejectMessageException(RejectionReason.NOT_FOUND, new NullPointerException("The index is empty - your query could not be evaluated."));
+            throw new RejectMessageException(RejectionReason.BAD_PARAMETERS, new NullPointerException("Your query must contain a WHERE part."));
         }
-        for(String graph : activeGraphs)
+
+        //All data is stored in named graphs. If the query does not address them itself, surround the WHERE part with a GRAPH ?__RESERVED { ... }
+        if(!containsGraphVariable(query.getQueryPattern()))
         {
-            //Attach all active graphs in FROM clause
-            query.addNamedGraphURI(graph);
+            ElementGroup wrapper = new ElementGroup();
+            wrapper.addElement(new ElementNamedGraph(Var.alloc("__RESERVED"), query.getQueryPattern()));
+            query.setQueryPattern(wrapper);
+            logger.debug("Added GRAPH section to query.");
         }
 
-        //Next up, we need to do some string operations
-        String serializedQuery = query.serialize();
-        int whereIndex = serializedQuery.indexOf("WHERE");
-        if(whereIndex > 0)
-        {
-            //Note that the parsing and serializing takes care of some pretty printing. Keywords are always fully capitalized
-            //selECT ?s ?p ?o WHERE {grAph?g{ ?s ?p ?o } } is rewritten to SELECT ?s ?p ?o WHERE { GRAPH ?g { ?s ?p ?o } } (with some line breaks and spacing)
-            //This means that the following string operation works as expected
-            if(!serializedQuery.substring(whereIndex).contains(" GRAPH ?"))
-            {
-                //Get the index of the first opening bracket after WHERE
-                int bracketIndex = serializedQuery.indexOf("{", whereIndex);
+        //Only active graphs may be matched by GRAPH patterns. The size of the resulting query does not depend on the number of graphs
+        repositoryFacade.restrictToActiveGraphs(query);
+        //Fix the result variables of SELECT * queries now, so that the query is not modified when it is evaluated
+        query.resetResultVars();
+        query.setResultVars();
+        return query;
+    }
 
-                //Surround the WHERE part with a GRAPH ?__RESERVED { ... }
-                serializedQuery = serializedQuery.substring(0, bracketIndex + 1) + " GRAPH ?__RESERVED { " + serializedQuery.substring(bracketIndex + 1) + " } ";
-                logger.debug("Added GRAPH section to query. Resulting query:\n" + serializedQuery);
+    /**
+     * Internal function to determine whether a query pattern contains a GRAPH pattern with a variable, e.g. GRAPH ?g { ... }, including those in sub-queries
+     * @param element The query pattern to be searched
+     * @return true, if such a GRAPH pattern was found
+     */
+    private static boolean containsGraphVariable(Element element)
+    {
+        AtomicBoolean found = new AtomicBoolean(false);
+        ElementWalker.walk(element, new ElementVisitorBase() {
+            @Override
+            public void visit(ElementNamedGraph el) {
+                if(el.getGraphNameNode().isVariable())
+                {
+                    found.set(true);
+                }
             }
-            //No else part required, if the query already contains a GRAPH ?g { ... } wrapper
-        }
-        else
-        {
-            throw new RejectMessageException(RejectionReason.BAD_PARAMETERS, new NullPointerException("Your query must contain a WHERE part."));
-        }
 
-        return serializedQuery;
+            @Override
+            public void visit(ElementSubQuery el) {
+                if(containsGraphVariable(el.getQuery().getQueryPattern()))
+                {
+                    found.set(true);
+                }
+            }
+        });
+        return found.get();
     }
 }
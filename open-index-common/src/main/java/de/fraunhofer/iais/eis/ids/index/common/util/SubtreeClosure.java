@@ -0,0 +1,218 @@
+package de.fraunhofer.iais.eis.ids.index.common.util;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.QueryBuildException;
+import org.apache.jena.sparql.core.Substitute;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ExecutionContext;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.iterator.QueryIterNullIterator;
+import org.apache.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+import org.apache.jena.sparql.pfunction.PropFuncArg;
+import org.apache.jena.sparql.pfunction.PropertyFunctionBase;
+import org.apache.jena.sparql.pfunction.PropertyFunctionRegistry;
+import org.apache.jena.util.iterator.ExtendedIterator;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Computes all triples reachable from a node within a bounded number of hops, in a single breadth-first traversal.
+ * This replaces chains of nested OPTIONAL blocks (?s ?p ?o . OPTIONAL { ?o ?p2 ?o2 . OPTIONAL { ... } }), which the query planner evaluates rather poorly.
+ * In the exclusive variant, only nodes which are referenced by a single subject are descended into. This is the part of the graph which belongs to the root node alone,
+ * e.g. the description of a resource which can be removed along with the resource.
+ * The RepositoryFacade calls traverse directly for in-memory and embedded repositories. After calling register, it is also available as property function:
+ * (?s ?p ?o) &lt;https://w3id.org/idsa/broker/function#subtree&gt; (?root 5)
+ */
+public class SubtreeClosure extends PropertyFunctionBase {
+
+    public static final String SUBTREE = "https://w3id.org/idsa/broker/function#subtree";
+    public static final String EXCLUSIVE_SUBTREE = "https://w3id.org/idsa/broker/function#exclusiveSubtree";
+
+    //Applies if no depth is passed to the property function
+    private static final int DEFAULT_MAX_DEPTH = 10;
+
+    private final boolean exclusive;
+
+    /**
+     * Constructor
+     * @param exclusive true, if only nodes referenced by a single subject should be descended into
+     */
+    public SubtreeClosure(boolean exclusive) {
+        this.exclusive = exclusive;
+    }
+
+    /**
+     * Registers the property functions with ARQ, making them available to all queries evaluated locally
+     */
+    public static void register() {
+        PropertyFunctionRegistry.get().put(SUBTREE, uri -> new SubtreeClosure(false));
+        PropertyFunctionRegistry.get().put(EXCLUSIVE_SUBTREE, uri -> new SubtreeClosure(true));
+    }
+
+    /**
+     * Traverses the graph starting from a root node and hands each reachable triple to a consumer exactly once
+     * @param graph The graph to be traversed
+     * @param root The node at which the traversal starts
+     * @param maxDepth Maximum number of hops from the root. 1 only yields the triples of the root itself
+     * @param exclusive true, if only nodes referenced by a single subject should be descended into. The root is always descended into
+     * @param consumer Function receiving the triples
+     */
+    public static void traverse(Graph graph, Node root, int maxDepth, boolean exclusive, Consumer<Triple> consumer) {
+        traverse(graph, root, maxDepth, exclusive, node -> null, consumer);
+    }
+
+    /**
+     * Traverses the graph starting from a root node and hands each reachable triple to a consumer exactly once.
+     * Nodes which are described in a graph of their own (such as resources stored in separate named graphs) are descended into within that graph
+     * @param graph The graph in which the traversal starts
+     * @param root The node at which the traversal starts
+     * @param maxDepth Maximum number of hops from the root. 1 only yields the triples of the root itself
+     * @param exclusive true, if only nodes referenced by a single subject should be descended into. The root is always descended into
+     * @param graphOfNode Function returning the graph in which a node and everything below it is described, or null, if the traversal stays in the current graph
+     * @param consumer Function receiving the triples
+     */
+    public static void traverse(Graph graph, Node root, int maxDepth, boolean exclusive, Function<Node, Graph> graphOfNode, Consumer<Triple> consumer) {
+        Set<Node> visited = new HashSet<>();
+        visited.add(root);
+        //Each node is expanded in the graph it was found in, unless it has a graph of its own
+        Map<Node, Graph> frontier = new LinkedHashMap<>();
+        frontier.put(root, graphFor(root, graph, graphOfNode));
+        for(int depth = 0; depth < maxDepth && !frontier.isEmpty(); depth++)
+        {
+            Map<Node, Graph> next = new LinkedHashMap<>();
+            frontier.forEach((node, nodeGraph) -> {
+                ExtendedIterator<Triple> triples = nodeGraph.find(node, Node.ANY, Node.ANY);
+                try {
+                    while(triples.hasNext())
+                    {
+                        Triple triple = triples.next();
+                        consumer.accept(triple);
+                        //Each node is expanded once, at the smallest depth at which it was found. This also makes cycles harmless
+                        if(!triple.getObject().isLiteral() && visited.add(triple.getObject()))
+                        {
+                            next.put(triple.getObject(), graphFor(triple.getObject(), nodeGraph, graphOfNode));
+                        }
+                    }
+                }
+                finally {
+                    triples.close();
+                }
+            });
+            if(exclusive)
+            {
+                //Nodes with a graph of their own are described there alone, just like the root
+                next.entrySet().removeIf(entry -> graphOfNode.apply(entry.getKey()) == null && !hasSingleParent(entry.getValue(), entry.getKey()));
+            }
+            frontier = next;
+        }
+    }
+
+    private static Graph graphFor(Node node, Graph currentGraph, Function<Node, Graph> graphOfNode) {
+        Graph ownGraph = graphOfNode.apply(node);
+        return ownGraph != null ? ownGraph : currentGraph;
+    }
+
+    /**
+     * Determines whether a node is referenced by exactly one subject
+     * @param graph The graph containing the node
+     * @param node The node in question
+     * @return true, if all triples pointing at the node have the same subject
+     */
+    private static boolean hasSingleParent(Graph graph, Node node) {
+        Node parent = null;
+        ExtendedIterator<Triple> incoming = graph.find(Node.ANY, Node.ANY, node);
+        try {
+            while(incoming.hasNext())
+            {
+                Node subject = incoming.next().getSubject();
+                if(parent == null)
+                {
+                    parent = subject;
+                }
+                else if(!parent.equals(subject))
+                {
+                    return false;
+                }
+            }
+        }
+        finally {
+            incoming.close();
+        }
+        return parent != null;
+    }
+
+    @Override
+    public void build(PropFuncArg argSubject, Node predicate, PropFuncArg argObject, ExecutionContext execCxt) {
+        super.build(argSubject, predicate, argObject, execCxt);
+        if(!argSubject.isList() || argSubject.getArgListSize() != 3)
+        {
+            throw new QueryBuildException("Subject of " + predicate + " must be a list of three elements (?s ?p ?o)");
+        }
+        if(argObject.isList() && (argObject.getArgListSize() < 1 || argObject.getArgListSize() > 2))
+        {
+            throw new QueryBuildException("Object of " + predicate + " must be the root node, or a list of root node and maximum depth");
+        }
+    }
+
+    @Override
+    public QueryIterator exec(Binding binding, PropFuncArg argSubject, Node predicate, PropFuncArg argObject, ExecutionContext execCxt) {
+        Node root = Substitute.substitute(argObject.isList() ? argObject.getArg(0) : argObject.getArg(), binding);
+        if(Var.isVar(root))
+        {
+            //Nothing to start from
+            return QueryIterNullIterator.create(execCxt);
+        }
+        int maxDepth = DEFAULT_MAX_DEPTH;
+        if(argObject.isList() && argObject.getArgListSize() == 2)
+        {
+            Node depth = Substitute.substitute(argObject.getArg(1), binding);
+            if(!depth.isLiteral() || !(depth.getLiteralValue() instanceof Number))
+            {
+                throw new QueryBuildException("Maximum depth of " + predicate + " must be a number");
+            }
+            maxDepth = ((Number) depth.getLiteralValue()).intValue();
+        }
+        List<Binding> results = new ArrayList<>();
+        traverse(execCxt.getActiveGraph(), root, maxDepth, exclusive, triple -> {
+            Binding result = bind(binding, argSubject.getArg(0), triple.getSubject());
+            result = bind(result, argSubject.getArg(1), triple.getPredicate());
+            result = bind(result, argSubject.getArg(2), triple.getObject());
+            if(result != null)
+            {
+                results.add(result);
+            }
+        });
+        return QueryIterPlainWrapper.create(results.iterator(), execCxt);
+    }
+
+    /**
+     * Binds a variable of the subject list to a value of a triple. Constants and already bound variables must match the value
+     * @param binding The binding to be extended, or null, if a previous position did not match
+     * @param target Variable or constant of the subject list
+     * @param value Value from the triple
+     * @return Extended binding, or null, if the value does not match
+     */
+    private static Binding bind(Binding binding, Node target, Node value) {
+        if(binding == null)
+        {
+            return null;
+        }
+        Node current = Substitute.substitute(target, binding);
+        if(Var.isVar(current))
+        {
+            return BindingFactory.binding(binding, Var.alloc(current), value);
+        }
+        return current.equals(value) ? binding : null;
+    }
+}
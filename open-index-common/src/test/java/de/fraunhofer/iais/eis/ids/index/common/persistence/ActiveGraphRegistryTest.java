@@ -0,0 +1,59 @@
+package de.fraunhofer.iais.eis.ids.index.common.persistence;
+
+import de.fraunhofer.iais.eis.ids.component.core.RejectMessageException;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.ResourceFactory;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ActiveGraphRegistryTest {
+
+    @Test
+    public void stateChangesAreReflected() {
+        ActiveGraphRegistry registry = new ActiveGraphRegistry();
+        Map<String, ActiveGraphRegistry.GraphState> states = new HashMap<>();
+        states.put("http://example.org/a", ActiveGraphRegistry.GraphState.ACTIVE);
+        states.put("http://example.org/b", ActiveGraphRegistry.GraphState.PASSIVE);
+        registry.load(states);
+
+        assertTrue(registry.isActive("http://example.org/a"));
+        assertFalse(registry.isActive("http://example.org/b"));
+        assertTrue(registry.exists("http://example.org/b"));
+        assertEquals(ActiveGraphRegistry.GraphState.UNKNOWN, registry.getState("http://example.org/c"));
+        assertEquals(1, registry.getActiveGraphCount());
+
+        long version = registry.getVersion();
+        registry.setState("http://example.org/b", true);
+        assertEquals(2, registry.getActiveGraphs().size());
+        assertTrue(registry.getVersion() > version);
+
+        //Setting the same state again is not a change
+        version = registry.getVersion();
+        registry.setState("http://example.org/b", true);
+        assertEquals(version, registry.getVersion());
+    }
+
+    @Test
+    public void registryIsRestoredFromAdminGraph() throws RejectMessageException {
+        RepositoryFacade repositoryFacade = new RepositoryFacade();
+        Model model = ModelFactory.createDefaultModel();
+        model.add(ResourceFactory.createResource("http://example.org/a"), ResourceFactory.createProperty("http://example.org/p"), "o");
+        repositoryFacade.addStatements(model, "http://example.org/a");
+        repositoryFacade.addStatements(model, "http://example.org/b");
+        repositoryFacade.changePassivationOfGraph("http://example.org/b", false);
+
+        repositoryFacade.reloadGraphStates();
+
+        assertTrue(repositoryFacade.graphIsActive("http://example.org/a"));
+        assertFalse(repositoryFacade.graphIsActive("http://example.org/b"));
+        assertTrue(repositoryFacade.graphExists("http://example.org/b"));
+        assertFalse(repositoryFacade.graphExists("http://example.org/c"));
+        assertEquals(1, repositoryFacade.getSize());
+    }
+
+}
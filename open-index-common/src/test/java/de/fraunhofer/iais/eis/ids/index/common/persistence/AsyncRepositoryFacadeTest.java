@@ -0,0 +1,60 @@
+package de.fraunhofer.iais.eis.ids.index.common.persistence;
+
+import de.fraunhofer.iais.eis.RejectionReason;
+import de.fraunhofer.iais.eis.ids.component.core.RejectMessageException;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.ResourceFactory;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AsyncRepositoryFacadeTest {
+
+    @Test
+    public void independentQueriesAreEvaluatedInParallel() throws RejectMessageException {
+        RepositoryFacade repositoryFacade = new RepositoryFacade();
+        Model model = ModelFactory.createDefaultModel();
+        model.add(ResourceFactory.createResource("http://example.org/s"), ResourceFactory.createProperty("http://example.org/p"), "o");
+        AsyncRepositoryFacade.join(repositoryFacade.getAsync().update(model, "http://example.org/connector"));
+
+        //Both queries must be running at the same time to get past the latch. Evaluated one after another, the first one would time out waiting for the second
+        CountDownLatch bothRunning = new CountDownLatch(2);
+        CompletableFuture<Boolean> ask = repositoryFacade.getAsync().supply(facade -> {
+            bothRunning.countDown();
+            return awaitUninterruptibly(bothRunning) && facade.booleanQuery("ASK { GRAPH ?g { <http://example.org/s> ?p ?o } }");
+        });
+        CompletableFuture<Model> construct = repositoryFacade.getAsync().supply(facade -> {
+            bothRunning.countDown();
+            return awaitUninterruptibly(bothRunning) ? facade.constructQuery("CONSTRUCT { ?s ?p ?o } WHERE { GRAPH <http://example.org/connector> { ?s ?p ?o } }") : ModelFactory.createDefaultModel();
+        });
+
+        assertTrue(AsyncRepositoryFacade.join(ask));
+        assertEquals(1, AsyncRepositoryFacade.join(construct).size());
+    }
+
+    private static boolean awaitUninterruptibly(CountDownLatch latch) {
+        try {
+            return latch.await(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Test(expected = RejectMessageException.class)
+    public void rejectionsArePassedToTheCaller() throws RejectMessageException {
+        AsyncRepositoryFacade asyncRepositoryFacade = new AsyncRepositoryFacade(new RepositoryFacade(), 1, 1);
+        CompletableFuture<Void> future = asyncRepositoryFacade.run(repositoryFacade -> {
+            throw new RejectMessageException(RejectionReason.NOT_FOUND, new Exception("not found"));
+        });
+        AsyncRepositoryFacade.join(future);
+    }
+
+}
@@ -0,0 +1,84 @@
+package de.fraunhofer.iais.eis.ids.index.common.persistence;
+
+import de.fraunhofer.iais.eis.BaseConnectorBuilder;
+import de.fraunhofer.iais.eis.Connector;
+import de.fraunhofer.iais.eis.ConnectorEndpointBuilder;
+import de.fraunhofer.iais.eis.SecurityProfile;
+import de.fraunhofer.iais.eis.util.Util;
+import org.junit.Test;
+
+import java.net.URI;
+
+import static org.junit.Assert.*;
+
+public class ConnectorCacheTest {
+
+    private static Connector connector(String uri) {
+        return new BaseConnectorBuilder(URI.create(uri))
+                ._maintainerAsUri_(URI.create("http://example.org/participant"))
+                ._curatorAsUri_(URI.create("http://example.org/participant"))
+                ._outboundModelVersion_("4.0.0")
+                ._inboundModelVersion_(Util.asList("4.0.0"))
+                ._securityProfile_(SecurityProfile.BASE_SECURITY_PROFILE)
+                ._hasDefaultEndpoint_(new ConnectorEndpointBuilder()._accessURL_(URI.create("https://example.org/endpoint")).build())
+                .build();
+    }
+
+    @Test
+    public void writesInvalidateEntries() {
+        ConnectorCache cache = new ConnectorCache(100);
+        String graph = "http://example.org/connector1";
+        Connector connector = connector(graph);
+
+        cache.put(graph, cache.getVersion(graph), connector, 10);
+        assertSame(connector, cache.get(graph));
+
+        cache.invalidate(graph);
+        assertNull(cache.get(graph));
+        assertEquals(0.5, cache.getHitRate(), 0.001);
+    }
+
+    @Test
+    public void resultsReadBeforeAWriteAreNotCached() {
+        ConnectorCache cache = new ConnectorCache(100);
+        String graph = "http://example.org/connector1";
+        long version = cache.getVersion(graph);
+        //Concurrent write while the connector is being read
+        cache.invalidate(graph);
+        cache.put(graph, version, connector(graph), 10);
+        assertNull(cache.get(graph));
+    }
+
+    @Test
+    public void leastRecentlyUsedConnectorsAreEvicted() {
+        ConnectorCache cache = new ConnectorCache(100);
+        cache.put("http://example.org/connector1", 0, connector("http://example.org/connector1"), 60);
+        cache.put("http://example.org/connector2", 0, connector("http://example.org/connector2"), 30);
+        assertNotNull(cache.get("http://example.org/connector1"));
+        cache.put("http://example.org/connector3", 0, connector("http://example.org/connector3"), 30);
+
+        assertNull(cache.get("http://example.org/connector2"));
+        assertNotNull(cache.get("http://example.org/connector1"));
+        assertEquals(90, cache.getCachedTriples());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void versionsSurviveForgettingWrittenGraphs() {
+        ConnectorCache cache = new ConnectorCache(100);
+        String graph = "http://example.org/connector1";
+        long version = cache.getVersion(graph);
+        cache.invalidate(graph);
+        //So many graphs are written that the versions of the graphs are no longer tracked individually
+        for(int i = 0; i < 20000; i++)
+        {
+            cache.invalidate("http://example.org/other" + i);
+        }
+        cache.put(graph, version, connector(graph), 10);
+        assertNull(cache.get(graph));
+
+        cache.put(graph, cache.getVersion(graph), connector(graph), 10);
+        assertNotNull(cache.get(graph));
+    }
+
+}
@@ -0,0 +1,51 @@
+package de.fraunhofer.iais.eis.ids.index.common.persistence;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class DescriptionCacheTest {
+
+    private final DescriptionCache cache = new DescriptionCache(100);
+
+    @Test
+    public void onlyDependentDescriptionsAreInvalidated() {
+        cache.put("resource1", cache.begin(), "description 1", Collections.singleton("http://example.org/connector1"));
+        cache.put("resource2", cache.begin(), "description 2", Collections.singleton("http://example.org/connector2"));
+        cache.put("catalog", cache.begin(), "catalog", null);
+
+        cache.invalidate("http://example.org/connector1");
+        assertNull(cache.get("resource1"));
+        assertEquals("description 2", cache.get("resource2"));
+        //The catalog depends on all graphs
+        assertNull(cache.get("catalog"));
+    }
+
+    @Test
+    public void descriptionsGeneratedDuringAWriteAreNotCached() {
+        long start = cache.begin();
+        cache.invalidate("http://example.org/connector1");
+        cache.put("resource1", start, "outdated", Collections.singleton("http://example.org/connector1"));
+        assertNull(cache.get("resource1"));
+        //Writes to other graphs do not matter
+        cache.put("resource2", start, "description 2", Collections.singleton("http://example.org/connector2"));
+        assertEquals("description 2", cache.get("resource2"));
+    }
+
+    @Test
+    public void leastRecentlyUsedDescriptionsAreEvictedByBytes() {
+        String fortyBytes = "0123456789012345678901234567890123456789";
+        cache.put("a", cache.begin(), fortyBytes, Collections.singleton("http://example.org/connector1"));
+        cache.put("b", cache.begin(), fortyBytes, Collections.singleton("http://example.org/connector1"));
+        assertNotNull(cache.get("a"));
+        cache.put("c", cache.begin(), fortyBytes, Collections.singleton("http://example.org/connector2"));
+
+        assertNull(cache.get("b"));
+        assertEquals(fortyBytes, cache.get("a"));
+        assertEquals(80, cache.getCachedBytes());
+        assertEquals(1, cache.getEvictions());
+    }
+
+}
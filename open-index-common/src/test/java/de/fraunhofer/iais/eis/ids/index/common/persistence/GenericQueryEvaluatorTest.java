@@ -0,0 +1,108 @@
+package de.fraunhofer.iais.eis.ids.index.common.persistence;
+
+import de.fraunhofer.iais.eis.RejectionReason;
+import de.fraunhofer.iais.eis.ids.component.core.RejectMessageException;
+import de.fraunhofer.iais.eis.ids.index.common.util.SparqlEndpointSettings;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.ResourceFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+public class GenericQueryEvaluatorTest {
+
+    private RepositoryFacade repositoryFacade;
+    private GenericQueryEvaluator queryEvaluator;
+
+    @Before
+    public void setUp() throws RejectMessageException {
+        repositoryFacade = new RepositoryFacade();
+        Model model = ModelFactory.createDefaultModel();
+        for(int i = 0; i < 10; i++)
+        {
+            model.add(ResourceFactory.createResource("http://example.org/s" + i), ResourceFactory.createProperty("http://example.org/p"), "o" + i);
+        }
+        repositoryFacade.addStatements(model, "http://example.org/connector");
+        queryEvaluator = new GenericQueryEvaluator(repositoryFacade);
+    }
+
+    @Test
+    public void constructIsStreamedAsNTriples() throws RejectMessageException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        queryEvaluator.getResults("CONSTRUCT { ?s ?p ?o } WHERE { ?s ?p ?o }", outputStream, Lang.NTRIPLES);
+
+        Model result = ModelFactory.createDefaultModel();
+        RDFDataMgr.read(result, new ByteArrayInputStream(outputStream.toByteArray()), Lang.NTRIPLES);
+        assertEquals(10, result.size());
+    }
+
+    @Test
+    public void constructAsJsonLdString() throws RejectMessageException {
+        String jsonLd = queryEvaluator.getResults("CONSTRUCT { ?s ?p ?o } WHERE { ?s ?p ?o }");
+
+        Model result = ModelFactory.createDefaultModel();
+        RDFDataMgr.read(result, new ByteArrayInputStream(jsonLd.getBytes()), Lang.JSONLD);
+        assertEquals(10, result.size());
+    }
+
+    @Test
+    public void passivatedGraphsAreHidden() throws RejectMessageException {
+        Model model = ModelFactory.createDefaultModel();
+        model.add(ResourceFactory.createResource("http://example.org/hidden"), ResourceFactory.createProperty("http://example.org/p"), "o");
+        repositoryFacade.addStatements(model, "http://example.org/passive");
+        repositoryFacade.changePassivationOfGraph("http://example.org/passive", false);
+
+        String result = queryEvaluator.getResults("SELECT DISTINCT ?g WHERE { GRAPH ?g { ?s ?p ?o } }");
+        assertTrue(result.contains("http://example.org/connector"));
+        assertFalse(result.contains("http://example.org/passive"));
+        assertFalse(result.contains("https://broker.ids.isst.fraunhofer.de/admin"));
+
+        //Sub-queries are restricted as well
+        result = queryEvaluator.getResults("SELECT ?s WHERE { { SELECT ?s WHERE { GRAPH ?g { ?s ?p ?o } } } }");
+        assertFalse(result.contains("http://example.org/hidden"));
+    }
+
+    @Test
+    public void repeatedQueriesAreCachedUntilTheNextWrite() throws RejectMessageException {
+        QueryResultCache queryResultCache = repositoryFacade.getQueryResultCache();
+        String result = queryEvaluator.getResults("SELECT (COUNT(*) AS ?count) WHERE { ?s <http://example.org/p> ?o }");
+        //Differs in formatting only
+        assertEquals(result, queryEvaluator.getResults("SELECT  (COUNT(*) AS ?count)\nWHERE { ?s <http://example.org/p> ?o . }"));
+        assertEquals(1, queryResultCache.getHits());
+
+        Model model = ModelFactory.createDefaultModel();
+        model.add(ResourceFactory.createResource("http://example.org/s10"), ResourceFactory.createProperty("http://example.org/p"), "o10");
+        repositoryFacade.addStatements(model, "http://example.org/connector");
+        assertTrue(queryEvaluator.getResults("SELECT (COUNT(*) AS ?count) WHERE { ?s <http://example.org/p> ?o }").contains("11"));
+        assertEquals(1, queryResultCache.getHits());
+    }
+
+    @Test
+    public void slowQueriesAreRejectedAsTemporarilyNotAvailable() throws RejectMessageException {
+        RepositoryFacade slowRepositoryFacade = new RepositoryFacade("", new SparqlEndpointSettings().userQueryTimeoutMillis(50));
+        Model model = ModelFactory.createDefaultModel();
+        for(int i = 0; i < 100; i++)
+        {
+            model.add(ResourceFactory.createResource("http://example.org/s" + i), ResourceFactory.createProperty("http://example.org/p"), "o" + i);
+        }
+        slowRepositoryFacade.addStatements(model, "http://example.org/connector");
+
+        try {
+            //Cartesian product of 10^8 rows
+            new GenericQueryEvaluator(slowRepositoryFacade).getResults("SELECT (COUNT(*) AS ?count) WHERE { ?a ?p1 ?b . ?c ?p2 ?d . ?e ?p3 ?f . ?g ?p4 ?h . }");
+            fail("Query should have exceeded its time budget");
+        }
+        catch (RejectMessageException e)
+        {
+            assertEquals(RejectionReason.TEMPORARILY_NOT_AVAILABLE, e.getRejectionReason());
+        }
+    }
+
+}
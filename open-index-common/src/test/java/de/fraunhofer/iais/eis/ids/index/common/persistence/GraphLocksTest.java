@@ -0,0 +1,31 @@
+package de.fraunhofer.iais.eis.ids.index.common.persistence;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+
+import static org.junit.Assert.*;
+
+public class GraphLocksTest {
+
+    @Test
+    public void sameGraphSharesALock() {
+        GraphLocks graphLocks = new GraphLocks(64);
+        assertSame(graphLocks.get("http://example.org/connector1"), graphLocks.get("http://example.org/connector1"));
+    }
+
+    @Test
+    public void graphsAreSpreadOverTheLocks() {
+        GraphLocks graphLocks = new GraphLocks(50);
+        Set<Lock> locks = new HashSet<>();
+        for(int i = 0; i < 1000; i++)
+        {
+            locks.add(graphLocks.get("http://example.org/connector" + i));
+        }
+        //Rounded up to 64 locks, all of which are in use
+        assertEquals(64, locks.size());
+    }
+
+}
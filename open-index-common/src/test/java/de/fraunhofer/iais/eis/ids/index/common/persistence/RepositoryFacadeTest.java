@@ -0,0 +1,106 @@
+package de.fraunhofer.iais.eis.ids.index.common.persistence;
+
+import de.fraunhofer.iais.eis.ids.component.core.RejectMessageException;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.ResourceFactory;
+import org.apache.jena.vocabulary.RDF;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RepositoryFacadeTest {
+
+    private static final String graph = "http://example.org/connector";
+    private static final String adminGraph = "https://broker.ids.isst.fraunhofer.de/admin";
+    private static final String graphIsActive = "https://w3id.org/idsa/core/graphIsActive";
+
+    private static Model connectorModel(int version)
+    {
+        Model model = ModelFactory.createDefaultModel();
+        for(int i = 0; i < 10; i++)
+        {
+            model.add(ResourceFactory.createResource(graph + "/resource" + i), ResourceFactory.createProperty("http://example.org/version"), ResourceFactory.createTypedLiteral(version));
+        }
+        return model;
+    }
+
+    @Test
+    public void replacingGraphIsAtomicForReaders() throws Exception {
+        RepositoryFacade repositoryFacade = new RepositoryFacade();
+        repositoryFacade.replaceStatements(connectorModel(0), graph);
+
+        //Readers must neither see the graph emptied by the CLEAR nor without its state in the admin graph
+        String ask = "ASK WHERE { GRAPH <" + graph + "> { ?s ?p ?o } GRAPH <" + adminGraph + "> { <" + graph + "> <" + graphIsActive + "> true } }";
+        AtomicBoolean done = new AtomicBoolean(false);
+        AtomicInteger violations = new AtomicInteger();
+        AtomicInteger reads = new AtomicInteger();
+        Thread reader = new Thread(() -> {
+            do {
+                if(!repositoryFacade.booleanQuery(ask))
+                {
+                    violations.incrementAndGet();
+                }
+                reads.incrementAndGet();
+            }
+            while(!done.get());
+        });
+        reader.start();
+        try {
+            for(int i = 1; i <= 200; i++)
+            {
+                repositoryFacade.replaceStatements(connectorModel(i), graph);
+            }
+        }
+        finally {
+            done.set(true);
+            reader.join();
+        }
+
+        assertTrue(reads.get() > 0);
+        assertEquals(0, violations.get());
+        assertEquals(10, repositoryFacade.selectQuery("SELECT ?s WHERE { GRAPH <" + graph + "> { ?s <http://example.org/version> 200 } }").size());
+        assertEquals(1, repositoryFacade.selectQuery("SELECT ?state WHERE { GRAPH <" + adminGraph + "> { <" + graph + "> <" + graphIsActive + "> ?state } }").size());
+    }
+
+    @Test
+    public void togglingPassivationKeepsSingleState() throws RejectMessageException {
+        RepositoryFacade repositoryFacade = new RepositoryFacade();
+        repositoryFacade.replaceStatements(connectorModel(0), graph);
+        String stateQuery = "SELECT ?state WHERE { GRAPH <" + adminGraph + "> { <" + graph + "> <" + graphIsActive + "> ?state } }";
+
+        repositoryFacade.changePassivationOfGraph(graph, false);
+        assertEquals(1, repositoryFacade.selectQuery(stateQuery).size());
+        assertFalse(repositoryFacade.selectQuery(stateQuery).get(0).getLiteral("state").getBoolean());
+
+        repositoryFacade.changePassivationOfGraph(graph, true);
+        assertEquals(1, repositoryFacade.selectQuery(stateQuery).size());
+        assertTrue(repositoryFacade.selectQuery(stateQuery).get(0).getLiteral("state").getBoolean());
+
+        repositoryFacade.changePassivationOfGraph(graph, false);
+        assertEquals(1, repositoryFacade.selectQuery(stateQuery).size());
+        assertFalse(repositoryFacade.selectQuery(stateQuery).get(0).getLiteral("state").getBoolean());
+        assertFalse(repositoryFacade.graphIsActive(graph));
+    }
+
+    @Test
+    public void materializingSupertypesInvalidatesCachedResults() throws RejectMessageException {
+        RepositoryFacade repositoryFacade = new RepositoryFacade();
+        Model model = ModelFactory.createDefaultModel();
+        model.add(ResourceFactory.createResource(graph + "/resource"), RDF.type, ResourceFactory.createResource(INFOMODEL.NS + "DataResource"));
+        //Not stored via a ModelCreator, so that ids:Resource is only added by converting the store
+        repositoryFacade.addStatements(model, graph);
+        GenericQueryEvaluator queryEvaluator = new GenericQueryEvaluator(repositoryFacade);
+        String query = "SELECT ?s WHERE { ?s a <" + INFOMODEL.NS + "Resource> }";
+        assertFalse(queryEvaluator.getResults(query).contains(graph + "/resource"));
+
+        long storeVersion = repositoryFacade.getStoreVersion();
+        repositoryFacade.materializeSupertypes();
+        assertTrue(repositoryFacade.getStoreVersion() > storeVersion);
+        assertTrue(queryEvaluator.getResults(query).contains(graph + "/resource"));
+    }
+
+}
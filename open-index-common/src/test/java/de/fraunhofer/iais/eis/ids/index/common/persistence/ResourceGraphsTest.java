@@ -0,0 +1,72 @@
+package de.fraunhofer.iais.eis.ids.index.common.persistence;
+
+import de.fraunhofer.iais.eis.ids.component.core.RejectMessageException;
+import de.fraunhofer.iais.eis.ids.index.common.util.SparqlEndpointSettings;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Property;
+import org.apache.jena.rdf.model.Resource;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+public class ResourceGraphsTest {
+
+    private static final String CONNECTOR = "http://example.org/connector";
+
+    private RepositoryFacade repositoryFacade;
+    private final Model model = ModelFactory.createDefaultModel();
+    private final Property title = model.createProperty("http://example.org/title");
+    private Resource catalog;
+
+    @Before
+    public void setUp() throws RejectMessageException {
+        repositoryFacade = new RepositoryFacade("", new SparqlEndpointSettings().resourceGraphs(true));
+        Property offeredResource = model.createProperty("https://w3id.org/idsa/core/offeredResource");
+        Resource publisher = model.createResource("http://example.org/publisher").addProperty(title, "Publisher");
+        catalog = model.createResource("http://example.org/catalog");
+        model.createResource(CONNECTOR)
+                .addProperty(model.createProperty("https://w3id.org/idsa/core/resourceCatalog"), catalog)
+                .addProperty(model.createProperty("http://example.org/publisher"), publisher);
+        catalog.addProperty(offeredResource, model.createResource("http://example.org/resource1")
+                .addProperty(title, "Resource 1")
+                .addProperty(model.createProperty("http://example.org/representation"), model.createResource("http://example.org/representation1").addProperty(title, "Representation 1"))
+                .addProperty(model.createProperty("http://example.org/publisher"), publisher));
+        catalog.addProperty(offeredResource, model.createResource("http://example.org/resource2").addProperty(title, "Resource 2"));
+        repositoryFacade.addStatements(model, CONNECTOR);
+    }
+
+    @Test
+    public void resourcesAreStoredInGraphsOfTheirOwn() {
+        assertEquals(new HashSet<>(Arrays.asList("http://example.org/resource1", "http://example.org/resource2")), repositoryFacade.getResourceGraphs(CONNECTOR));
+        //Resource graphs are not connectors
+        assertEquals(Collections.singletonList(CONNECTOR), repositoryFacade.getActiveGraphs());
+        assertFalse(repositoryFacade.booleanQuery("ASK { GRAPH <" + CONNECTOR + "> { <http://example.org/resource1> ?p ?o } }"));
+        //Shared nodes remain in the connector's graph
+        assertTrue(repositoryFacade.booleanQuery("ASK { GRAPH <" + CONNECTOR + "> { <http://example.org/publisher> ?p ?o } }"));
+
+        //Traversals continue in the graphs of the resources
+        Model subtree = repositoryFacade.getSubtrees(Collections.singletonMap(CONNECTOR, Collections.singleton(catalog.getURI())), 3, false);
+        assertTrue(subtree.contains(model.createResource("http://example.org/representation1"), title, "Representation 1"));
+    }
+
+    @Test
+    public void resourceGraphsFollowTheStateOfTheConnector() throws RejectMessageException {
+        repositoryFacade.changePassivationOfGraph(CONNECTOR, false);
+        assertTrue(repositoryFacade.booleanQuery("ASK { GRAPH <https://broker.ids.isst.fraunhofer.de/admin> { <http://example.org/resource1> <https://w3id.org/idsa/core/graphIsActive> false } }"));
+    }
+
+    @Test
+    public void resourceGraphIsDroppedOnRemoval() {
+        assertTrue(repositoryFacade.removeResourceGraph("http://example.org/resource1", CONNECTOR));
+        assertEquals(Collections.singleton("http://example.org/resource2"), repositoryFacade.getResourceGraphs(CONNECTOR));
+        assertFalse(repositoryFacade.booleanQuery("ASK { GRAPH ?g { ?s ?p <http://example.org/resource1> } }"));
+        assertFalse(repositoryFacade.booleanQuery("ASK { GRAPH <http://example.org/resource1> { ?s ?p ?o } }"));
+    }
+
+}
@@ -0,0 +1,65 @@
+package de.fraunhofer.iais.eis.ids.index.common.persistence;
+
+import de.fraunhofer.iais.eis.ids.component.core.RejectMessageException;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.vocabulary.OWL;
+import org.apache.jena.vocabulary.RDF;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class UriResolutionIndexTest {
+
+    private static final String CONNECTOR_GRAPH = "http://example.org/broker/catalog/1";
+    private static final String RESOURCE = CONNECTOR_GRAPH + "/2";
+
+    private static Model resourceModel() {
+        Model model = ModelFactory.createDefaultModel();
+        Resource resource = model.createResource(RESOURCE);
+        resource.addProperty(RDF.type, model.createResource(INFOMODEL.NS + "DataResource"));
+        resource.addProperty(OWL.sameAs, model.createResource("http://example.org/resource"));
+        Resource representation = model.createResource(RESOURCE + "/3");
+        representation.addProperty(OWL.sameAs, model.createResource("http://example.org/representation"));
+        return model;
+    }
+
+    @Test
+    public void originalUrisAreResolvedWithinTheirConnectorGraph() {
+        UriResolutionIndex index = new UriResolutionIndex();
+        index.add(CONNECTOR_GRAPH, resourceModel());
+
+        assertEquals(RESOURCE, index.getRewrittenUri(CONNECTOR_GRAPH, "http://example.org/resource"));
+        assertNull(index.getRewrittenUri("http://example.org/broker/catalog/4", "http://example.org/resource"));
+        assertTrue(index.get(RESOURCE).isResource());
+        assertFalse(index.get(RESOURCE + "/3").isResource());
+        assertNotNull(index.findCollision("http://example.org/other", RESOURCE));
+        assertNull(index.findCollision("http://example.org/resource", RESOURCE));
+
+        //Child objects are removed together with the resource
+        index.removeSubtree(CONNECTOR_GRAPH, RESOURCE);
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void indexIsRebuiltFromTheTripleStore() throws RejectMessageException {
+        RepositoryFacade repositoryFacade = new RepositoryFacade();
+        repositoryFacade.addStatements(resourceModel(), CONNECTOR_GRAPH);
+        assertEquals(RESOURCE, repositoryFacade.getUriResolutionIndex().getRewrittenUri(CONNECTOR_GRAPH, "http://example.org/resource"));
+
+        //The model was not stored via a ModelCreator, so that ids:Resource is only added by converting the store
+        repositoryFacade.materializeSupertypes();
+        repositoryFacade.getUriResolutionIndex().load(Collections.emptyMap());
+        repositoryFacade.reloadUriResolutionIndex();
+        assertEquals(2, repositoryFacade.getUriResolutionIndex().size());
+        assertTrue(repositoryFacade.getUriResolutionIndex().get(RESOURCE).isResource());
+        assertEquals(CONNECTOR_GRAPH, repositoryFacade.getUriResolutionIndex().get(RESOURCE).getGraph());
+
+        repositoryFacade.replaceStatements(ModelFactory.createDefaultModel(), CONNECTOR_GRAPH);
+        assertNull(repositoryFacade.getUriResolutionIndex().get(RESOURCE));
+    }
+
+}
@@ -0,0 +1,78 @@
+package de.fraunhofer.iais.eis.ids.index.common.util;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.rdfconnection.RDFConnection;
+import org.apache.jena.rdfconnection.RDFConnectionFactory;
+import org.apache.jena.shared.JenaException;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FusekiConnectionPoolTest {
+
+    private final Dataset dataset = DatasetFactory.create();
+    private final AtomicInteger createdConnections = new AtomicInteger();
+
+    private FusekiConnectionPool createPool(int maxPoolSize) {
+        SparqlEndpointSettings settings = new SparqlEndpointSettings()
+                .maxPoolSize(maxPoolSize)
+                .acquireTimeoutMillis(100)
+                .healthCheckIntervalSeconds(0);
+        return new FusekiConnectionPool(() -> {
+            createdConnections.incrementAndGet();
+            return RDFConnectionFactory.connect(dataset);
+        }, null, settings);
+    }
+
+    @Test
+    public void connectionsAreReused() {
+        FusekiConnectionPool pool = createPool(2);
+        for(int i = 0; i < 10; i++)
+        {
+            RDFConnection connection = pool.acquire();
+            assertFalse(connection.queryAsk("ASK { ?s ?p ?o }"));
+            pool.release(connection);
+        }
+        assertEquals(1, createdConnections.get());
+        assertEquals(10, pool.getAcquireCount());
+        assertEquals(0, pool.getInUse());
+        assertEquals(1, pool.getIdle());
+        pool.close();
+    }
+
+    @Test
+    public void poolIsBounded() {
+        FusekiConnectionPool pool = createPool(1);
+        RDFConnection connection = pool.acquire();
+        assertEquals(1, pool.getInUse());
+        try {
+            pool.acquire();
+            fail("Pool should not hand out more connections than configured");
+        }
+        catch (JenaException ignored)
+        {
+        }
+        pool.release(connection);
+        pool.release(pool.acquire());
+        pool.close();
+    }
+
+    @Test
+    public void closedConnectionsAreReplaced() {
+        FusekiConnectionPool pool = createPool(1);
+        RDFConnection connection = pool.acquire();
+        connection.close();
+        pool.release(connection);
+        assertEquals(0, pool.getIdle());
+
+        RDFConnection replacement = pool.acquire();
+        assertFalse(replacement.isClosed());
+        assertEquals(2, createdConnections.get());
+        pool.release(replacement);
+        pool.close();
+    }
+
+}
@@ -0,0 +1,61 @@
+package de.fraunhofer.iais.eis.ids.index.common.util;
+
+import org.apache.jena.update.UpdateFactory;
+import org.apache.jena.update.UpdateRequest;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class GroupCommitterTest {
+
+    private final List<UpdateRequest> executedRequests = Collections.synchronizedList(new ArrayList<>());
+
+    private UpdateRequest insert(String object) {
+        return UpdateFactory.create("INSERT DATA { GRAPH <http://example.org/g> { <http://example.org/s> <http://example.org/p> \"" + object + "\" } }");
+    }
+
+    @Test
+    public void concurrentUpdatesAreCombined() throws Exception {
+        GroupCommitter groupCommitter = new GroupCommitter(executedRequests::add, 200, 3);
+        CompletableFuture<Void> first = groupCommitter.submit(insert("1"));
+        CompletableFuture<Void> second = groupCommitter.submit(insert("2"));
+        CompletableFuture<Void> third = groupCommitter.submit(insert("3"));
+        CompletableFuture.allOf(first, second, third).get();
+
+        assertEquals(1, executedRequests.size());
+        assertEquals(3, executedRequests.get(0).getOperations().size());
+        groupCommitter.close();
+    }
+
+    @Test
+    public void failingUpdateOnlyRejectsItsCaller() throws Exception {
+        GroupCommitter groupCommitter = new GroupCommitter(updateRequest -> {
+            if(updateRequest.toString().contains("bad"))
+            {
+                throw new IllegalStateException("bad update");
+            }
+            executedRequests.add(updateRequest);
+        }, 200, 2);
+        CompletableFuture<Void> good = groupCommitter.submit(insert("good"));
+        CompletableFuture<Void> bad = groupCommitter.submit(insert("bad"));
+
+        good.get();
+        try {
+            bad.get();
+            fail("Failing update should be reported to its caller");
+        }
+        catch (ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(1, executedRequests.size());
+        groupCommitter.close();
+    }
+
+}
@@ -0,0 +1,81 @@
+package de.fraunhofer.iais.eis.ids.index.common.util;
+
+import de.fraunhofer.iais.eis.ids.component.core.RejectMessageException;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryFactory;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class QueryCostAnalyzerTest {
+
+    private final QueryCostAnalyzer queryCostAnalyzer = new QueryCostAnalyzer(new SparqlEndpointSettings()
+            .defaultQueryLimit(100)
+            .maxCartesianProducts(1)
+            .maxOptionalDepth(2));
+
+    @Test
+    public void selectiveQueryIsAdmittedUnchanged() throws RejectMessageException {
+        Query query = QueryFactory.create("SELECT ?s ?title WHERE { GRAPH ?g { ?s a <https://w3id.org/idsa/core/Resource> ; <https://w3id.org/idsa/core/title> ?title } } LIMIT 10");
+        QueryCostAnalyzer.QueryCost cost = queryCostAnalyzer.analyze(query);
+        assertFalse(cost.isExpensive());
+        assertSame(query, queryCostAnalyzer.admit(query, cost));
+    }
+
+    @Test
+    public void unboundQueryIsLimited() throws RejectMessageException {
+        Query query = QueryFactory.create("CONSTRUCT { ?s ?p ?o } WHERE { GRAPH ?g { ?s ?p ?o } }");
+        QueryCostAnalyzer.QueryCost cost = queryCostAnalyzer.analyze(query);
+        assertEquals(1, cost.getUnboundPatterns());
+        assertTrue(cost.isExpensive());
+
+        Query admittedQuery = queryCostAnalyzer.admit(query, cost);
+        assertEquals(100, admittedQuery.getLimit());
+        //The original query may be shared and must remain untouched
+        assertFalse(query.hasLimit());
+    }
+
+    @Test(expected = RejectMessageException.class)
+    public void cartesianProductsAreRejected() throws RejectMessageException {
+        Query query = QueryFactory.create("SELECT * WHERE { ?a a <https://w3id.org/idsa/core/Resource> . ?b a <https://w3id.org/idsa/core/Connector> . ?c a <https://w3id.org/idsa/core/Participant> }");
+        queryCostAnalyzer.admit(query, queryCostAnalyzer.analyze(query));
+    }
+
+    @Test
+    public void restrictionToActiveGraphsIsNoCartesianProduct() throws RejectMessageException {
+        Query query = QueryFactory.create("SELECT * WHERE { GRAPH <http://example.org/graph/1> { ?a <https://w3id.org/idsa/core/title> ?title } GRAPH <http://example.org/graph/2> { ?b <https://w3id.org/idsa/core/title> ?title } }");
+        new ActiveGraphTransform("http://example.org/admin", "http://example.org/graphIsActive").apply(query);
+        QueryCostAnalyzer.QueryCost cost = queryCostAnalyzer.analyze(query);
+        assertEquals(0, cost.getCartesianProducts());
+        queryCostAnalyzer.admit(query, cost);
+    }
+
+    @Test
+    public void optionalNestingIsMeasured() {
+        Query query = QueryFactory.create("SELECT * WHERE { ?s a ?type OPTIONAL { ?s <http://example.org/p> ?o OPTIONAL { ?o <http://example.org/q> ?x } } OPTIONAL { ?s <http://example.org/r> ?y } }");
+        assertEquals(2, queryCostAnalyzer.analyze(query).getOptionalDepth());
+    }
+
+    @Test
+    public void lowPriorityLaneIsOptional() throws RejectMessageException {
+        //Disabled by default, so that expensive queries are neither queued nor rejected
+        queryCostAnalyzer.enterLowPriorityLane(1000);
+        queryCostAnalyzer.enterLowPriorityLane(1000);
+        queryCostAnalyzer.leaveLowPriorityLane();
+        queryCostAnalyzer.leaveLowPriorityLane();
+
+        QueryCostAnalyzer singleSlotAnalyzer = new QueryCostAnalyzer(new SparqlEndpointSettings().lowPriorityQuerySlots(1));
+        assertTrue(singleSlotAnalyzer.enterLowPriorityLane(1000) <= 1000);
+        try {
+            singleSlotAnalyzer.enterLowPriorityLane(50);
+            fail("Second expensive query should not get a slot");
+        }
+        catch (RejectMessageException ignored)
+        {
+        }
+        singleSlotAnalyzer.leaveLowPriorityLane();
+        assertTrue(singleSlotAnalyzer.enterLowPriorityLane(1000) > 0);
+        singleSlotAnalyzer.leaveLowPriorityLane();
+    }
+
+}
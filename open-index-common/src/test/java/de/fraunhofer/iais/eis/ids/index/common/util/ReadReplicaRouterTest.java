@@ -0,0 +1,92 @@
+package de.fraunhofer.iais.eis.ids.index.common.util;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.rdfconnection.RDFConnection;
+import org.apache.jena.rdfconnection.RDFConnectionFactory;
+import org.apache.jena.sparql.engine.http.QueryExceptionHTTP;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReadReplicaRouterTest {
+
+    private static final String CONNECTOR = "http://example.org/connector";
+    private static final String QUERY = "ASK { GRAPH <" + CONNECTOR + "> { ?s ?p ?o } }";
+
+    private final SparqlEndpointSettings settings = new SparqlEndpointSettings()
+            .healthCheckIntervalSeconds(0)
+            .acquireTimeoutMillis(100);
+
+    private FusekiConnectionPool createPool(Dataset dataset) {
+        return new FusekiConnectionPool(() -> RDFConnectionFactory.connect(dataset), null, settings);
+    }
+
+    @Test
+    public void queriesAreSentToLeastBusyReplica() {
+        Dataset first = DatasetFactory.create();
+        Dataset second = DatasetFactory.create();
+        ReadReplicaRouter router = new ReadReplicaRouter(Arrays.asList(createPool(first), createPool(second)), Arrays.asList("first", "second"), settings);
+
+        //Each outstanding request directs the next one to the other replica
+        RDFConnection connection1 = router.acquire(CONNECTOR);
+        RDFConnection connection2 = router.acquire(CONNECTOR);
+        assertNotNull(connection1);
+        assertNotNull(connection2);
+        assertNotSame(connection1, connection2);
+
+        router.release(connection1, null);
+        RDFConnection connection3 = router.acquire(CONNECTOR);
+        assertSame(connection1, connection3);
+        router.release(connection2, null);
+        router.release(connection3, null);
+        router.close();
+    }
+
+    @Test
+    public void failingReplicaIsTakenOutOfRotation() {
+        List<FusekiConnectionPool> pools = new ArrayList<>();
+        pools.add(new FusekiConnectionPool(() -> {
+            throw new QueryExceptionHTTP(503, "Service unavailable");
+        }, null, settings));
+        pools.add(createPool(DatasetFactory.create()));
+        ReadReplicaRouter router = new ReadReplicaRouter(pools, Arrays.asList("broken", "working"), settings);
+
+        //Whichever replica is tried first, the broken one ends up out of rotation
+        for(int i = 0; i < 3; i++)
+        {
+            RDFConnection connection = router.acquire(CONNECTOR);
+            if(connection != null)
+            {
+                router.release(connection, null);
+            }
+        }
+        assertEquals(1, router.getAvailableReplicas());
+
+        RDFConnection connection = router.acquire(CONNECTOR);
+        assertNotNull(connection);
+        assertFalse(connection.queryAsk(QUERY));
+        router.release(connection, null);
+        router.close();
+    }
+
+    @Test
+    public void recentlyWrittenGraphsAreReadFromPrimary() {
+        ReadReplicaRouter router = new ReadReplicaRouter(Arrays.asList(createPool(DatasetFactory.create())), Arrays.asList("replica"), settings.readYourWritesMillis(60000));
+        router.pin(CONNECTOR);
+
+        assertNull(router.acquire(CONNECTOR));
+        //Queries which may read any graph, such as catalog listings, must see the write as well
+        assertNull(router.acquire(null));
+        //Graphs are matched exactly, not by prefix
+        RDFConnection connection = router.acquire(CONNECTOR + "123");
+        assertNotNull(connection);
+        router.release(connection, null);
+        router.close();
+    }
+
+}
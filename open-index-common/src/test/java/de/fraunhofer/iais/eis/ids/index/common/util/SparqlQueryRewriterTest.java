@@ -0,0 +1,47 @@
+package de.fraunhofer.iais.eis.ids.index.common.util;
+
+import de.fraunhofer.iais.eis.ids.component.core.RejectMessageException;
+import de.fraunhofer.iais.eis.ids.index.common.persistence.RepositoryFacade;
+import org.apache.jena.query.Query;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.ResourceFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SparqlQueryRewriterTest {
+
+    private RepositoryFacade repositoryFacade;
+
+    @Before
+    public void setUp() throws RejectMessageException {
+        repositoryFacade = new RepositoryFacade();
+        Model model = ModelFactory.createDefaultModel();
+        model.add(ResourceFactory.createResource("http://example.org/s"), ResourceFactory.createProperty("http://example.org/p"), "o");
+        repositoryFacade.addStatements(model, "http://example.org/connector");
+    }
+
+    @Test
+    public void repeatedQueriesAreTakenFromCache() throws RejectMessageException {
+        Query first = SparqlQueryRewriter.reformulateQuery("SELECT ?s WHERE { ?s ?p ?o } LIMIT 5", repositoryFacade);
+        Query second = SparqlQueryRewriter.reformulateQuery("  SELECT ?s WHERE { ?s ?p ?o } LIMIT 5\n", repositoryFacade);
+        assertSame(first, second);
+    }
+
+    @Test
+    public void patternIsWrappedInGraph() throws RejectMessageException {
+        //Solution modifiers after the WHERE part must not get in the way of the rewrite
+        Query query = SparqlQueryRewriter.reformulateQuery("SELECT ?s WHERE { ?s ?p ?o } ORDER BY ?s LIMIT 5", repositoryFacade);
+        assertTrue(query.serialize().contains("?__RESERVED"));
+        assertEquals(5, query.getLimit());
+        assertEquals(1, repositoryFacade.selectQuery(query.serialize()).size());
+    }
+
+    @Test(expected = RejectMessageException.class)
+    public void fromClauseIsRejected() throws RejectMessageException {
+        SparqlQueryRewriter.reformulateQuery("SELECT ?s FROM <http://example.org/connector> WHERE { ?s ?p ?o }", repositoryFacade);
+    }
+
+}
@@ -0,0 +1,78 @@
+package de.fraunhofer.iais.eis.ids.index.common.util;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Property;
+import org.apache.jena.rdf.model.Resource;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SubtreeClosureTest {
+
+    private final Model model = ModelFactory.createDefaultModel();
+    private final Property p = model.createProperty("http://example.org/p");
+    private Resource root;
+    private Resource shared;
+
+    @Before
+    public void setUp() {
+        //root -> a -> b -> c, and root -> shared <- other
+        root = model.createResource("http://example.org/root");
+        Resource a = model.createResource("http://example.org/a");
+        Resource b = model.createResource("http://example.org/b");
+        shared = model.createResource("http://example.org/shared");
+        root.addProperty(p, a).addProperty(p, shared);
+        a.addProperty(p, b);
+        b.addProperty(p, model.createResource("http://example.org/c"));
+        //Cycles must not lead to endless traversals
+        b.addProperty(p, root);
+        shared.addProperty(p, "value");
+        model.createResource("http://example.org/other").addProperty(p, shared);
+    }
+
+    private Model traverse(int maxDepth, boolean exclusive) {
+        Model result = ModelFactory.createDefaultModel();
+        SubtreeClosure.traverse(model.getGraph(), root.asNode(), maxDepth, exclusive, result.getGraph()::add);
+        return result;
+    }
+
+    @Test
+    public void depthIsBounded() {
+        assertEquals(2, traverse(1, false).size());
+        //root (2), a (1), shared (1)
+        assertEquals(4, traverse(2, false).size());
+        //b (2), root is not visited again
+        assertEquals(6, traverse(10, false).size());
+    }
+
+    @Test
+    public void sharedNodesAreNotDescendedIntoExclusively() {
+        Model result = traverse(10, true);
+        assertTrue(result.contains(root, p, shared));
+        assertFalse(result.contains(shared, p, "value"));
+    }
+
+    @Test
+    public void propertyFunctionIsAvailableInQueries() {
+        SubtreeClosure.register();
+        Dataset dataset = DatasetFactory.create();
+        dataset.addNamedModel("http://example.org/graph", model);
+        String query = "SELECT ?s ?p ?o WHERE { GRAPH <http://example.org/graph> { (?s ?p ?o) <" + SubtreeClosure.SUBTREE + "> (<http://example.org/root> 2) } }";
+        try(QueryExecution queryExecution = QueryExecutionFactory.create(query, dataset)) {
+            int count = 0;
+            for(ResultSet resultSet = queryExecution.execSelect(); resultSet.hasNext(); resultSet.next())
+            {
+                count++;
+            }
+            assertEquals(4, count);
+        }
+    }
+
+}